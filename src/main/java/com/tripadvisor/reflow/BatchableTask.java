@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.time.Duration;
+
+/**
+ * A task that declares roughly how long it takes to run. When an execution
+ * has a batch threshold, ready tasks implementing this interface whose cost
+ * hint falls below the threshold are submitted together in batches, since
+ * they are too short to be worth scheduling one at a time.
+ *
+ * @see Execution#setBatchThreshold(Duration)
+ */
+public interface BatchableTask extends Task
+{
+    /**
+     * Returns an estimate of how long this task takes to run.
+     */
+    Duration getCostHint();
+}
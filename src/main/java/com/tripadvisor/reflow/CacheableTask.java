@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+/**
+ * A task whose output is determined by its input and by a cache key, so
+ * that its output can be restored from a {@link TaskResultCache} rather than
+ * recomputed. The input of a task is the output of the nearest dependencies
+ * that have tasks; it must consist of {@link FingerprintedOutput}s, and the
+ * task's own output of {@link PathOutput}s, for the task to be cached.
+ *
+ * @see Execution#setResultCache(TaskResultCache)
+ */
+public interface CacheableTask extends Task
+{
+    /**
+     * Returns a string identifying everything other than the content of its
+     * input that affects the output of this task, such as its parameters and
+     * the version of its implementation. Any two calls to this method on this
+     * task should return the same key.
+     */
+    String getCacheKey();
+}
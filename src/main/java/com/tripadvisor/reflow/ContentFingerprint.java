@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.Objects;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A summary of the content of an output: its size, its modification time,
+ * and a hash of its content.
+ *
+ * @see FingerprintedOutput
+ */
+public final class ContentFingerprint
+{
+    private final long m_size;
+    private final Instant m_lastModified;
+    private final String m_hash;
+
+    private ContentFingerprint(long size, Instant lastModified, String hash)
+    {
+        Preconditions.checkArgument(size >= 0, "Negative size");
+        m_size = size;
+        m_lastModified = Preconditions.checkNotNull(lastModified);
+        m_hash = Preconditions.checkNotNull(hash);
+    }
+
+    /**
+     * Returns a fingerprint with the given attributes.
+     *
+     * @param size the size of the output content, in bytes
+     * @param lastModified the modification time of the output
+     * @param hash a string representation of a hash of the output content
+     */
+    public static ContentFingerprint of(long size, Instant lastModified, String hash)
+    {
+        return new ContentFingerprint(size, lastModified, hash);
+    }
+
+    public long getSize()
+    {
+        return m_size;
+    }
+
+    public Instant getLastModified()
+    {
+        return m_lastModified;
+    }
+
+    public String getHash()
+    {
+        return m_hash;
+    }
+
+    /**
+     * Returns whether this fingerprint was taken from output with the given
+     * size and modification time, in which case the content is presumed to
+     * be unchanged without rehashing it.
+     */
+    public boolean hasMetadata(long size, Instant lastModified)
+    {
+        return m_size == size && m_lastModified.equals(lastModified);
+    }
+
+    /**
+     * Returns whether the given fingerprint represents the same content
+     * as this one, regardless of modification time.
+     */
+    public boolean hasSameContent(ContentFingerprint other)
+    {
+        return m_size == other.m_size && m_hash.equals(other.m_hash);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof ContentFingerprint))
+        {
+            return false;
+        }
+        ContentFingerprint other = (ContentFingerprint) obj;
+        return m_size == other.m_size && m_lastModified.equals(other.m_lastModified) && m_hash.equals(other.m_hash);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(m_size, m_lastModified, m_hash);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ContentFingerprint(%d, %s, %s)", m_size, m_lastModified, m_hash);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+
+/**
+ * A task scheduler that can run a task on the thread that has just
+ * completed the task it depends on, rather than handing it to another
+ * thread.
+ *
+ * @see Execution#setContinuationAffinity(boolean)
+ */
+public interface ContinuingTaskScheduler<T> extends TaskScheduler<T>
+{
+    /**
+     * Schedules a task that continues the work of a task whose completion is
+     * being signaled on the calling thread. If the calling thread belongs to
+     * this scheduler, the task may run on it once the completion callback
+     * returns; otherwise, this method behaves like
+     * {@link #submit(Object, TaskCompletionCallback)}.
+     *
+     * <p>Returns a token representing the scheduled task instance. The token
+     * must be non-null unless the callback has already been invoked.</p>
+     */
+    @Nullable
+    ScheduledTaskToken submitContinuation(T task, TaskCompletionCallback callback);
+}
@@ -20,13 +20,16 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -34,21 +37,34 @@ import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
-import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toConcurrentMap;
 
 import static com.google.common.collect.Maps.toImmutableEnumMap;
@@ -58,6 +74,11 @@ import static com.google.common.collect.Maps.toImmutableEnumMap;
  * and scheduling new tasks as their dependencies are satisfied. Executions can
  * only move forward: To rerun a task that has already been completed, create
  * a new execution.
+ *
+ * <p>Executions can be driven in two ways. {@link #run()} blocks the calling
+ * thread until scheduling is finished, while {@link #start()} returns
+ * immediately. In both cases, there is no dedicated driver thread: scheduling
+ * progresses on whichever thread reports the completion of a task.</p>
  */
 public class Execution<T extends Task>
 {
@@ -65,24 +86,95 @@ public class Execution<T extends Task>
     // because accessing guarded members in a stream expression trips up
     // Error Prone (see https://github.com/google/error-prone/issues/536)
 
-    private final Workflow<T> m_workflow;
+    /**
+     * Executions that are currently running. Task completion callbacks only
+     * hold weak references to their executions, so this keeps an execution
+     * started via {@link #start()} reachable until its run finishes.
+     */
+    private static final Set<Execution<?>> RUNNING_EXECUTIONS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Timer used for delayed actions when none has been set explicitly.
+     */
+    private static final Supplier<ScheduledExecutorService> DEFAULT_TIMER = Suppliers.memoize(() ->
+    {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("reflow-timer-%d").build());
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    });
+
+    /**
+     * The number of threads in the default cleanup executor, which bounds
+     * the number of concurrent output removals, result cache lookups and
+     * sub-workflow expansions across all executions.
+     */
+    private static final int DEFAULT_CLEANUP_CONCURRENCY = 4;
+
+    /**
+     * The default maximum number of tasks submitted together in a batch.
+     */
+    private static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Executor used to remove the output of failed tasks, to consult the
+     * result cache and to obtain sub-workflows when none has been set
+     * explicitly.
+     */
+    private static final Supplier<Executor> DEFAULT_CLEANUP_EXECUTOR = Suppliers.memoize(() ->
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DEFAULT_CLEANUP_CONCURRENCY, DEFAULT_CLEANUP_CONCURRENCY, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("reflow-cleanup-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    });
+
+    /**
+     * The workflow being executed, which changes as expanding nodes succeed.
+     * Only changed under the lock, but completion callbacks read it without
+     * the lock to resolve their nodes.
+     */
+    private volatile Workflow<T> m_workflow;
+
+    /**
+     * A weak reference to this execution, shared by all of its completion
+     * callbacks so that they don't keep it alive.
+     */
+    private final WeakReference<Execution<T>> m_weakSelf = new WeakReference<>(this);
 
     private final TaskScheduler<? super T> m_scheduler;
     private final OutputHandler m_outputHandler;
 
     private final Lock m_lock = new ReentrantLock();
 
+    private final Map<WorkflowNode<T>, NodeStatus> m_nodeStatuses;
+
+    /**
+     * The ordinals of the nodes in each state. Bit sets, unlike concurrent
+     * sets, don't allocate when a node changes state.
+     */
     @GuardedBy("m_lock")
-    private final Condition m_taskNodeAvailable = m_lock.newCondition();
+    private final ImmutableMap<NodeState, BitSet> m_ordinalsByState;
 
-    private final Map<WorkflowNode<T>, NodeStatus> m_nodeStatuses;
-    private final ImmutableMap<NodeState, Set<WorkflowNode<T>>> m_nodesByState;
+    /**
+     * Completion callbacks for task nodes, indexed by ordinal, allocated on
+     * first use and reused by every later submission of the node's task.
+     * A callback holds only its node's ordinal and a shared weak reference
+     * to this execution.
+     */
+    @GuardedBy("m_lock")
+    private final List<QueueingCallback<T>> m_callbacks = new ArrayList<>();
+
+    @GuardedBy("m_lock")
+    private final Queue<WorkflowNode<T>> m_structureNodeQueue = new ArrayDeque<>();
 
     @GuardedBy("m_lock")
-    private final Queue<StructureNode<T>> m_structureNodeQueue = new ArrayDeque<>();
+    private final Queue<WorkflowNode<T>> m_succeededTaskNodeQueue = new ArrayDeque<>();
 
     @GuardedBy("m_lock")
-    private final Queue<TaskNodeCompletion<T>> m_taskNodeQueue = new ArrayDeque<>();
+    private final Queue<NodeFailure<T>> m_failureQueue = new ArrayDeque<>();
 
     @GuardedBy("m_lock")
     private final List<Exception> m_exceptions = new ArrayList<>();
@@ -91,7 +183,91 @@ public class Execution<T extends Task>
 
     private volatile boolean m_shutdownOnFailure = true;
 
+    private volatile boolean m_taskFusion;
+
+    private volatile boolean m_continuationAffinity;
+
+    @Nullable
+    private volatile SharedTaskRegistry m_sharedTaskRegistry;
+
+    @Nullable
+    private volatile SpeculationPolicy m_speculationPolicy;
+
+    @Nullable
+    private volatile ScheduledExecutorService m_timer;
+
+    @Nullable
+    private volatile TaskResultCache m_resultCache;
+
+    @Nullable
+    private volatile Duration m_batchThreshold;
+
+    private volatile int m_maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    @Nullable
+    private volatile Executor m_cleanupExecutor;
+
+    /**
+     * The number of failed nodes whose output is being removed in the
+     * background. The current run doesn't finish until this is zero.
+     */
+    @GuardedBy("m_lock")
+    private int m_pendingCleanups;
+
+    /**
+     * The number of sub-workflow nodes whose sub-workflows are being obtained
+     * in the background. The current run doesn't finish until this is zero.
+     */
+    @GuardedBy("m_lock")
+    private int m_pendingExpansions;
+
+    /**
+     * Attempts in progress for scheduled nodes whose tasks may be run more
+     * than once. Nodes with a single attempt and no pending resubmission
+     * are not tracked.
+     */
+    @GuardedBy("m_lock")
+    private final Map<WorkflowNode<T>, Attempts> m_attempts = new HashMap<>();
+
+    /**
+     * Nodes whose tasks are due to be resubmitted after failing.
+     */
+    @GuardedBy("m_lock")
+    private final Queue<TaskNode<T>> m_retryQueue = new ArrayDeque<>();
+
+    /**
+     * Maps each scheduled node that was submitted as part of a fused chain
+     * to the chain, until the node completes.
+     */
+    @GuardedBy("m_lock")
+    private final Map<WorkflowNode<T>, List<TaskNode<T>>> m_fusedChains = new HashMap<>();
+
+    /**
+     * The ordinals of scheduled nodes for which one of several attempts has
+     * succeeded and is recording its output, so the other attempts lose.
+     */
+    @GuardedBy("m_lock")
+    private final BitSet m_claimedOrdinals = new BitSet();
+
+    /**
+     * Completed when the current run finishes, or {@code null} if this
+     * execution is not running.
+     */
+    @GuardedBy("m_lock")
+    @Nullable
+    private CompletableFuture<ExecutionResult<T>> m_completion;
+
+    /**
+     * Whether some thread is currently processing queued nodes.
+     */
+    @GuardedBy("m_lock")
+    private boolean m_driving;
+
+    /**
+     * The thread blocked in {@link #run()}, if any.
+     */
     @GuardedBy("m_lock")
+    @Nullable
     private Thread m_driverThread;
 
     private Execution(Workflow<T> workflow, TaskScheduler<? super T> scheduler, OutputHandler outputHandler,
@@ -102,13 +278,12 @@ public class Execution<T extends Task>
         m_outputHandler = Preconditions.checkNotNull(outputHandler);
 
         m_nodeStatuses = nodeStatuses;
-        m_nodesByState = Arrays.stream(NodeState.values()).collect(toImmutableEnumMap(
+        int ordinalBound = workflow.getOrdinalBound();
+        m_ordinalsByState = Arrays.stream(NodeState.values()).collect(toImmutableEnumMap(
                 Function.identity(),
-                state -> m_nodeStatuses.entrySet().stream()
-                        .filter(e -> e.getValue().getState().equals(state))
-                        .map(Entry::getKey)
-                        .collect(toCollection(ConcurrentHashMap::newKeySet))
+                state -> new BitSet(ordinalBound)
         ));
+        m_nodeStatuses.forEach((node, status) -> m_ordinalsByState.get(status.getState()).set(node.getOrdinal()));
     }
 
     /**
@@ -127,7 +302,7 @@ public class Execution<T extends Task>
                 .collect(toConcurrentMap(
                         Function.identity(),
                         node -> !nodesToRunSet.contains(node) ? NodeStatus.withoutToken(NodeState.IRRELEVANT) :
-                                node.getDependencies().stream().anyMatch(nodesToRunSet::contains) ?
+                                workflow.getDependencies(node).stream().anyMatch(nodesToRunSet::contains) ?
                                         NodeStatus.withoutToken(NodeState.NOT_READY) :
                                         NodeStatus.withoutToken(NodeState.READY)
                 ));
@@ -199,13 +374,14 @@ public class Execution<T extends Task>
             throws IOException
     {
         Collection<WorkflowNode<U>> targetNodes = target.getNodes().values();
-        Map<Output, Instant> timestamps = outputHandler.invalidateOutput(targetNodes).getValidatedTimestamps();
+        Map<Output, Instant> timestamps = outputHandler.invalidateOutput(target).getValidatedTimestamps();
 
-        Predicate<WorkflowNode<U>> isTailNode = node -> node.getDependents().stream().noneMatch(targetNodes::contains);
+        Predicate<WorkflowNode<U>> isTailNode = node -> target.getWorkflow().getDependents(node).stream()
+                .noneMatch(target::containsNode);
 
         Predicate<WorkflowNode<U>> noOutputOrOutputMissing = node ->
         {
-            if (!node.hasTask())
+            if (!node.hasTask() || node instanceof ExpandingNode)
             {
                 return true;
             }
@@ -220,7 +396,7 @@ public class Execution<T extends Task>
                         .filter(isTailNode)
                         .filter(noOutputOrOutputMissing)
                         .iterator(),
-                node -> node.getDependencies().stream()
+                node -> target.getWorkflow().getDependencies(node).stream()
                         .filter(noOutputOrOutputMissing)
                         .iterator()
         );
@@ -297,6 +473,188 @@ public class Execution<T extends Task>
         m_shutdownOnFailure = shutdownOnFailure;
     }
 
+    /**
+     * Returns whether this execution fuses linear chains of tasks.
+     */
+    public boolean isTaskFusion()
+    {
+        return m_taskFusion;
+    }
+
+    /**
+     * Sets whether this execution fuses linear chains of tasks. When enabled
+     * and the scheduler is a {@link FusingTaskScheduler}, a ready task is
+     * submitted together with the maximal chain of tasks following it, in
+     * which each task has exactly one dependent and each later task has
+     * exactly one dependency, as a single unit. The tasks in the chain still
+     * complete, and are checkpointed, individually. Tasks that might be
+     * resubmitted, restored from a result cache, expanded or shared with
+     * other executions are never fused.
+     */
+    public void setTaskFusion(boolean taskFusion)
+    {
+        m_taskFusion = taskFusion;
+    }
+
+    /**
+     * Returns whether this execution asks the scheduler to run a task on the
+     * thread that completed its only dependency.
+     */
+    public boolean isContinuationAffinity()
+    {
+        return m_continuationAffinity;
+    }
+
+    /**
+     * Sets whether this execution asks the scheduler to run a task on the
+     * thread that completed its only dependency. When enabled and the
+     * scheduler is a {@link ContinuingTaskScheduler}, if the completion of a
+     * task makes exactly one node ready, that node's task is submitted as a
+     * continuation, which keeps long sequential paths on one thread.
+     */
+    public void setContinuationAffinity(boolean continuationAffinity)
+    {
+        m_continuationAffinity = continuationAffinity;
+    }
+
+    /**
+     * Returns the registry through which this execution shares scheduled
+     * tasks with other executions, if any.
+     */
+    public Optional<SharedTaskRegistry> getSharedTaskRegistry()
+    {
+        return Optional.ofNullable(m_sharedTaskRegistry);
+    }
+
+    /**
+     * Sets the registry through which this execution shares scheduled tasks
+     * with other executions. Executions using the same registry will not
+     * schedule the same task concurrently; instead, an execution that
+     * reaches a task already scheduled by another will wait for that
+     * scheduled instance to complete. Pass {@code null} to stop sharing.
+     */
+    public void setSharedTaskRegistry(@Nullable SharedTaskRegistry sharedTaskRegistry)
+    {
+        m_sharedTaskRegistry = sharedTaskRegistry;
+    }
+
+    /**
+     * Returns the policy used to resubmit straggling speculative tasks, if any.
+     */
+    public Optional<SpeculationPolicy> getSpeculationPolicy()
+    {
+        return Optional.ofNullable(m_speculationPolicy);
+    }
+
+    /**
+     * Sets the policy used to resubmit straggling tasks. Only tasks that
+     * implement {@link SpeculativeTask} are ever resubmitted. The policy
+     * applies to tasks scheduled after this method is called. Pass
+     * {@code null} to disable speculative execution.
+     */
+    public void setSpeculationPolicy(@Nullable SpeculationPolicy speculationPolicy)
+    {
+        m_speculationPolicy = speculationPolicy;
+    }
+
+    /**
+     * Sets the timer used to perform delayed actions, such as speculative
+     * resubmission of tasks. If no timer is set, a shared daemon thread is
+     * used. The timer should not run long-lived actions of its own, since
+     * submitting a task may block.
+     */
+    public void setTimer(ScheduledExecutorService timer)
+    {
+        m_timer = Preconditions.checkNotNull(timer);
+    }
+
+    private ScheduledExecutorService getTimer()
+    {
+        ScheduledExecutorService timer = m_timer;
+        return timer == null ? DEFAULT_TIMER.get() : timer;
+    }
+
+    /**
+     * Sets the executor used to remove the output of failed tasks, to look
+     * up and restore output from the result cache, and to obtain the
+     * sub-workflows of {@link SubWorkflowNode}s. All of these may be slow, so
+     * they happen in the background rather than holding up scheduling, but a
+     * run does not finish until the output of every task that failed during
+     * it has been removed and every sub-workflow it reached has been spliced
+     * in. If no executor is set, a small shared pool of daemon threads is
+     * used, which bounds the number of these operations in progress at once.
+     * Any {@link OutputRemovalFilter} and {@link SubWorkflowNode.Source} is
+     * invoked on the executor, and cacheable tasks are submitted from it.
+     */
+    public void setCleanupExecutor(Executor cleanupExecutor)
+    {
+        m_cleanupExecutor = Preconditions.checkNotNull(cleanupExecutor);
+    }
+
+    private Executor getCleanupExecutor()
+    {
+        Executor cleanupExecutor = m_cleanupExecutor;
+        return cleanupExecutor == null ? DEFAULT_CLEANUP_EXECUTOR.get() : cleanupExecutor;
+    }
+
+    /**
+     * Returns the cache from which the output of cacheable tasks is
+     * restored, if any.
+     */
+    public Optional<TaskResultCache> getResultCache()
+    {
+        return Optional.ofNullable(m_resultCache);
+    }
+
+    /**
+     * Sets the cache from which the output of cacheable tasks is restored.
+     * Before a task implementing {@link CacheableTask} is first submitted,
+     * the cache is checked for output produced from the same input; if found,
+     * the output is restored and the node succeeds without the task being
+     * submitted. Otherwise, the output is added to the cache when the task
+     * succeeds. Failure to read from the cache is treated as a cache miss,
+     * and failure to write to it is ignored.
+     * Pass {@code null} to stop caching.
+     */
+    public void setResultCache(@Nullable TaskResultCache resultCache)
+    {
+        m_resultCache = resultCache;
+    }
+
+    /**
+     * Returns the cost hint below which ready tasks are submitted in
+     * batches, if any.
+     */
+    public Optional<Duration> getBatchThreshold()
+    {
+        return Optional.ofNullable(m_batchThreshold);
+    }
+
+    /**
+     * Sets the cost hint below which ready tasks are submitted in batches.
+     * When the scheduler is a {@link FusingTaskScheduler}, ready tasks that
+     * implement {@link BatchableTask} with a lower cost hint are submitted
+     * together, up to the maximum batch size at a time, rather than one by
+     * one. Each task in a batch still succeeds or fails on its own. Tasks
+     * that might be resubmitted, restored from a result cache, expanded or
+     * shared with other executions are never batched. Pass {@code null} to
+     * stop batching.
+     */
+    public void setBatchThreshold(@Nullable Duration batchThreshold)
+    {
+        m_batchThreshold = batchThreshold;
+    }
+
+    /**
+     * Sets the maximum number of tasks submitted together in a batch.
+     * The default is 64.
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        Preconditions.checkArgument(maxBatchSize > 0, "Max batch size must be positive");
+        m_maxBatchSize = maxBatchSize;
+    }
+
     /**
      * Returns a snapshot of this execution.
      *
@@ -307,14 +665,24 @@ public class Execution<T extends Task>
      * <p>If any tasks are in the process of being scheduled (the scheduler's
      * {@link TaskScheduler#submit(Object, TaskCompletionCallback) submit}
      * method has been called but has not yet returned a token), the associated
-     * nodes will be marked {@link NodeState#READY READY}.</p>
+     * nodes will be marked {@link NodeState#READY READY}, except for nodes of a
+     * fused chain whose dependency within the chain hasn't succeeded yet,
+     * which will be marked {@link NodeState#NOT_READY NOT_READY}.</p>
      */
     public FrozenExecution<T> freeze()
     {
         m_lock.lock();
         try
         {
-            return FrozenExecution.of(m_workflow, m_nodeStatuses);
+            if (m_fusedChains.isEmpty())
+            {
+                return FrozenExecution.of(m_workflow, m_nodeStatuses);
+            }
+            return FrozenExecution.of(m_workflow, Maps.transformEntries(
+                    m_nodeStatuses,
+                    (node, status) -> !status.getToken().isPresent() && m_fusedChains.containsKey(node)
+                            && !dependenciesSatisfied(node) ? NodeStatus.withoutToken(NodeState.NOT_READY) : status
+            ));
         }
         finally
         {
@@ -323,10 +691,9 @@ public class Execution<T extends Task>
     }
 
     /**
-     * Schedules tasks in a loop and waits for them to finish. Scheduling
-     * continues until every task with satisfied dependencies has run or the
-     * execution is interrupted. If a scheduled task fails, its output is
-     * removed.
+     * Schedules tasks and waits for them to finish. Scheduling continues
+     * until every task with satisfied dependencies has run or the execution
+     * is interrupted. If a scheduled task fails, its output is removed.
      *
      * @throws IllegalStateException if this execution is already running
      * @throws ExecutionException if a task fails
@@ -334,225 +701,1195 @@ public class Execution<T extends Task>
      */
     public void run() throws ExecutionException, InterruptedException
     {
-        m_lock.lock();
+        CompletableFuture<ExecutionResult<T>> completion = startRun(Thread.currentThread());
         try
         {
-            if (m_driverThread != null)
-            {
-                throw new IllegalStateException("Execution is already running");
-            }
-            m_driverThread = Thread.currentThread();
-            m_state = ExecutionState.RUNNING;
-
+            completion.get();
+        }
+        catch (InterruptedException e)
+        {
+            abandonRun(completion, e);
+        }
+        catch (ExecutionException e)
+        {
+            // Handled below
+        }
+        finally
+        {
+            m_lock.lock();
             try
             {
-                submitReadyNodes();
-
-                while (!m_nodesByState.get(NodeState.SCHEDULED).isEmpty()
-                        || !m_structureNodeQueue.isEmpty()
-                        || !m_taskNodeQueue.isEmpty())
-                {
-                    // Check for a queued structure node
-                    WorkflowNode<T> node = m_structureNodeQueue.poll();
-                    if (node != null)
-                    {
-                        updateDependentReadiness(node);
-                        submitReadyNodes();
-                        continue;  // In case this was the last node
-                    }
-
-                    // Wait for a queued task node
-                    TaskNodeCompletion<T> completion;
-                    while ((completion = m_taskNodeQueue.poll()) == null)
-                    {
-                        try
-                        {
-                            m_taskNodeAvailable.await();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            m_exceptions.add(e);
-                            throwStoredExceptions();
-                            throw e;
-                        }
-                    }
-
-                    node = completion.getNode();
-                    if (m_nodeStatuses.get(node).getState().equals(NodeState.SUCCEEDED))
-                    {
-                        updateDependentReadiness(node);
-                        submitReadyNodes();
-                    }
-                    else
-                    {
-                        if (m_shutdownOnFailure)
-                        {
-                            m_state = ExecutionState.SHUTDOWN;
-                        }
-
-                        m_exceptions.add(completion.newExecutionException());
-
-                        try
-                        {
-                            m_outputHandler.removeOutput(ImmutableSet.of(node),
-                                                         OutputRemovalReason.EXECUTION_FAILED);
-                        }
-                        catch (IOException e)
-                        {
-                            m_exceptions.add(e);
-                        }
-                    }
-                }
-
-                throwStoredExceptions();
-            }
-            catch (Exception e)
-            {
-                m_exceptions.add(e);
-                throwStoredExceptions();
-                throw e;
+                m_driverThread = null;
             }
             finally
             {
-                m_state = ExecutionState.IDLE;
-                m_driverThread = null;
+                m_lock.unlock();
             }
         }
-        finally
+
+        try
         {
-            m_lock.unlock();
+            Uninterruptibles.getUninterruptibly(completion);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+            Throwables.throwIfInstanceOf(cause, ExecutionException.class);
+            Throwables.throwIfUnchecked(cause);
+            throw new AssertionError("Unexpected checked exception", cause);
         }
     }
 
     /**
-     * Shuts down this execution and returns immediately. Scheduled tasks will
-     * continue to run, but no new tasks will be scheduled. The current call to
-     * {@link #run()} will return when all scheduled tasks have completed.
+     * Starts scheduling tasks and returns immediately. Scheduling continues
+     * on the threads that report task completion until every task with
+     * satisfied dependencies has run or the execution is shut down. If a
+     * scheduled task fails, its output is removed.
      *
-     * <p>If it does not coincide with a call to {@link #run()}, this method
-     * has no effect.</p>
+     * <p>The returned stage completes when all scheduled tasks have finished,
+     * usually on the thread that reported the last completion. If a task
+     * fails, the stage completes exceptionally with an
+     * {@link ExecutionException}.</p>
+     *
+     * @throws IllegalStateException if this execution is already running
      */
-    public void shutdown()
+    public CompletionStage<ExecutionResult<T>> start()
+    {
+        return startRun(null);
+    }
+
+    private CompletableFuture<ExecutionResult<T>> startRun(@Nullable Thread driverThread)
     {
+        CompletableFuture<ExecutionResult<T>> completion = new CompletableFuture<>();
+
         m_lock.lock();
         try
         {
-            if (m_state.equals(ExecutionState.RUNNING))
+            if (m_completion != null)
             {
-                m_state = ExecutionState.SHUTDOWN;
+                throw new IllegalStateException("Execution is already running");
             }
+            m_completion = completion;
+            m_driverThread = driverThread;
+            m_state = ExecutionState.RUNNING;
+            RUNNING_EXECUTIONS.add(this);
         }
         finally
         {
             m_lock.unlock();
         }
+
+        drive();
+        return completion;
     }
 
     /**
-     * Interrupts this execution and returns immediately. The current call to
-     * {@link #run()} should return shortly afterwards, possibly with an
-     * {@link InterruptedException}. Scheduled tasks are not intentionally
-     * interrupted (but keep in mind that if this execution is backed by a
-     * synchronous task scheduler, the interrupted scheduler thread could
-     * be in the middle of executing a task).
-     *
-     * <p>If it does not coincide with a call to {@link #run()}, this method
-     * has no effect.</p>
+     * Ends the given run early (if it is still the current run), completing
+     * it exceptionally with the given exception and any stored exceptions.
      */
-    public void interrupt()
+    private void abandonRun(CompletableFuture<ExecutionResult<T>> completion, Exception e)
     {
+        Runnable finisher = null;
+
         m_lock.lock();
         try
         {
-            if (m_driverThread != null)
+            if (m_completion == completion)
             {
-                m_driverThread.interrupt();
+                m_exceptions.add(e);
+                finisher = finishRun();
             }
         }
         finally
         {
             m_lock.unlock();
         }
-    }
 
-    @GuardedBy("m_lock")
-    private void registerCallbacks() throws InvalidTokenException
-    {
-        for (WorkflowNode<T> node : m_nodesByState.get(NodeState.SCHEDULED))
+        if (finisher != null)
         {
-            Optional<ScheduledTaskToken> token = m_nodeStatuses.get(node).getToken();
-            assert node.hasTask() : "Scheduled structure node";
-            assert token.isPresent() : "Missing token";
-            m_scheduler.registerCallback(token.get(), new QueueingCallback<>(this, (TaskNode<T>) node));
+            finisher.run();
         }
     }
 
-    @GuardedBy("m_lock")
-    private void updateReadiness()
+    /**
+     * Processes queued nodes and submits ready tasks until no work remains,
+     * then finishes the current run if no tasks are still scheduled, no
+     * output is still being removed and no sub-workflow is still being
+     * obtained. If this
+     * execution isn't running, or another thread is already doing this,
+     * returns immediately; anything queued in the meantime will be picked up
+     * by the thread that is already driving.
+     */
+    private void drive()
     {
-        updateReadiness(m_nodesByState.get(NodeState.NOT_READY).stream());
-    }
+        Runnable finisher;
 
+        m_lock.lock();
+        try
+        {
+            finisher = driveLocked();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        // Complete the run outside the lock, since dependent stages may run synchronously
+        if (finisher != null)
+        {
+            finisher.run();
+        }
+    }
+
+    /**
+     * Does the work of {@link #drive()} for a caller that already holds the
+     * lock, returning an action that completes the run if it has finished.
+     * The caller must run the action after releasing the lock.
+     */
+    @GuardedBy("m_lock")
+    @Nullable
+    private Runnable driveLocked()
+    {
+        if (m_completion == null || m_driving)
+        {
+            return null;
+        }
+        m_driving = true;
+
+        try
+        {
+            processQueuedNodes();
+
+            if (m_ordinalsByState.get(NodeState.SCHEDULED).isEmpty() && m_pendingCleanups == 0
+                    && m_pendingExpansions == 0)
+            {
+                return finishRun();
+            }
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            m_exceptions.add(e);
+            return finishRun();
+        }
+        finally
+        {
+            m_driving = false;
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private void processQueuedNodes()
+    {
+        submitReadyNodes();
+
+        while (!m_structureNodeQueue.isEmpty() || !m_succeededTaskNodeQueue.isEmpty() || !m_failureQueue.isEmpty()
+                || !m_retryQueue.isEmpty())
+        {
+            if (!m_retryQueue.isEmpty())
+            {
+                resubmitQueuedRetries();
+                continue;
+            }
+
+            // Drain everything queued so far, then submit whatever became ready in one pass.
+            // Completions queued while submitting (which releases the lock) form the next batch.
+            WorkflowNode<T> node;
+            while ((node = m_structureNodeQueue.poll()) != null)
+            {
+                updateDependentReadiness(node);
+            }
+
+            boolean taskSucceeded = !m_succeededTaskNodeQueue.isEmpty();
+            while ((node = m_succeededTaskNodeQueue.poll()) != null)
+            {
+                updateDependentReadiness(node);
+            }
+
+            NodeFailure<T> failure;
+            while ((failure = m_failureQueue.poll()) != null)
+            {
+                processFailure(failure);
+            }
+
+            submitReadyNodes(taskSucceeded
+                                     && m_continuationAffinity
+                                     && m_ordinalsByState.get(NodeState.READY).cardinality() == 1);
+        }
+    }
+
+    /**
+     * Records the failure of a node, shutting down if appropriate.
+     */
+    @GuardedBy("m_lock")
+    private void processFailure(NodeFailure<T> failure)
+    {
+        if (m_shutdownOnFailure && m_state == ExecutionState.RUNNING)
+        {
+            m_state = ExecutionState.SHUTDOWN;
+            abandonPendingRetries();
+        }
+
+        m_exceptions.add(failure.newExecutionException());
+        removeFailedOutput(failure.getNode());
+    }
+
+    /**
+     * Removes the output of a failed node on the cleanup executor, or on
+     * this thread if the executor rejects the removal.
+     */
+    @GuardedBy("m_lock")
+    private void removeFailedOutput(WorkflowNode<T> node)
+    {
+        CompletableFuture<ExecutionResult<T>> completion = m_completion;
+        m_pendingCleanups++;
+        Runnable cleanup = () ->
+        {
+            Exception failure = null;
+            try
+            {
+                m_outputHandler.removeOutput(ImmutableSet.of(node), OutputRemovalReason.EXECUTION_FAILED);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                failure = e;
+            }
+            finishCleanup(completion, failure);
+        };
+
+        try
+        {
+            getCleanupExecutor().execute(cleanup);
+        }
+        catch (RejectedExecutionException e)
+        {
+            cleanup.run();
+        }
+    }
+
+    /**
+     * Accounts for the end of a background output removal started during
+     * the given run, storing any failure if that run is still current.
+     */
+    private void finishCleanup(@Nullable CompletableFuture<ExecutionResult<T>> completion,
+                               @Nullable Exception failure)
+    {
+        m_lock.lock();
+        try
+        {
+            m_pendingCleanups--;
+            if (failure != null && completion != null && completion == m_completion)
+            {
+                m_exceptions.add(failure);
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        drive();
+    }
+
+    /**
+     * Marks the current run as finished and returns an action that completes
+     * it, either normally or with the stored exceptions. The action should be
+     * invoked after releasing the lock.
+     */
+    @GuardedBy("m_lock")
+    private Runnable finishRun()
+    {
+        CompletableFuture<ExecutionResult<T>> completion = m_completion;
+        assert completion != null : "Not running";
+
+        m_completion = null;
+        m_state = ExecutionState.IDLE;
+        RUNNING_EXECUTIONS.remove(this);
+
+        Exception failure = takeStoredException();
+        if (failure != null)
+        {
+            return () -> completion.completeExceptionally(failure);
+        }
+
+        ExecutionResult<T> result = ExecutionResult.of(m_nodeStatuses);
+        return () -> completion.complete(result);
+    }
+
+    /**
+     * Shuts down this execution and returns immediately. Scheduled tasks will
+     * continue to run, but no new tasks will be scheduled. The current call to
+     * {@link #run()} will return (or the stage returned by {@link #start()}
+     * will complete) when all scheduled tasks have completed. Tasks waiting
+     * to be retried (see {@link RetryableTask}) fail without being retried.
+     *
+     * <p>If this execution is not running, this method has no effect.</p>
+     */
+    public void shutdown()
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_state.equals(ExecutionState.RUNNING))
+            {
+                m_state = ExecutionState.SHUTDOWN;
+                abandonPendingRetries();
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        drive();
+    }
+
+    /**
+     * Queues nodes that are waiting to retry, so that they
+     * fail without waiting for their retry delay to elapse.
+     */
+    @GuardedBy("m_lock")
+    private void abandonPendingRetries()
+    {
+        for (Entry<WorkflowNode<T>, Attempts> e : m_attempts.entrySet())
+        {
+            Attempts attempts = e.getValue();
+            if (attempts.m_outstanding == 0 && attempts.m_pendingResubmission != null)
+            {
+                attempts.m_pendingResubmission.cancel(false);
+                attempts.m_pendingResubmission = null;
+                m_retryQueue.add((TaskNode<T>) e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Interrupts this execution and returns immediately. The current call to
+     * {@link #run()} should return shortly afterwards, possibly with an
+     * {@link InterruptedException}. Scheduled tasks are not intentionally
+     * interrupted (but keep in mind that if this execution is backed by a
+     * synchronous task scheduler, the interrupted scheduler thread could
+     * be in the middle of executing a task).
+     *
+     * <p>If it does not coincide with a call to {@link #run()}, this method
+     * has no effect.</p>
+     */
+    public void interrupt()
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_driverThread != null)
+            {
+                m_driverThread.interrupt();
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private void registerCallbacks() throws InvalidTokenException
+    {
+        for (WorkflowNode<T> node : getNodes(NodeState.SCHEDULED))
+        {
+            Optional<ScheduledTaskToken> token = m_nodeStatuses.get(node).getToken();
+            assert node.hasTask() : "Scheduled structure node";
+            assert token.isPresent() : "Missing token";
+            m_scheduler.registerCallback(token.get(), getCallback((TaskNode<T>) node));
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private void updateReadiness()
+    {
+        getNodes(NodeState.NOT_READY).forEach(this::updateReadiness);
+    }
+
+    // Runs once per completed node, so avoids streams and other allocation
+    @GuardedBy("m_lock")
+    private void updateDependentReadiness(WorkflowNode<T> node)
+    {
+        for (WorkflowNode<T> dependent : node.getDependents())
+        {
+            updateReadinessIfNotReady(dependent);
+        }
+        for (WorkflowNode<T> dependent : m_workflow.getAddedDependents(node))
+        {
+            updateReadinessIfNotReady(dependent);
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private void updateReadinessIfNotReady(WorkflowNode<T> dependent)
+    {
+        if (m_workflow.containsNode(dependent) && m_nodeStatuses.get(dependent).getState().equals(NodeState.NOT_READY))
+        {
+            updateReadiness(dependent);
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private void updateReadiness(WorkflowNode<T> potentiallyReadyNode)
+    {
+        if (dependenciesSatisfied(potentiallyReadyNode))
+        {
+            updateStatus(potentiallyReadyNode, NodeState.READY);
+        }
+    }
+
+    @GuardedBy("m_lock")
+    private boolean dependenciesSatisfied(WorkflowNode<T> node)
+    {
+        for (WorkflowNode<T> dependency : m_workflow.getDependencies(node))
+        {
+            if (!m_nodeStatuses.get(dependency).getState().satisfiesDependency())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the nodes in the given state.
+     */
+    @GuardedBy("m_lock")
+    private List<WorkflowNode<T>> getNodes(NodeState state)
+    {
+        return m_ordinalsByState.get(state).stream().mapToObj(m_workflow::getNode).collect(toList());
+    }
+
+    @GuardedBy("m_lock")
+    private void submitReadyNodes()
+    {
+        submitReadyNodes(false);
+    }
+
+    /**
+     * Submits ready nodes. If there is a single ready node, its task may be
+     * submitted as a continuation of the task that has just completed.
+     */
+    @GuardedBy("m_lock")
+    private void submitReadyNodes(boolean continuation)
+    {
+        BitSet readyOrdinals = m_ordinalsByState.get(NodeState.READY);
+        while (m_state == ExecutionState.RUNNING && !readyOrdinals.isEmpty())
+        {
+            int ordinal = readyOrdinals.nextSetBit(0);
+            WorkflowNode<T> node = m_workflow.getNode(ordinal);
+            readyOrdinals.clear(ordinal);
+
+            if (node.hasTask())
+            {
+                // We want to store the token from the m_taskExecutor.submit() call in the node's
+                // state object. However, in the case of a direct executor, submit() will do the
+                // actual task execution and invoke a completion callback before we get a token.
+                // To begin with, set the state to SCHEDULED with no token.
+                List<TaskNode<T>> chain = findFusibleChain((TaskNode<T>) node);
+                if (chain.size() > 1)
+                {
+                    submitUnit(chain, true);
+                    continue;
+                }
+
+                List<TaskNode<T>> batch = takeBatch((TaskNode<T>) node, readyOrdinals);
+                if (batch.size() > 1)
+                {
+                    submitUnit(batch, false);
+                    continue;
+                }
+
+                updateStatus(node, NodeState.SCHEDULED);
+                trackAttempts((TaskNode<T>) node);
+                submitTask((TaskNode<T>) node, continuation);
+            }
+            else if (node instanceof SubWorkflowNode)
+            {
+                expandSubWorkflow((SubWorkflowNode<T>) node);
+            }
+            else
+            {
+                updateStatus(node, NodeState.SUCCEEDED);
+                m_structureNodeQueue.add(node);
+            }
+        }
+    }
+
+    /**
+     * Obtains the sub-workflow of a ready node on the cleanup executor, or on
+     * this thread with the lock released if the executor rejects it, since
+     * the source is user code and may be slow. The node stays ready, though
+     * out of the ready set, until the sub-workflow is spliced in.
+     */
+    @GuardedBy("m_lock")
+    private void expandSubWorkflow(SubWorkflowNode<T> node)
+    {
+        m_pendingExpansions++;
+        Runnable expansion = () ->
+        {
+            Collection<? extends WorkflowNode.Builder<T>> builders = null;
+            RuntimeException failure = null;
+            try
+            {
+                builders = node.expand();
+            }
+            catch (RuntimeException e)
+            {
+                failure = e;
+            }
+            finishExpansion(node, builders, failure);
+        };
+
+        try
+        {
+            getCleanupExecutor().execute(expansion);
+        }
+        catch (RejectedExecutionException e)
+        {
+            m_lock.unlock();
+            try
+            {
+                expansion.run();
+            }
+            finally
+            {
+                m_lock.lock();
+            }
+        }
+    }
+
+    /**
+     * Accounts for the end of a background sub-workflow expansion,
+     * splicing in the sub-workflow if it was obtained.
+     */
+    private void finishExpansion(SubWorkflowNode<T> node,
+                                 @Nullable Collection<? extends WorkflowNode.Builder<T>> expansion,
+                                 @Nullable RuntimeException failure)
+    {
+        m_lock.lock();
+        try
+        {
+            m_pendingExpansions--;
+            spliceSubWorkflow(node, expansion, failure);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        drive();
+    }
+
+    /**
+     * Splices an obtained sub-workflow into the workflow, then completes its
+     * node like a structure node, or fails the node if the sub-workflow
+     * couldn't be obtained or spliced.
+     */
+    @GuardedBy("m_lock")
+    private void spliceSubWorkflow(SubWorkflowNode<T> node,
+                                   @Nullable Collection<? extends WorkflowNode.Builder<T>> expansion,
+                                   @Nullable RuntimeException failure)
+    {
+        // As in submitTask(), only carry on if the node's state hasn't changed. If the execution
+        // stopped in the meantime, put the node back in the ready set to be expanded on resumption.
+        if (!m_workflow.containsNode(node) || !m_nodeStatuses.get(node).getState().equals(NodeState.READY))
+        {
+            return;
+        }
+        if (m_state != ExecutionState.RUNNING)
+        {
+            m_ordinalsByState.get(NodeState.READY).set(node.getOrdinal());
+            return;
+        }
+
+        if (failure == null)
+        {
+            try
+            {
+                splice(node, expansion);
+            }
+            catch (RuntimeException e)
+            {
+                failure = e;
+            }
+        }
+        if (failure != null)
+        {
+            updateStatus(node, NodeState.FAILED);
+            m_failureQueue.add(new NodeFailure<>(node, "Invalid sub-workflow", failure));
+            return;
+        }
+        updateStatus(node, NodeState.SUCCEEDED);
+        m_structureNodeQueue.add(node);
+    }
+
+    /**
+     * Submits the task of a scheduled node and records the resulting token.
+     */
+    @GuardedBy("m_lock")
+    private void submitTask(TaskNode<T> node)
+    {
+        submitTask(node, false);
+    }
+
+    /**
+     * Submits the task of a scheduled node, optionally as a continuation of
+     * the task that has just completed, and records the resulting token.
+     */
+    @GuardedBy("m_lock")
+    private void submitTask(TaskNode<T> node, boolean continuation)
+    {
+        Attempts attempts = m_attempts.get(node);
+        int failures = attempts == null ? 0 : attempts.m_failures;
+
+        // Retries have already missed the cache
+        TaskResultCache resultCache = m_resultCache;
+        if (resultCache != null && failures == 0 && node.getTask() instanceof CacheableTask
+                && !(node instanceof ExpandingNode))
+        {
+            submitAfterCacheLookup(node, resultCache, attempts);
+            return;
+        }
+
+        // Submit the task, temporarily releasing the lock in case submit() blocks
+        SharedTaskRegistry sharedTaskRegistry = m_sharedTaskRegistry;
+        QueueingCallback<T> callback = getCallback(node);
+        ScheduledTaskToken token;
+        m_lock.unlock();
+        try
+        {
+            token = submitToScheduler(node, callback, sharedTaskRegistry, continuation);
+        }
+        finally
+        {
+            m_lock.lock();
+        }
+        recordToken(node, token, attempts, failures);
+    }
+
+    /**
+     * Looks up the output of a scheduled node's task in the result cache on
+     * the cleanup executor, so that reading input and copying output don't
+     * hold up the processing of other completions. If the output is found,
+     * it is restored and the node succeeds; otherwise, the task is submitted
+     * and its output is cached when it succeeds.
+     */
+    @GuardedBy("m_lock")
+    private void submitAfterCacheLookup(TaskNode<T> node, TaskResultCache resultCache, @Nullable Attempts attempts)
+    {
+        SharedTaskRegistry sharedTaskRegistry = m_sharedTaskRegistry;
+        QueueingCallback<T> callback = getCallback(node);
+        Runnable lookup = () ->
+        {
+            String actionKey = getActionKey(node, resultCache);
+            if (actionKey != null && restoreOutput(node, resultCache, actionKey))
+            {
+                callback.reportSuccess();
+                return;
+            }
+
+            callback.setResultCache(resultCache, actionKey);
+            ScheduledTaskToken token = submitToScheduler(node, callback, sharedTaskRegistry, false);
+            m_lock.lock();
+            try
+            {
+                recordToken(node, token, attempts, 0);
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+        };
+
+        try
+        {
+            getCleanupExecutor().execute(lookup);
+        }
+        catch (RejectedExecutionException e)
+        {
+            m_lock.unlock();
+            try
+            {
+                lookup.run();
+            }
+            finally
+            {
+                m_lock.lock();
+            }
+        }
+    }
+
+    /**
+     * Submits the task of a node through the shared task registry, if any,
+     * or to the scheduler, returning the resulting token.
+     */
+    @Nullable
+    private ScheduledTaskToken submitToScheduler(TaskNode<T> node, TaskCompletionCallback callback,
+                                                 @Nullable SharedTaskRegistry sharedTaskRegistry,
+                                                 boolean continuation)
+    {
+        if (sharedTaskRegistry != null)
+        {
+            return sharedTaskRegistry.submit(node, m_scheduler, callback);
+        }
+        if (continuation && m_scheduler instanceof ContinuingTaskScheduler)
+        {
+            return ((ContinuingTaskScheduler<? super T>) m_scheduler).submitContinuation(node.getTask(), callback);
+        }
+        return m_scheduler.submit(node.getTask(), callback);
+    }
+
+    /**
+     * Records the token of a submitted task, given the node's attempts and
+     * their failure count at the time of submission.
+     */
+    @GuardedBy("m_lock")
+    private void recordToken(TaskNode<T> node, @Nullable ScheduledTaskToken token, @Nullable Attempts attempts,
+                             int failures)
+    {
+        // Only update state if submit() didn't do it for us, either by completing the node or by
+        // failing an attempt that is now awaiting retry. A shared task may not have a token yet,
+        // in which case the node stays scheduled without one until completion.
+        if (token != null
+                && m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED)
+                && (attempts == null || attempts.m_failures == failures))
+        {
+            updateStatus(node, NodeStatus.scheduledWithToken(token));
+        }
+    }
+
+    /**
+     * Returns the chain of tasks to submit as a single unit starting with
+     * the given ready node. Returns a list of fewer than two nodes if the
+     * node should be submitted on its own.
+     */
+    @GuardedBy("m_lock")
+    private List<TaskNode<T>> findFusibleChain(TaskNode<T> node)
+    {
+        if (!m_taskFusion || !(m_scheduler instanceof FusingTaskScheduler) || m_sharedTaskRegistry != null
+                || !isFusible(node))
+        {
+            return Collections.emptyList();
+        }
+
+        List<TaskNode<T>> chain = new ArrayList<>();
+        chain.add(node);
+        for (WorkflowNode<T> current = node; ; )
+        {
+            Set<WorkflowNode<T>> dependents = m_workflow.getDependents(current);
+            if (dependents.size() != 1)
+            {
+                return chain;
+            }
+
+            WorkflowNode<T> next = dependents.iterator().next();
+            if (m_workflow.getDependencies(next).size() != 1
+                    || !m_nodeStatuses.get(next).getState().equals(NodeState.NOT_READY)
+                    || !isFusible(next))
+            {
+                return chain;
+            }
+            chain.add((TaskNode<T>) next);
+            current = next;
+        }
+    }
+
+    /**
+     * Returns a batch of tasks to submit as a single unit starting with the
+     * given ready node, removing the other nodes in the batch from the given
+     * set of ready ordinals. Returns a list of fewer than two nodes if the
+     * node should be submitted on its own.
+     */
+    @GuardedBy("m_lock")
+    private List<TaskNode<T>> takeBatch(TaskNode<T> node, BitSet readyOrdinals)
+    {
+        Duration batchThreshold = m_batchThreshold;
+        if (batchThreshold == null || !(m_scheduler instanceof FusingTaskScheduler) || m_sharedTaskRegistry != null
+                || !isBatchable(node, batchThreshold))
+        {
+            return Collections.emptyList();
+        }
+
+        int maxBatchSize = m_maxBatchSize;
+        List<TaskNode<T>> batch = new ArrayList<>();
+        batch.add(node);
+        for (int i = readyOrdinals.nextSetBit(0); i >= 0 && batch.size() < maxBatchSize;
+                i = readyOrdinals.nextSetBit(i + 1))
+        {
+            WorkflowNode<T> other = m_workflow.getNode(i);
+            if (isBatchable(other, batchThreshold))
+            {
+                readyOrdinals.clear(i);
+                batch.add((TaskNode<T>) other);
+            }
+        }
+        return batch;
+    }
+
+    private boolean isBatchable(WorkflowNode<T> node, Duration batchThreshold)
+    {
+        return isFusible(node)
+                && node.getTask() instanceof BatchableTask
+                && ((BatchableTask) node.getTask()).getCostHint().compareTo(batchThreshold) < 0;
+    }
+
+    /**
+     * Returns whether a node's task can run as part of a fused chain or a
+     * batch, which rules out tasks that may need to be resubmitted, restored
+     * from the result cache or expanded.
+     */
+    private boolean isFusible(WorkflowNode<T> node)
+    {
+        if (!node.hasTask() || node instanceof ExpandingNode)
+        {
+            return false;
+        }
+
+        T task = node.getTask();
+        return !(task instanceof RetryableTask)
+                && !(task instanceof SpeculativeTask && m_speculationPolicy != null)
+                && !(task instanceof CacheableTask && m_resultCache != null);
+    }
+
+    /**
+     * Submits the tasks of a fused chain or a batch of nodes as a single
+     * unit, scheduling every node in it, and records the resulting tokens.
+     */
+    @GuardedBy("m_lock")
+    private void submitUnit(List<TaskNode<T>> unit, boolean fused)
+    {
+        List<T> tasks = new ArrayList<>(unit.size());
+        List<TaskCompletionCallback> callbacks = new ArrayList<>(unit.size());
+        for (TaskNode<T> node : unit)
+        {
+            updateStatus(node, NodeState.SCHEDULED);
+            if (fused)
+            {
+                m_fusedChains.put(node, unit);
+            }
+            tasks.add(node.getTask());
+            callbacks.add(getCallback(node));
+        }
+
+        // Submit the tasks, temporarily releasing the lock in case submission blocks
+        FusingTaskScheduler<? super T> scheduler = (FusingTaskScheduler<? super T>) m_scheduler;
+        List<ScheduledTaskToken> tokens;
+        m_lock.unlock();
+        try
+        {
+            tokens = fused ? scheduler.submitFused(tasks, callbacks) : scheduler.submitBatch(tasks, callbacks);
+        }
+        finally
+        {
+            m_lock.lock();
+        }
+
+        // As in submitTask(), only record tokens for nodes that haven't completed yet
+        for (int i = 0; i < unit.size(); i++)
+        {
+            TaskNode<T> node = unit.get(i);
+            ScheduledTaskToken token = tokens.get(i);
+            if (token != null && m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED))
+            {
+                updateStatus(node, NodeStatus.scheduledWithToken(token));
+            }
+        }
+    }
+
+    /**
+     * Accounts for the completion of a node that may have been submitted as
+     * part of a fused chain. If the node failed, the nodes after it in the
+     * chain won't run, so they go back to not being ready.
+     */
     @GuardedBy("m_lock")
-    private void updateDependentReadiness(WorkflowNode<T> node)
+    private void completeFusedNode(WorkflowNode<T> node, NodeState state)
     {
-        updateReadiness(
-                node.getDependents().stream()
-                        .filter(dependent -> m_nodeStatuses.get(dependent).getState().equals(NodeState.NOT_READY))
-        );
+        List<TaskNode<T>> chain = m_fusedChains.remove(node);
+        if (chain == null || !state.equals(NodeState.FAILED))
+        {
+            return;
+        }
+
+        for (TaskNode<T> later : chain.subList(chain.indexOf(node) + 1, chain.size()))
+        {
+            m_fusedChains.remove(later);
+            if (m_nodeStatuses.get(later).getState().equals(NodeState.SCHEDULED))
+            {
+                updateStatus(later, NodeState.NOT_READY);
+            }
+        }
+    }
+
+    /**
+     * Returns the key under which the output of a node's task is cached,
+     * or null if the task can't be cached.
+     */
+    @Nullable
+    private String getActionKey(TaskNode<T> node, TaskResultCache resultCache)
+    {
+        try
+        {
+            return resultCache.getActionKey(m_workflow, node, m_outputHandler).orElse(null);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Restores the output of a node's task from the cache,
+     * returning whether it was found.
+     */
+    private boolean restoreOutput(TaskNode<T> node, TaskResultCache resultCache, String actionKey)
+    {
+        try
+        {
+            return resultCache.restore(actionKey, node.getTask().getOutputs());
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
     }
 
+    /**
+     * Resubmits the tasks of nodes whose retry delay has elapsed. If this
+     * execution is no longer running, the nodes fail instead.
+     */
     @GuardedBy("m_lock")
-    private void updateReadiness(Stream<WorkflowNode<T>> potentiallyReadyNodes)
+    private void resubmitQueuedRetries()
     {
-        potentiallyReadyNodes
-                .filter(dependent -> dependent.getDependencies().stream()
-                        .allMatch(dependency -> m_nodeStatuses.get(dependency).getState().satisfiesDependency()))
-                .forEach(dependent -> updateStatus(dependent, NodeState.READY));
+        while (!m_retryQueue.isEmpty())
+        {
+            TaskNode<T> node = m_retryQueue.remove();
+            Attempts attempts = m_attempts.get(node);
+            if (attempts == null || attempts.m_outstanding != 0)
+            {
+                // Already resubmitted or abandoned
+                continue;
+            }
+
+            if (m_state == ExecutionState.RUNNING)
+            {
+                startAttempt(node, attempts);
+                submitTask(node);
+            }
+            else
+            {
+                m_attempts.remove(node);
+                updateStatus(node, NodeState.FAILED);
+                m_failureQueue.add(new NodeFailure<>(node, attempts.m_lastFailureMessage,
+                                                     attempts.m_lastFailureCause));
+            }
+        }
     }
 
+    /**
+     * Starts tracking attempts for a newly scheduled node if its
+     * task might need to be resubmitted.
+     */
     @GuardedBy("m_lock")
-    private void submitReadyNodes()
+    private void trackAttempts(TaskNode<T> node)
     {
-        Set<WorkflowNode<T>> readyNodes = m_nodesByState.get(NodeState.READY);
-        while (m_state == ExecutionState.RUNNING && !readyNodes.isEmpty())
+        T task = node.getTask();
+        SpeculationPolicy speculationPolicy = task instanceof SpeculativeTask ? m_speculationPolicy : null;
+        RetryPolicy retryPolicy = task instanceof RetryableTask ? ((RetryableTask) task).getRetryPolicy() : null;
+        if (speculationPolicy == null && retryPolicy == null)
         {
-            Iterator<WorkflowNode<T>> iter = readyNodes.iterator();
-            WorkflowNode<T> node = iter.next();
-            iter.remove();
+            return;
+        }
 
-            if (node.hasTask())
+        Attempts attempts = new Attempts(speculationPolicy, retryPolicy);
+        m_attempts.put(node, attempts);
+        startAttempt(node, attempts);
+    }
+
+    /**
+     * Prepares to submit a node's task, scheduling
+     * speculative resubmission if appropriate.
+     */
+    @GuardedBy("m_lock")
+    private void startAttempt(TaskNode<T> node, Attempts attempts)
+    {
+        attempts.m_startNanos = System.nanoTime();
+        attempts.m_outstanding = 1;
+
+        SpeculationPolicy speculationPolicy = attempts.m_speculationPolicy;
+        if (speculationPolicy != null)
+        {
+            speculationPolicy.getSpeculationDelay(node.getKey()).ifPresent(delay -> attempts.m_pendingResubmission =
+                    getTimer().schedule(() -> speculate(node, attempts), delay.toNanos(), TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Submits an additional attempt at running a straggling task.
+     */
+    private void speculate(TaskNode<T> node, Attempts attempts)
+    {
+        TaskCompletionCallback callback;
+        m_lock.lock();
+        try
+        {
+            attempts.m_pendingResubmission = null;
+            if (m_state != ExecutionState.RUNNING || m_attempts.get(node) != attempts || attempts.m_outstanding == 0)
             {
-                // We want to store the token from the m_taskExecutor.submit() call in the node's
-                // state object. However, in the case of a direct executor, submit() will do the
-                // actual task execution and invoke a completion callback before we get a token.
-                // To begin with, set the state to SCHEDULED with no token.
-                updateStatus(node, NodeState.SCHEDULED);
+                return;
+            }
+            attempts.m_outstanding++;
+            callback = getCallback(node);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
 
-                // Submit the task, temporarily releasing the lock in case submit() blocks
-                ScheduledTaskToken token;
-                m_lock.unlock();
-                try
-                {
-                    token = m_scheduler.submit(node.getTask(), new QueueingCallback<>(this, (TaskNode<T>) node));
-                }
-                finally
-                {
-                    m_lock.lock();
-                }
+        try
+        {
+            m_scheduler.submit(node.getTask(), callback);
+        }
+        catch (RuntimeException e)
+        {
+            // Only fails the node if no other attempt is outstanding
+            callback.reportFailure("Task could not be resubmitted", e);
+        }
+    }
 
-                // Only update state if submit() didn't do it for us
-                if (m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED))
-                {
-                    updateStatus(node, NodeStatus.scheduledWithToken(token));
-                }
+    /**
+     * Queues a node whose retry delay has elapsed for resubmission.
+     */
+    private void queueRetry(TaskNode<T> node, Attempts attempts)
+    {
+        m_lock.lock();
+        try
+        {
+            attempts.m_pendingResubmission = null;
+            if (m_attempts.get(node) != attempts)
+            {
+                return;
             }
-            else
+            m_retryQueue.add(node);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        drive();
+    }
+
+    /**
+     * Accounts for the completion of an attempt at running the task of a
+     * scheduled node, returning whether it determines the outcome of the
+     * node. A failed attempt is ignored while other attempts are
+     * outstanding, and a retryable failure schedules a new attempt.
+     */
+    @GuardedBy("m_lock")
+    private boolean completeAttempt(TaskNode<T> node, NodeState state,
+                                    @Nullable String message, @Nullable Throwable cause)
+    {
+        Attempts attempts = m_attempts.get(node);
+        if (attempts == null)
+        {
+            return true;
+        }
+
+        if (state.equals(NodeState.FAILED) && attempts.m_outstanding > 1)
+        {
+            attempts.m_outstanding--;
+            return false;
+        }
+
+        if (attempts.m_pendingResubmission != null)
+        {
+            attempts.m_pendingResubmission.cancel(false);
+            attempts.m_pendingResubmission = null;
+        }
+
+        if (state.equals(NodeState.SUCCEEDED))
+        {
+            m_attempts.remove(node);
+            if (attempts.m_speculationPolicy != null)
             {
-                updateStatus(node, NodeState.SUCCEEDED);
-                m_structureNodeQueue.add((StructureNode<T>) node);
+                attempts.m_speculationPolicy.recordRunTime(
+                        node.getKey(), Duration.ofNanos(System.nanoTime() - attempts.m_startNanos));
             }
+            return true;
+        }
+
+        attempts.m_failures++;
+        RetryPolicy retryPolicy = attempts.m_retryPolicy;
+        if (m_state == ExecutionState.RUNNING
+                && retryPolicy != null
+                && retryPolicy.shouldRetry(attempts.m_failures, cause))
+        {
+            attempts.m_outstanding = 0;
+            attempts.m_lastFailureMessage = message;
+            attempts.m_lastFailureCause = cause;
+
+            // Drop the failed attempt's token, so that freezing the execution
+            // while waiting to retry results in the node being resubmitted
+            updateStatus(node, NodeState.SCHEDULED);
+
+            Duration backoff = retryPolicy.getBackoff(attempts.m_failures);
+            attempts.m_pendingResubmission = getTimer().schedule(
+                    () -> queueRetry(node, attempts), backoff.toNanos(), TimeUnit.NANOSECONDS);
+            return false;
+        }
+
+        m_attempts.remove(node);
+        return true;
+    }
+
+    /**
+     * Claims a scheduled node for an attempt that has succeeded, if no
+     * other attempt has completed it or claimed it first.
+     */
+    @GuardedBy("m_lock")
+    private boolean claimSuccess(TaskNode<T> node)
+    {
+        if (!m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED)
+                || m_claimedOrdinals.get(node.getOrdinal()))
+        {
+            return false;
+        }
+        completeAttempt(node, NodeState.SUCCEEDED, null, null);
+        m_claimedOrdinals.set(node.getOrdinal());
+        return true;
+    }
+
+    /**
+     * Returns whether a node's task may be submitted again while an earlier
+     * attempt is still outstanding, so that attempts race to complete it.
+     */
+    private static boolean mayHaveRivalAttempts(WorkflowNode<?> node)
+    {
+        return node.getTask() instanceof SpeculativeTask || node.getTask() instanceof RetryableTask;
+    }
+
+    /**
+     * Splices the expansion of a node whose task has succeeded, or of a
+     * ready sub-workflow node, into the workflow. The new nodes start out
+     * not ready; the node's descendants are kept, along with their statuses.
+     *
+     * @throws IllegalArgumentException if the expansion is invalid
+     */
+    @GuardedBy("m_lock")
+    private void splice(WorkflowNode<T> node, Collection<? extends WorkflowNode.Builder<T>> expansion)
+    {
+        Workflow<T> workflow = m_workflow.withExpansion(node, expansion);
+
+        // Added nodes follow the existing ordinals
+        for (int i = m_workflow.getOrdinalBound(); i < workflow.getOrdinalBound(); i++)
+        {
+            updateStatus(workflow.getNode(i), NodeState.NOT_READY);
         }
+        m_workflow = workflow;
     }
 
     // @GuardedBy("m_lock")
@@ -564,64 +1901,78 @@ public class Execution<T extends Task>
     // @GuardedBy("m_lock")
     private void updateStatus(WorkflowNode<T> node, NodeStatus status)
     {
-        m_nodeStatuses.put(node, status);
+        NodeStatus previous = m_nodeStatuses.put(node, status);
+        if (previous != null)
+        {
+            m_ordinalsByState.get(previous.getState()).clear(node.getOrdinal());
+        }
+        m_ordinalsByState.get(status.getState()).set(node.getOrdinal());
+    }
+
+    /**
+     * Returns the completion callback of a task node,
+     * allocating it on first use.
+     */
+    // @GuardedBy("m_lock")
+    private QueueingCallback<T> getCallback(TaskNode<T> node)
+    {
+        int ordinal = node.getOrdinal();
+        while (m_callbacks.size() <= ordinal)
+        {
+            m_callbacks.add(null);
+        }
 
-        for (Entry<NodeState, Set<WorkflowNode<T>>> e : m_nodesByState.entrySet())
+        QueueingCallback<T> callback = m_callbacks.get(ordinal);
+        if (callback == null)
         {
-            if (e.getKey().equals(status.getState()))
-            {
-                e.getValue().add(node);
-            }
-            else
-            {
-                e.getValue().remove(node);
-            }
+            callback = new QueueingCallback<>(m_weakSelf, ordinal);
+            m_callbacks.set(ordinal, callback);
         }
+        return callback;
     }
 
     /**
-     * If the list of stored exceptions contains any exceptions, throws the
+     * If the list of stored exceptions contains any exceptions, returns the
      * most important one, with the rest attached as suppressed exceptions.
-     * Otherwise, returns normally. Clears the stored exception list.
+     * Otherwise, returns {@code null}. Clears the stored exception list.
      *
-     * <p>Unchecked exceptions and checked exceptions of an unexpected type are
-     * considered most important, followed by instances of ExecutionException
-     * and InterruptedException. Unexpected checked exceptions are wrapped in
-     * an AssertionError.</p>
+     * <p>Unchecked exceptions are considered most important, followed by
+     * instances of ExecutionException and InterruptedException.</p>
      *
-     * <p>It's possible for the list to contain an IOException, but it should
-     * always be accompanied by an ExecutionException, so the top-level
-     * exception can't be an IOException.</p>
+     * <p>It's possible for the list to contain an IOException from removing
+     * the output of a failed node, but it should always be accompanied by the
+     * ExecutionException for that node, so the top-level exception can't be
+     * an IOException. Other I/O errors, such as failure to record
+     * fingerprints, are stored wrapped in an ExecutionException.</p>
      */
     @GuardedBy("m_lock")
-    private void throwStoredExceptions() throws ExecutionException, InterruptedException
+    @Nullable
+    private Exception takeStoredException()
     {
         m_exceptions.sort(Comparator.comparing(InterruptedException.class::isInstance)
                                   .thenComparing(IOException.class::isInstance)
                                   .thenComparing(ExecutionException.class::isInstance));
 
         Iterator<Exception> iter = m_exceptions.iterator();
-        if (iter.hasNext())
+        if (!iter.hasNext())
         {
-            Exception toThrow = iter.next();
-            iter.forEachRemaining(toThrow::addSuppressed);
-            m_exceptions.clear();
-
-            Throwables.throwIfInstanceOf(toThrow, InterruptedException.class);
-            Throwables.throwIfInstanceOf(toThrow, ExecutionException.class);
-            Throwables.throwIfUnchecked(toThrow);
-            throw new AssertionError("Unexpected checked exception", toThrow);
+            return null;
         }
+
+        Exception top = iter.next();
+        iter.forEachRemaining(top::addSuppressed);
+        m_exceptions.clear();
+        return top;
     }
 
     /**
-     * Record of a task execution finishing (successfully or otherwise).
-     * References the corresponding node and an optional failure cause.
-     * The lack of a failure cause does not indicate success.
+     * Record of a task execution failing, or of a sub-workflow failing to
+     * expand. References the corresponding node and an optional message and
+     * failure cause. Successful completions queue just the node.
      */
-    private static class TaskNodeCompletion<U extends Task>
+    private static class NodeFailure<U extends Task>
     {
-        private final TaskNode<U> m_node;
+        private final WorkflowNode<U> m_node;
 
         @Nullable
         private final String m_message;
@@ -629,21 +1980,22 @@ public class Execution<T extends Task>
         @Nullable
         private final Throwable m_failureCause;
 
-        public TaskNodeCompletion(TaskNode<U> node, @Nullable String message, @Nullable Throwable failureCause)
+        public NodeFailure(WorkflowNode<U> node, @Nullable String message, @Nullable Throwable failureCause)
         {
             m_node = node;
             m_message = message;
             m_failureCause = failureCause;
         }
 
-        public TaskNode<U> getNode()
+        public WorkflowNode<U> getNode()
         {
             return m_node;
         }
 
         public ExecutionException newExecutionException()
         {
-            StringBuilder sb = new StringBuilder("Task for node ").append(m_node.getKey()).append(" failed");
+            StringBuilder sb = new StringBuilder(m_node.hasTask() ? "Task for node " : "Node ")
+                    .append(m_node.getKey()).append(" failed");
 
             if (m_message != null)
             {
@@ -654,19 +2006,81 @@ public class Execution<T extends Task>
         }
     }
 
+    /**
+     * Attempts in progress at running the task of a scheduled node.
+     */
+    private static final class Attempts
+    {
+        @Nullable
+        private final SpeculationPolicy m_speculationPolicy;
+
+        @Nullable
+        private final RetryPolicy m_retryPolicy;
+
+        private long m_startNanos;
+
+        /**
+         * The number of submitted attempts that have not completed,
+         * or zero if waiting to retry.
+         */
+        private int m_outstanding;
+
+        private int m_failures;
+
+        @Nullable
+        private String m_lastFailureMessage;
+
+        @Nullable
+        private Throwable m_lastFailureCause;
+
+        /**
+         * A timed speculative resubmission or retry, if any.
+         */
+        @Nullable
+        private ScheduledFuture<?> m_pendingResubmission;
+
+        public Attempts(@Nullable SpeculationPolicy speculationPolicy, @Nullable RetryPolicy retryPolicy)
+        {
+            m_speculationPolicy = speculationPolicy;
+            m_retryPolicy = retryPolicy;
+        }
+    }
+
     /**
      * Task completion callback that updates the state of the
-     * corresponding node and wakes up the thread driving execution.
+     * corresponding node and continues driving execution.
      */
     private static class QueueingCallback<U extends Task> implements TaskCompletionCallback
     {
         private final WeakReference<Execution<U>> m_execution;
-        private final WeakReference<TaskNode<U>> m_node;
 
-        public QueueingCallback(Execution<U> execution, TaskNode<U> node)
+        /**
+         * The ordinal of the node, which is resolved through the execution's
+         * workflow rather than referenced, so that the node doesn't outlive
+         * the execution because of a callback held by a scheduler.
+         */
+        private final int m_ordinal;
+
+        /**
+         * The cache in which to store the output of the task if it succeeds,
+         * and the action key under which to store it. Set before the task is
+         * submitted after missing the cache; the key is written last.
+         */
+        @Nullable
+        private volatile TaskResultCache m_resultCache;
+        @Nullable
+        private volatile String m_actionKey;
+
+        public QueueingCallback(WeakReference<Execution<U>> execution, int ordinal)
+        {
+            m_execution = execution;
+            m_ordinal = ordinal;
+        }
+
+        public void setResultCache(TaskResultCache resultCache, @Nullable String actionKey)
         {
-            m_execution = new WeakReference<>(execution);
-            m_node = new WeakReference<>(node);
+            m_resultCache = resultCache;
+            m_actionKey = actionKey;
         }
 
         @Override
@@ -702,27 +2116,136 @@ public class Execution<T extends Task>
         private void queueResult(@Nullable String message, @Nullable Throwable cause, NodeState state)
         {
             Execution<U> execution = m_execution.get();
-            TaskNode<U> node = m_node.get();
             if (execution == null)
             {
                 return;
             }
-            assert node != null;  // We already have a strong reference via the execution
+            TaskNode<U> node = (TaskNode<U>) execution.m_workflow.getNode(m_ordinal);
+
+            // If other attempts may also succeed, claim the node first, so that
+            // only the winning attempt records and caches the task's output
+            boolean claimed = false;
+            if (state.equals(NodeState.SUCCEEDED) && mayHaveRivalAttempts(node))
+            {
+                execution.m_lock.lock();
+                try
+                {
+                    if (!execution.claimSuccess(node))
+                    {
+                        return;
+                    }
+                }
+                finally
+                {
+                    execution.m_lock.unlock();
+                }
+                claimed = true;
+            }
+
+            // Call the expander outside the lock, since it is user code
+            Collection<? extends WorkflowNode.Builder<U>> expansion = null;
+            if (state.equals(NodeState.SUCCEEDED) && node instanceof ExpandingNode)
+            {
+                try
+                {
+                    expansion = ((ExpandingNode<U>) node).expand();
+                }
+                catch (RuntimeException e)
+                {
+                    state = NodeState.FAILED;
+                    message = "Expansion failed";
+                    cause = e;
+                }
+            }
+
+            // Fingerprint input and cache output outside the lock, since it may involve reading files
+            ExecutionException recordingException = null;
+            if (state.equals(NodeState.SUCCEEDED))
+            {
+                try
+                {
+                    execution.m_outputHandler.recordSuccess(execution.m_workflow, node);
+                }
+                catch (IOException e)
+                {
+                    // The task itself succeeded, so the node does too, but the run fails
+                    recordingException = new ExecutionException(
+                            "Failed to record fingerprints for node " + node.getKey(), e);
+                }
+
+                String actionKey = m_actionKey;
+                if (actionKey != null)
+                {
+                    try
+                    {
+                        m_resultCache.store(actionKey, node.getTask().getOutputs());
+                    }
+                    catch (IOException e)
+                    {
+                        // The cache is only an optimization, so a failed write just means a later miss
+                    }
+                }
+            }
 
+            // Queue the completion and, unless another thread is already driving, process it
+            // while still holding the lock, so that each completion takes the lock only once
+            Runnable finisher;
             execution.m_lock.lock();
             try
             {
-                if (execution.m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED))
+                if (recordingException != null)
+                {
+                    execution.m_exceptions.add(recordingException);
+                }
+                boolean current;
+                if (claimed)
+                {
+                    execution.m_claimedOrdinals.clear(node.getOrdinal());
+                    current = true;
+                }
+                else
+                {
+                    current = execution.m_nodeStatuses.get(node).getState().equals(NodeState.SCHEDULED)
+                            && !execution.m_claimedOrdinals.get(node.getOrdinal())
+                            && execution.completeAttempt(node, state, message, cause);
+                }
+                if (current)
                 {
+                    if (expansion != null)
+                    {
+                        try
+                        {
+                            execution.splice(node, expansion);
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            state = NodeState.FAILED;
+                            message = "Invalid expansion";
+                            cause = e;
+                        }
+                    }
                     execution.updateStatus(node, state);
-                    execution.m_taskNodeQueue.add(new TaskNodeCompletion<>(node, message, cause));
-                    execution.m_taskNodeAvailable.signal();
+                    execution.completeFusedNode(node, state);
+                    if (state.equals(NodeState.SUCCEEDED))
+                    {
+                        execution.m_succeededTaskNodeQueue.add(node);
+                    }
+                    else
+                    {
+                        execution.m_failureQueue.add(new NodeFailure<>(node, message, cause));
+                    }
                 }
+                finisher = execution.driveLocked();
             }
             finally
             {
                 execution.m_lock.unlock();
             }
+
+            if (finisher != null)
+            {
+                finisher.run();
+            }
         }
     }
 }
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Coordinates a set of executions that share one task scheduler.
+ *
+ * <p>Each execution should be backed by its own scheduler obtained from
+ * {@link #newScheduler(int)}. Tasks submitted to those schedulers are queued
+ * and handed to the shared scheduler in weighted round-robin order, so a
+ * large execution cannot starve smaller ones: whenever capacity is available,
+ * an execution with weight {@code w} gets up to {@code w} consecutive
+ * submissions before the next execution with queued tasks gets a turn.</p>
+ *
+ * <p>At most a fixed number of tasks are outstanding with the shared scheduler
+ * at any time. Individual executions may additionally be limited to a quota
+ * of outstanding tasks.</p>
+ *
+ * <p>Scheduling tokens generated by this class can be used with any scheduler
+ * obtained from the same manager, but they are only valid as long as the
+ * manager is.</p>
+ */
+public class ExecutionManager<T>
+{
+    private final TaskScheduler<T> m_scheduler;
+    private final int m_maxRunningTasks;
+    private final Ticker m_ticker;
+    private final long m_startNanos;
+
+    private final Lock m_lock = new ReentrantLock();
+
+    /**
+     * Schedulers with queued tasks, in round-robin order. The scheduler at the
+     * front of the queue has the current turn.
+     */
+    @GuardedBy("m_lock")
+    private final Deque<ManagedScheduler<T>> m_activeSchedulers = new ArrayDeque<>();
+
+    @GuardedBy("m_lock")
+    private boolean m_dispatching;
+
+    @GuardedBy("m_lock")
+    private int m_queuedTasks;
+
+    @GuardedBy("m_lock")
+    private int m_runningTasks;
+
+    @GuardedBy("m_lock")
+    private long m_completedTasks;
+
+    private ExecutionManager(TaskScheduler<T> scheduler, int maxRunningTasks, Ticker ticker)
+    {
+        Preconditions.checkArgument(maxRunningTasks > 0, "Maximum running tasks must be positive");
+        m_scheduler = Preconditions.checkNotNull(scheduler);
+        m_maxRunningTasks = maxRunningTasks;
+        m_ticker = Preconditions.checkNotNull(ticker);
+        m_startNanos = ticker.read();
+    }
+
+    /**
+     * Returns a manager that hands tasks to the given scheduler,
+     * keeping at most the given number of tasks outstanding.
+     *
+     * @throws IllegalArgumentException if {@code maxRunningTasks} is not positive
+     */
+    public static <U> ExecutionManager<U> create(TaskScheduler<U> scheduler, int maxRunningTasks)
+    {
+        return new ExecutionManager<>(scheduler, maxRunningTasks, Ticker.systemTicker());
+    }
+
+    static <U> ExecutionManager<U> create(TaskScheduler<U> scheduler, int maxRunningTasks, Ticker ticker)
+    {
+        return new ExecutionManager<>(scheduler, maxRunningTasks, ticker);
+    }
+
+    /**
+     * Returns a new scheduler, intended to back a single execution, that
+     * queues tasks for submission to the shared scheduler. The number of
+     * outstanding tasks is not limited beyond the overall limit.
+     *
+     * @param weight the number of consecutive submissions this scheduler
+     *               gets in each round
+     * @throws IllegalArgumentException if {@code weight} is not positive
+     */
+    public TaskScheduler<T> newScheduler(int weight)
+    {
+        return newScheduler(weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a new scheduler, intended to back a single execution, that
+     * queues tasks for submission to the shared scheduler.
+     *
+     * @param weight the number of consecutive submissions this scheduler
+     *               gets in each round
+     * @param maxRunningTasks the maximum number of tasks from this scheduler
+     *                        that may be outstanding at once
+     * @throws IllegalArgumentException if either argument is not positive
+     */
+    public TaskScheduler<T> newScheduler(int weight, int maxRunningTasks)
+    {
+        Preconditions.checkArgument(weight > 0, "Weight must be positive");
+        Preconditions.checkArgument(maxRunningTasks > 0, "Maximum running tasks must be positive");
+        return new ManagedScheduler<>(this, weight, maxRunningTasks);
+    }
+
+    /**
+     * Returns the number of tasks waiting to be handed to the shared scheduler.
+     */
+    public int getQueuedTaskCount()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_queuedTasks;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have been handed
+     * to the shared scheduler but have not completed.
+     */
+    public int getRunningTaskCount()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_runningTasks;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have completed
+     * (successfully or otherwise) since this manager was created.
+     */
+    public long getCompletedTaskCount()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_completedTasks;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the average number of tasks completed per second,
+     * across all executions, since this manager was created.
+     */
+    public double getThroughput()
+    {
+        long elapsedNanos = m_ticker.read() - m_startNanos;
+        if (elapsedNanos <= 0)
+        {
+            return 0;
+        }
+        return getCompletedTaskCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    private void enqueue(ManagedToken<T> token)
+    {
+        m_lock.lock();
+        try
+        {
+            ManagedScheduler<T> scheduler = token.m_scheduler;
+            if (scheduler.m_queue.isEmpty())
+            {
+                scheduler.m_credit = scheduler.m_weight;
+                m_activeSchedulers.addLast(scheduler);
+            }
+            scheduler.m_queue.add(token);
+            m_queuedTasks++;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Hands queued tasks to the shared scheduler until no capacity remains or
+     * no tasks are eligible. If another thread is already doing this, returns
+     * immediately; that thread will pick up anything queued in the meantime.
+     */
+    private void dispatch()
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_dispatching)
+            {
+                return;
+            }
+            m_dispatching = true;
+
+            try
+            {
+                ManagedToken<T> token;
+                while (m_runningTasks < m_maxRunningTasks && (token = pollNextToken()) != null)
+                {
+                    m_queuedTasks--;
+                    m_runningTasks++;
+                    token.m_scheduler.m_runningTasks++;
+
+                    // Submit the task, temporarily releasing the lock in case submit() blocks
+                    m_lock.unlock();
+                    try
+                    {
+                        token.submitTo(m_scheduler);
+                    }
+                    finally
+                    {
+                        m_lock.lock();
+                    }
+                }
+            }
+            finally
+            {
+                m_dispatching = false;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the next queued task in round-robin order,
+     * or returns {@code null} if every scheduler with queued tasks is
+     * at its quota.
+     */
+    @GuardedBy("m_lock")
+    @Nullable
+    private ManagedToken<T> pollNextToken()
+    {
+        for (int i = m_activeSchedulers.size(); i > 0; i--)
+        {
+            ManagedScheduler<T> scheduler = m_activeSchedulers.getFirst();
+
+            if (scheduler.m_credit > 0 && scheduler.m_runningTasks < scheduler.m_maxRunningTasks)
+            {
+                scheduler.m_credit--;
+                ManagedToken<T> token = scheduler.m_queue.remove();
+
+                if (scheduler.m_queue.isEmpty())
+                {
+                    m_activeSchedulers.removeFirst();
+                }
+                else if (scheduler.m_credit == 0)
+                {
+                    m_activeSchedulers.addLast(m_activeSchedulers.removeFirst());
+                    scheduler.m_credit = scheduler.m_weight;
+                }
+                return token;
+            }
+
+            // Out of credit or at quota; move on to the next scheduler
+            m_activeSchedulers.addLast(m_activeSchedulers.removeFirst());
+            scheduler.m_credit = scheduler.m_weight;
+        }
+
+        return null;
+    }
+
+    private void release(ManagedToken<T> token)
+    {
+        m_lock.lock();
+        try
+        {
+            m_runningTasks--;
+            token.m_scheduler.m_runningTasks--;
+            m_completedTasks++;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * A scheduler backing a single execution.
+     * Queues tasks for submission by the manager.
+     */
+    private static final class ManagedScheduler<U> implements TaskScheduler<U>
+    {
+        private final ExecutionManager<U> m_manager;
+        private final int m_weight;
+        private final int m_maxRunningTasks;
+
+        // Guarded by the manager's lock
+        private final Queue<ManagedToken<U>> m_queue = new ArrayDeque<>();
+        private int m_credit;
+        private int m_runningTasks;
+
+        public ManagedScheduler(ExecutionManager<U> manager, int weight, int maxRunningTasks)
+        {
+            m_manager = manager;
+            m_weight = weight;
+            m_maxRunningTasks = maxRunningTasks;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ScheduledTaskToken submit(U task, TaskCompletionCallback callback)
+        {
+            ManagedToken<U> token = new ManagedToken<>(this, Preconditions.checkNotNull(task));
+            token.addCallback(callback);
+            m_manager.enqueue(token);
+            return token;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void registerCallback(ScheduledTaskToken token, TaskCompletionCallback callback)
+                throws InvalidTokenException
+        {
+            if (!(token instanceof ManagedToken) || ((ManagedToken<?>) token).m_scheduler.m_manager != m_manager)
+            {
+                throw new InvalidTokenException();
+            }
+            ((ManagedToken<?>) token).addCallback(callback);
+        }
+    }
+
+    /**
+     * A task that has been submitted to a managed scheduler. Tracks the
+     * callbacks registered for the task and, once the task completes,
+     * its outcome.
+     */
+    private static final class ManagedToken<U> implements ScheduledTaskToken
+    {
+        private final ManagedScheduler<U> m_scheduler;
+
+        // Cleared once the task has been handed to the shared scheduler
+        @Nullable
+        private U m_task;
+
+        // Guarded by this token's monitor
+        private final List<TaskCompletionCallback> m_callbacks = new ArrayList<>(1);
+        @Nullable
+        private Consumer<TaskCompletionCallback> m_outcome;
+
+        public ManagedToken(ManagedScheduler<U> scheduler, U task)
+        {
+            m_scheduler = scheduler;
+            m_task = task;
+        }
+
+        public void submitTo(TaskScheduler<U> scheduler)
+        {
+            U task = m_task;
+            m_task = null;
+            assert task != null : "Task submitted twice";
+
+            try
+            {
+                scheduler.submit(task, new ForwardingCallback<>(this));
+            }
+            catch (RuntimeException e)
+            {
+                complete(callback -> callback.reportFailure("Task could not be scheduled", e));
+            }
+        }
+
+        public void addCallback(TaskCompletionCallback callback)
+        {
+            Consumer<TaskCompletionCallback> outcome;
+            synchronized (this)
+            {
+                if (m_outcome == null)
+                {
+                    m_callbacks.add(Preconditions.checkNotNull(callback));
+                    return;
+                }
+                outcome = m_outcome;
+            }
+            outcome.accept(callback);
+        }
+
+        public void complete(Consumer<TaskCompletionCallback> outcome)
+        {
+            List<TaskCompletionCallback> callbacks;
+            synchronized (this)
+            {
+                if (m_outcome != null)
+                {
+                    return;
+                }
+                m_outcome = outcome;
+                callbacks = new ArrayList<>(m_callbacks);
+                m_callbacks.clear();
+            }
+
+            ExecutionManager<U> manager = m_scheduler.m_manager;
+            manager.release(this);
+            callbacks.forEach(outcome);
+            manager.dispatch();
+        }
+    }
+
+    /**
+     * Task completion callback that records the outcome of a managed task.
+     */
+    private static final class ForwardingCallback<U> implements TaskCompletionCallback
+    {
+        private final ManagedToken<U> m_token;
+
+        public ForwardingCallback(ManagedToken<U> token)
+        {
+            m_token = token;
+        }
+
+        @Override
+        public void reportSuccess()
+        {
+            m_token.complete(TaskCompletionCallback::reportSuccess);
+        }
+
+        @Override
+        public void reportFailure()
+        {
+            m_token.complete(TaskCompletionCallback::reportFailure);
+        }
+
+        @Override
+        public void reportFailure(String message)
+        {
+            Preconditions.checkNotNull(message);
+            m_token.complete(callback -> callback.reportFailure(message));
+        }
+
+        @Override
+        public void reportFailure(String message, Throwable cause)
+        {
+            Preconditions.checkNotNull(message);
+            Preconditions.checkNotNull(cause);
+            m_token.complete(callback -> callback.reportFailure(message, cause));
+        }
+
+        @Override
+        public void reportFailure(Throwable cause)
+        {
+            Preconditions.checkNotNull(cause);
+            m_token.complete(callback -> callback.reportFailure(cause));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The outcome of a run of an {@link Execution} in which no task failed.
+ *
+ * @see Execution#start()
+ */
+public final class ExecutionResult<T extends Task>
+{
+    private final ImmutableMap<WorkflowNode<T>, NodeStatus> m_nodeStatuses;
+
+    private ExecutionResult(ImmutableMap<WorkflowNode<T>, NodeStatus> nodeStatuses)
+    {
+        m_nodeStatuses = nodeStatuses;
+    }
+
+    static <U extends Task> ExecutionResult<U> of(Map<WorkflowNode<U>, NodeStatus> nodeStatuses)
+    {
+        return new ExecutionResult<>(ImmutableMap.copyOf(nodeStatuses));
+    }
+
+    /**
+     * Returns an immutable map of node statuses
+     * as of the end of the run.
+     */
+    public Map<WorkflowNode<T>, NodeStatus> getNodeStatuses()
+    {
+        return m_nodeStatuses;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+
+/**
+ * A task node that adds nodes to the running execution when its task
+ * succeeds, for work whose shape is only known once an upstream task has
+ * run (for example, one node per shard of a data set).
+ *
+ * <p>After the task succeeds, the node's {@link Expander} is called with
+ * the task and returns builders for the new nodes. The execution splices
+ * them into its workflow between this node and its dependents: the new
+ * nodes depend on this node, and its dependents depend on the new nodes.
+ * Builders may also depend on builders outside the returned collection,
+ * which are resolved by key to nodes of the workflow, as in
+ * {@link Workflow#withAdded(Collection)}. If the builders are invalid, the
+ * node fails.</p>
+ *
+ * <p>The expansion is recorded in the execution's workflow, so it survives
+ * {@link Execution#freeze() freezing}; a frozen execution in which this node
+ * has succeeded will not expand it again. Since the expansion is only known
+ * once the task has run, the task is always run by executions created from
+ * existing output, and its output is never restored from a
+ * {@link TaskResultCache}.</p>
+ */
+public class ExpandingNode<T extends Task> extends TaskNode<T>
+{
+    private static final long serialVersionUID = 0L;
+
+    private final Expander<T> m_expander;
+
+    private ExpandingNode(String key, T task, Expander<T> expander)
+    {
+        super(key, task);
+        m_expander = expander;
+        validateState();
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException
+    {
+        stream.defaultReadObject();
+        validateState();
+    }
+
+    private void readObjectNoData() throws ObjectStreamException
+    {
+        throw new InvalidObjectException("No object data");
+    }
+
+    private void validateState()
+    {
+        Preconditions.checkNotNull(m_expander, "Null expander");
+    }
+
+    /**
+     * Returns builders for the nodes to add after the task has succeeded.
+     */
+    Collection<? extends WorkflowNode.Builder<T>> expand()
+    {
+        return Preconditions.checkNotNull(m_expander.expand(getTask()), "Null expansion");
+    }
+
+    @Override
+    WorkflowNode.Builder<T> toBuilder()
+    {
+        return builder(getKey(), getTask(), m_expander);
+    }
+
+    @Override
+    ExpandingNode<T> withTask(@Nullable T task)
+    {
+        return new ExpandingNode<>(getKey(), task, m_expander);
+    }
+
+    /**
+     * Determines the nodes to add after the task of an expanding node
+     * succeeds. Expanders are serialized along with their nodes.
+     */
+    @FunctionalInterface
+    public interface Expander<U extends Task> extends Serializable
+    {
+        /**
+         * Returns builders for the nodes to add, which may be empty.
+         * The builders are consumed by the execution and may be modified.
+         *
+         * @param task the task that succeeded
+         */
+        Collection<? extends WorkflowNode.Builder<U>> expand(U task);
+    }
+
+    public static final class Builder<U extends Task> extends WorkflowNode.Builder<U>
+    {
+        private U m_task;
+        private Expander<U> m_expander;
+
+        /**
+         * {@inheritDoc}
+         */
+        @CanIgnoreReturnValue
+        @Override
+        public Builder<U> setKey(@Nullable String key)
+        {
+            return (Builder<U>) super.setKey(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @CanIgnoreReturnValue
+        @Override
+        public Builder<U> setDependencies(Set<WorkflowNode.Builder<U>> dependencies)
+        {
+            return (Builder<U>) super.setDependencies(dependencies);
+        }
+
+        /**
+         * Gets the task that will be used when building nodes, or
+         * {@code null} if no task has been set.
+         */
+        @Nullable
+        public U getTask()
+        {
+            return m_task;
+        }
+
+        /**
+         * Sets the task that will be used when building nodes.
+         * The task must be set before constructing a workflow.
+         */
+        @CanIgnoreReturnValue
+        public Builder<U> setTask(U task)
+        {
+            m_task = task;
+            return this;
+        }
+
+        /**
+         * Gets the expander that will be used when building nodes, or
+         * {@code null} if no expander has been set.
+         */
+        @Nullable
+        public Expander<U> getExpander()
+        {
+            return m_expander;
+        }
+
+        /**
+         * Sets the expander that will be used when building nodes.
+         * The expander must be set before constructing a workflow.
+         */
+        @CanIgnoreReturnValue
+        public Builder<U> setExpander(Expander<U> expander)
+        {
+            m_expander = expander;
+            return this;
+        }
+
+        @Override
+        ExpandingNode<U> build(String key)
+        {
+            return new ExpandingNode<>(key, m_task, m_expander);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return String.format("%s(%s, %s)", getClass().getSimpleName(), getKey(), m_task);
+        }
+    }
+
+    /**
+     * Returns a new builder associated with the given task and expander.
+     */
+    public static <U extends Task> ExpandingNode.Builder<U> builder(U task, Expander<U> expander)
+    {
+        return new ExpandingNode.Builder<U>().setTask(task).setExpander(expander);
+    }
+
+    /**
+     * Returns a new builder associated with the given key, task and expander.
+     */
+    public static <U extends Task> ExpandingNode.Builder<U> builder(@Nullable String key, U task, Expander<U> expander)
+    {
+        return new ExpandingNode.Builder<U>().setKey(key).setTask(task).setExpander(expander);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * A local record of output fingerprints, used by an {@link OutputHandler} to
+ * validate output by content rather than by timestamp.
+ *
+ * <p>For each node, the store records the fingerprints of the output of its
+ * dependencies as of the last time the node's task succeeded. It also caches
+ * the most recent fingerprint of each output, so that unmodified output need
+ * not be rehashed. Nodes are identified by key, so a store should only be
+ * used with a single workflow (or workflows with consistent keys).</p>
+ *
+ * <p>A store backed by a file appends each update to the file as it is made.
+ * The file can be rewritten to discard superseded updates by calling
+ * {@link #compact()}. If the file ends with an incomplete update, for example
+ * because the process writing it was killed, the incomplete update is
+ * discarded when the store is opened.</p>
+ */
+public class FingerprintStore implements Closeable
+{
+    private static final int MAGIC = 0x52464650;
+    private static final int VERSION = 1;
+
+    private static final byte OUTPUT_RECORD = 'O';
+    private static final byte NODE_RECORD = 'N';
+
+    @Nullable
+    private final Path m_file;
+
+    @GuardedBy("this")
+    private final Map<String, ContentFingerprint> m_outputFingerprints = new HashMap<>();
+
+    @GuardedBy("this")
+    private final Map<String, ImmutableMap<String, String>> m_dependencyHashes = new HashMap<>();
+
+    @GuardedBy("this")
+    @Nullable
+    private DataOutputStream m_log;
+
+    private FingerprintStore(@Nullable Path file)
+    {
+        m_file = file;
+    }
+
+    /**
+     * Returns a store that is not persisted.
+     */
+    public static FingerprintStore inMemory()
+    {
+        return new FingerprintStore(null);
+    }
+
+    /**
+     * Opens a store backed by the given file, creating the file if it does
+     * not exist.
+     *
+     * @throws IOException if the file cannot be read or created, or if it is
+     * not a fingerprint store
+     */
+    public static FingerprintStore open(Path file) throws IOException
+    {
+        FingerprintStore store = new FingerprintStore(file);
+        synchronized (store)
+        {
+            if (Files.exists(file) && Files.size(file) > 0)
+            {
+                long validLength = store.load(file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+                {
+                    channel.truncate(validLength);
+                }
+                store.m_log = openLog(file, true);
+            }
+            else
+            {
+                store.m_log = openLog(file, false);
+                writeHeader(store.m_log);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Returns the most recent fingerprint recorded for the given output.
+     */
+    public synchronized Optional<ContentFingerprint> getOutputFingerprint(String outputKey)
+    {
+        return Optional.ofNullable(m_outputFingerprints.get(outputKey));
+    }
+
+    /**
+     * Records the most recent fingerprint of the given output.
+     *
+     * @throws IllegalStateException if the store has been closed
+     * @throws IOException if an I/O error occurs while persisting the update
+     */
+    public synchronized void putOutputFingerprint(String outputKey, ContentFingerprint fingerprint)
+            throws IOException
+    {
+        Preconditions.checkNotNull(outputKey);
+        Preconditions.checkNotNull(fingerprint);
+        checkOpen();
+        if (fingerprint.equals(m_outputFingerprints.get(outputKey)))
+        {
+            return;
+        }
+
+        // Persist first, so that a failed write leaves the update to be retried
+        if (m_log != null)
+        {
+            writeOutputRecord(m_log, outputKey, fingerprint);
+            m_log.flush();
+        }
+        m_outputFingerprints.put(outputKey, fingerprint);
+    }
+
+    /**
+     * Returns the content hashes of the dependency output of the given node,
+     * keyed by output fingerprint key, as of the last time the node's task
+     * succeeded.
+     */
+    public synchronized Optional<Map<String, String>> getDependencyHashes(String nodeKey)
+    {
+        return Optional.ofNullable(m_dependencyHashes.get(nodeKey));
+    }
+
+    /**
+     * Records the content hashes of the dependency output of the given node,
+     * keyed by output fingerprint key.
+     *
+     * @throws IllegalStateException if the store has been closed
+     * @throws IOException if an I/O error occurs while persisting the update
+     */
+    public synchronized void putDependencyHashes(String nodeKey, Map<String, String> hashes) throws IOException
+    {
+        Preconditions.checkNotNull(nodeKey);
+        checkOpen();
+        ImmutableMap<String, String> hashesCopy = ImmutableMap.copyOf(hashes);
+        if (hashesCopy.equals(m_dependencyHashes.get(nodeKey)))
+        {
+            return;
+        }
+
+        // As above, persist before updating the in-memory state
+        if (m_log != null)
+        {
+            writeNodeRecord(m_log, nodeKey, hashesCopy);
+            m_log.flush();
+        }
+        m_dependencyHashes.put(nodeKey, hashesCopy);
+    }
+
+    /**
+     * Rewrites the backing file to contain only current records.
+     * Has no effect on stores that are not persisted.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void compact() throws IOException
+    {
+        if (m_file == null)
+        {
+            return;
+        }
+        checkOpen();
+
+        Path tempFile = Files.createTempFile(m_file.toAbsolutePath().getParent(),
+                                             m_file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            writeHeader(out);
+            for (Map.Entry<String, ContentFingerprint> e : m_outputFingerprints.entrySet())
+            {
+                writeOutputRecord(out, e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, ImmutableMap<String, String>> e : m_dependencyHashes.entrySet())
+            {
+                writeNodeRecord(out, e.getKey(), e.getValue());
+            }
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+
+        m_log.close();
+        m_log = null;
+        Files.move(tempFile, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        m_log = openLog(m_file, true);
+    }
+
+    /**
+     * Closes the backing file, if any. Further updates will fail.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (m_log != null)
+        {
+            m_log.close();
+            m_log = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void checkOpen()
+    {
+        Preconditions.checkState(m_file == null || m_log != null, "Store is closed");
+    }
+
+    /**
+     * Reads records from the given file, returning the length of the
+     * prefix of the file that consists of complete records.
+     */
+    @GuardedBy("this")
+    private long load(Path file) throws IOException
+    {
+        try (InputStream fileIn = Files.newInputStream(file))
+        {
+            CountingInputStream countingIn = new CountingInputStream(new BufferedInputStream(fileIn));
+            DataInputStream in = new DataInputStream(countingIn);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException("Not a fingerprint store: " + file);
+            }
+
+            long validLength = countingIn.getCount();
+            try
+            {
+                while (true)
+                {
+                    byte type = in.readByte();
+                    if (type == OUTPUT_RECORD)
+                    {
+                        String outputKey = in.readUTF();
+                        long size = in.readLong();
+                        Instant lastModified = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                        String hash = in.readUTF();
+                        m_outputFingerprints.put(outputKey, ContentFingerprint.of(size, lastModified, hash));
+                    }
+                    else if (type == NODE_RECORD)
+                    {
+                        String nodeKey = in.readUTF();
+                        int count = in.readInt();
+                        ImmutableMap.Builder<String, String> hashes = ImmutableMap.builder();
+                        for (int i = 0; i < count; i++)
+                        {
+                            hashes.put(in.readUTF(), in.readUTF());
+                        }
+                        m_dependencyHashes.put(nodeKey, hashes.build());
+                    }
+                    else
+                    {
+                        throw new IOException("Corrupt fingerprint store: " + file);
+                    }
+                    validLength = countingIn.getCount();
+                }
+            }
+            catch (EOFException e)
+            {
+                // Reached the end of the file, possibly in the middle of a record
+                return validLength;
+            }
+        }
+    }
+
+    private static DataOutputStream openLog(Path file, boolean append) throws IOException
+    {
+        OutputStream out = append ?
+                Files.newOutputStream(file, StandardOpenOption.APPEND) :
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+    }
+
+    private static void writeOutputRecord(DataOutputStream out, String outputKey, ContentFingerprint fingerprint)
+            throws IOException
+    {
+        out.writeByte(OUTPUT_RECORD);
+        out.writeUTF(outputKey);
+        out.writeLong(fingerprint.getSize());
+        out.writeLong(fingerprint.getLastModified().getEpochSecond());
+        out.writeInt(fingerprint.getLastModified().getNano());
+        out.writeUTF(fingerprint.getHash());
+    }
+
+    private static void writeNodeRecord(DataOutputStream out, String nodeKey, Map<String, String> hashes)
+            throws IOException
+    {
+        out.writeByte(NODE_RECORD);
+        out.writeUTF(nodeKey);
+        out.writeInt(hashes.size());
+        for (Map.Entry<String, String> e : hashes.entrySet())
+        {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+}
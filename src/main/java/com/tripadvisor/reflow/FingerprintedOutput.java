@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * An output that can summarize its content with a {@link ContentFingerprint}.
+ * An {@link OutputHandler} with a {@link FingerprintStore} uses fingerprints
+ * to avoid invalidating output when its dependencies were modified without
+ * changing their content.
+ */
+public interface FingerprintedOutput extends Output
+{
+    /**
+     * Returns a string that identifies this output in a fingerprint store,
+     * such as an absolute path. Distinct outputs of a workflow must have
+     * distinct keys.
+     */
+    String getFingerprintKey();
+
+    /**
+     * Returns a fingerprint of the content of this output, or an empty
+     * optional if the output does not exist.
+     *
+     * <p>If a previous fingerprint is given and it has the current size and
+     * modification time of this output, implementations should return it
+     * without reading the content of the output.</p>
+     *
+     * @param previous the most recent known fingerprint of this output, if any
+     * @throws IOException if an I/O error occurs
+     */
+    Optional<ContentFingerprint> getFingerprint(@Nullable ContentFingerprint previous) throws IOException;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A task scheduler that executes tasks locally in a {@link ForkJoinPool},
+ * favoring the worker thread that produced a task's input.
+ *
+ * <p>An execution submits tasks on the thread that reports the completion
+ * of their dependencies. When that thread is a worker of the pool, tasks
+ * are pushed onto its local deque, so that a dependent tends to run on the
+ * worker (and core) that just ran its dependency, while idle workers steal
+ * whatever the busy ones can't get to. Tasks submitted from any other
+ * thread go through the pool's shared submission queue. This suits
+ * CPU-bound tasks; tasks that block for long stretches tie up workers.</p>
+ *
+ * <p>Scheduling tokens generated by this class can only be used with the
+ * instance that generated them, but they remain valid indefinitely.</p>
+ */
+public class ForkJoinTaskScheduler<T> implements FusingTaskScheduler<T>, ContinuingTaskScheduler<T>
+{
+    private final ForkJoinPool m_pool;
+    private final LocalTaskScheduler<T> m_delegate;
+
+    private ForkJoinTaskScheduler(ForkJoinPool pool, Function<T, ? extends Runnable> taskToRunnableFunc)
+    {
+        m_pool = pool;
+        m_delegate = LocalTaskScheduler.create(this::execute, taskToRunnableFunc);
+    }
+
+    /**
+     * Returns a task scheduler, backed by the given pool,
+     * for tasks that implement the {@link Runnable} interface.
+     */
+    public static ForkJoinTaskScheduler<Runnable> create(ForkJoinPool pool)
+    {
+        return new ForkJoinTaskScheduler<>(Preconditions.checkNotNull(pool), Function.identity());
+    }
+
+    /**
+     * Returns a task scheduler, backed by the given pool, that uses the
+     * given function to translate tasks into {@link Runnable} instances.
+     */
+    public static <U> ForkJoinTaskScheduler<U> create(ForkJoinPool pool,
+                                                      Function<U, ? extends Runnable> taskToRunnableFunc)
+    {
+        return new ForkJoinTaskScheduler<>(Preconditions.checkNotNull(pool),
+                                           Preconditions.checkNotNull(taskToRunnableFunc));
+    }
+
+    /**
+     * Returns the pool in which this scheduler executes tasks.
+     */
+    public ForkJoinPool getPool()
+    {
+        return m_pool;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ScheduledTaskToken submit(T task, TaskCompletionCallback callback)
+    {
+        return m_delegate.submit(task, callback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ScheduledTaskToken> submitFused(List<? extends T> tasks,
+                                                List<? extends TaskCompletionCallback> callbacks)
+    {
+        return m_delegate.submitFused(tasks, callbacks);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ScheduledTaskToken> submitBatch(List<? extends T> tasks,
+                                                List<? extends TaskCompletionCallback> callbacks)
+    {
+        return m_delegate.submitBatch(tasks, callbacks);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ScheduledTaskToken submitContinuation(T task, TaskCompletionCallback callback)
+    {
+        return m_delegate.submitContinuation(task, callback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerCallback(ScheduledTaskToken token, TaskCompletionCallback callback) throws InvalidTokenException
+    {
+        m_delegate.registerCallback(token, callback);
+    }
+
+    private void execute(Runnable runnable)
+    {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == m_pool)
+        {
+            // Push onto this worker's own deque, from which other workers can steal
+            ForkJoinTask.adapt(runnable).fork();
+        }
+        else
+        {
+            m_pool.execute(runnable);
+        }
+    }
+}
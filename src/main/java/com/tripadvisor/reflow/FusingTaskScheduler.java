@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.List;
+
+/**
+ * A task scheduler that can also run several tasks as a single unit,
+ * avoiding the cost of scheduling each task separately.
+ *
+ * @see Execution#setTaskFusion(boolean)
+ * @see Execution#setBatchThreshold(java.time.Duration)
+ */
+public interface FusingTaskScheduler<T> extends TaskScheduler<T>
+{
+    /**
+     * Schedules a sequence of tasks to run one after another as a single
+     * unit. The callback at each position is used to signal the completion
+     * of the task at the same position, and is invoked before the next task
+     * starts. If a task fails, the tasks after it are not run, and their
+     * callbacks are invoked with a failure after the callback of the task
+     * that failed.
+     *
+     * <p>Returns a list of tokens representing the scheduled task instances,
+     * one per task. Each token must be non-null unless the corresponding
+     * callback has already been invoked.</p>
+     *
+     * @throws IllegalArgumentException if the lists differ in size
+     */
+    List<ScheduledTaskToken> submitFused(List<? extends T> tasks, List<? extends TaskCompletionCallback> callbacks);
+
+    /**
+     * Schedules a batch of independent tasks to run as a single unit. The
+     * callback at each position is used to signal the completion of the
+     * task at the same position, successful or not, and a failing task does
+     * not prevent the others from running.
+     *
+     * <p>Returns a list of tokens representing the scheduled task instances,
+     * one per task. Each token must be non-null unless the corresponding
+     * callback has already been invoked.</p>
+     *
+     * @throws IllegalArgumentException if the lists differ in size
+     */
+    List<ScheduledTaskToken> submitBatch(List<? extends T> tasks, List<? extends TaskCompletionCallback> callbacks);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An index of the nodes of a workflow by key, supporting selection of the
+ * nodes whose keys start with a prefix or match a glob pattern without
+ * scanning every key.
+ *
+ * <p>Keys are held in sorted order, so the keys sharing a prefix form a
+ * contiguous range that can be found by binary search. A glob is matched
+ * against the range of keys sharing its literal prefix (the part before the
+ * first wildcard).</p>
+ */
+final class KeyIndex<T extends Task>
+{
+    private final String[] m_keys;
+    private final List<WorkflowNode<T>> m_nodes;
+
+    KeyIndex(List<WorkflowNode<T>> nodes)
+    {
+        List<WorkflowNode<T>> sortedNodes = new ArrayList<>(nodes);
+        sortedNodes.sort(Comparator.comparing(WorkflowNode::getKey));
+        m_nodes = sortedNodes;
+        m_keys = sortedNodes.stream().map(WorkflowNode::getKey).toArray(String[]::new);
+    }
+
+    /**
+     * Returns the nodes whose keys start with the given prefix,
+     * in key order.
+     */
+    public List<WorkflowNode<T>> getNodesWithPrefix(String prefix)
+    {
+        Preconditions.checkNotNull(prefix);
+        int start = Arrays.binarySearch(m_keys, prefix);
+        if (start < 0)
+        {
+            start = -start - 1;
+        }
+
+        int end = start;
+        while (end < m_keys.length && m_keys[end].startsWith(prefix))
+        {
+            end++;
+        }
+        return m_nodes.subList(start, end);
+    }
+
+    /**
+     * Returns the nodes whose keys match the given glob pattern, in key
+     * order. In the pattern, {@code *} matches any sequence of characters
+     * and {@code ?} matches any single character; all other characters
+     * match themselves.
+     */
+    public List<WorkflowNode<T>> getNodesMatching(String glob)
+    {
+        int wildcard = indexOfWildcard(glob);
+        if (wildcard < 0)
+        {
+            int index = Arrays.binarySearch(m_keys, glob);
+            return index < 0 ? m_nodes.subList(0, 0) : m_nodes.subList(index, index + 1);
+        }
+
+        List<WorkflowNode<T>> candidates = getNodesWithPrefix(glob.substring(0, wildcard));
+        Pattern pattern = compileGlob(glob);
+        List<WorkflowNode<T>> matches = new ArrayList<>();
+        for (WorkflowNode<T> node : candidates)
+        {
+            if (pattern.matcher(node.getKey()).matches())
+            {
+                matches.add(node);
+            }
+        }
+        return matches;
+    }
+
+    private static int indexOfWildcard(String glob)
+    {
+        for (int i = 0; i < glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern compileGlob(String glob)
+    {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?')
+            {
+                if (literalStart < i)
+                {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length())
+        {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
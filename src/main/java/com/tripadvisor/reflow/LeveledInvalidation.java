@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Propagates output timestamps through a graph to find out-of-date output.
+ *
+ * <p>Nodes are identified by their positions in a topological order. They are
+ * grouped into levels by the length of the longest path leading to them, so
+ * that every dependency of a node is in a lower level. The nodes of a level
+ * are then independent of one another, and large levels are processed in
+ * parallel on the common fork-join pool. Timestamps are represented as
+ * nanoseconds since the epoch, with {@link Long#MAX_VALUE} standing for
+ * missing output.</p>
+ *
+ * <p>Nodes may instead be validated by content fingerprint. The output of
+ * such a node is invalid only if the content of its inputs changed since it
+ * was produced, or if the output of a dependency is itself invalid or
+ * missing; the timestamps of its dependencies are otherwise disregarded.</p>
+ */
+final class LeveledInvalidation
+{
+    /**
+     * Levels with fewer nodes than this are processed on the calling thread,
+     * as are the ranges into which larger levels are split.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    /**
+     * Fingerprint states: the node is validated by timestamp, or
+     * its inputs are known to be unchanged or changed by content.
+     */
+    static final byte FINGERPRINT_UNKNOWN = 0;
+    static final byte FINGERPRINT_UNCHANGED = 1;
+    static final byte FINGERPRINT_CHANGED = 2;
+
+    private final int[][] m_dependencyIndices;
+    private final long[] m_minOutputTimestamps;
+
+    @Nullable
+    private final byte[] m_fingerprintStates;
+
+    /**
+     * The most recent output timestamp of each node, or
+     * {@link Long#MAX_VALUE} once its output is found to be invalid.
+     */
+    private final long[] m_maxOutputTimestamps;
+
+    private final long[] m_maxDependencyTimestamps;
+    private final boolean[] m_invalid;
+
+    /**
+     * Node indices sorted by level, and the
+     * position in that array at which each level starts.
+     */
+    private final int[] m_nodesByLevel;
+    private final int[] m_levelStarts;
+
+    /**
+     * @param dependencyIndices the indices of the dependencies of each node,
+     *                          all of which must be less than the node's own
+     * @param minOutputTimestamps the least recent output timestamp of each node,
+     *                            or {@link Long#MAX_VALUE} for nodes with no output
+     * @param maxOutputTimestamps the most recent output timestamp of each node,
+     *                            or {@link Long#MIN_VALUE} for nodes with no output
+     */
+    LeveledInvalidation(int[][] dependencyIndices, long[] minOutputTimestamps, long[] maxOutputTimestamps)
+    {
+        this(dependencyIndices, minOutputTimestamps, maxOutputTimestamps, null);
+    }
+
+    /**
+     * @param fingerprintStates the fingerprint state of each node, or
+     *                          {@code null} to validate all nodes by timestamp
+     * @see #LeveledInvalidation(int[][], long[], long[])
+     */
+    LeveledInvalidation(int[][] dependencyIndices, long[] minOutputTimestamps, long[] maxOutputTimestamps,
+                        @Nullable byte[] fingerprintStates)
+    {
+        int size = dependencyIndices.length;
+        Preconditions.checkArgument(fingerprintStates == null || fingerprintStates.length == size);
+        m_dependencyIndices = dependencyIndices;
+        m_minOutputTimestamps = minOutputTimestamps;
+        m_fingerprintStates = fingerprintStates;
+        m_maxOutputTimestamps = maxOutputTimestamps;
+        m_maxDependencyTimestamps = new long[size];
+        m_invalid = new boolean[size];
+
+        // Calculate the level of each node, then counting sort the nodes by level
+        int[] levels = new int[size];
+        int levelCount = size == 0 ? 0 : 1;
+        for (int i = 0; i < size; i++)
+        {
+            int level = 0;
+            for (int dependency : dependencyIndices[i])
+            {
+                assert dependency < i : "Nodes are not in topological order";
+                level = Math.max(level, levels[dependency] + 1);
+            }
+            levels[i] = level;
+            levelCount = Math.max(levelCount, level + 1);
+        }
+
+        m_levelStarts = new int[levelCount + 1];
+        for (int level : levels)
+        {
+            m_levelStarts[level + 1]++;
+        }
+        for (int level = 0; level < levelCount; level++)
+        {
+            m_levelStarts[level + 1] += m_levelStarts[level];
+        }
+
+        m_nodesByLevel = new int[size];
+        int[] nextPositions = m_levelStarts.clone();
+        for (int i = 0; i < size; i++)
+        {
+            m_nodesByLevel[nextPositions[levels[i]]++] = i;
+        }
+    }
+
+    /**
+     * Processes all nodes, level by level.
+     */
+    public void run()
+    {
+        for (int level = 0; level + 1 < m_levelStarts.length; level++)
+        {
+            int start = m_levelStarts[level];
+            int end = m_levelStarts[level + 1];
+            if (end - start < SEQUENTIAL_THRESHOLD)
+            {
+                processRange(start, end);
+            }
+            else
+            {
+                ForkJoinPool.commonPool().invoke(new RangeAction(start, end));
+            }
+        }
+    }
+
+    /**
+     * Returns whether the output of the node with the given index is out of
+     * date. Only meaningful after {@link #run()} has been called.
+     */
+    public boolean isInvalid(int node)
+    {
+        return m_invalid[node];
+    }
+
+    private void processRange(int start, int end)
+    {
+        for (int position = start; position < end; position++)
+        {
+            int node = m_nodesByLevel[position];
+
+            // Calculate the most recent timestamp associated with the dependencies (direct/indirect) of this node
+            long maxDependencyTimestamp = Long.MIN_VALUE;
+            for (int dependency : m_dependencyIndices[node])
+            {
+                maxDependencyTimestamp = Math.max(maxDependencyTimestamp, Math.max(
+                        m_maxOutputTimestamps[dependency], m_maxDependencyTimestamps[dependency]));
+            }
+
+            byte fingerprintState = m_fingerprintStates == null ? FINGERPRINT_UNKNOWN : m_fingerprintStates[node];
+            if (fingerprintState == FINGERPRINT_UNKNOWN)
+            {
+                // If a dependency has a more recent timestamp, the output of this node is invalid
+                m_maxDependencyTimestamps[node] = maxDependencyTimestamp;
+                if (maxDependencyTimestamp > m_minOutputTimestamps[node])
+                {
+                    invalidate(node);
+                }
+            }
+            else if (fingerprintState == FINGERPRINT_CHANGED || maxDependencyTimestamp == Long.MAX_VALUE)
+            {
+                // Invalid or missing output anywhere upstream (including behind structure nodes) is marked by
+                // Long.MAX_VALUE, which only propagates through invalid nodes and those validated by timestamp
+                m_maxDependencyTimestamps[node] = maxDependencyTimestamp;
+                invalidate(node);
+            }
+            else
+            {
+                // Output validated by content is current, however recently its dependencies were touched
+                m_maxDependencyTimestamps[node] = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    private void invalidate(int node)
+    {
+        m_invalid[node] = true;
+        m_maxOutputTimestamps[node] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Processes a range of positions in a single level, splitting it if large.
+     */
+    private final class RangeAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 0L;
+
+        private final int m_start;
+        private final int m_end;
+
+        public RangeAction(int start, int end)
+        {
+            m_start = start;
+            m_end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (m_end - m_start <= SEQUENTIAL_THRESHOLD)
+            {
+                processRange(m_start, m_end);
+            }
+            else
+            {
+                int middle = (m_start + m_end) >>> 1;
+                invokeAll(new RangeAction(m_start, middle), new RangeAction(middle, m_end));
+            }
+        }
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.tripadvisor.reflow;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
@@ -32,13 +37,26 @@ import com.google.common.base.Preconditions;
  *
  * <p>Scheduling tokens generated by this class can only be used with the
  * instance that generated them, but they remain valid indefinitely.</p>
+ *
+ * <p>Fused tasks (see {@link #submitFused(List, List)}) and batched tasks
+ * (see {@link #submitBatch(List, List)}) run one after another in a single
+ * runnable submitted to the executor. A continuation
+ * (see {@link #submitContinuation(Object, TaskCompletionCallback)})
+ * submitted while a task completes runs on the same thread once the
+ * completion has been signaled, without going through the executor.</p>
  */
-public class LocalTaskScheduler<T> implements TaskScheduler<T>
+public class LocalTaskScheduler<T> implements FusingTaskScheduler<T>, ContinuingTaskScheduler<T>
 {
     private final Executor m_executor;
     private final Function<T, ? extends Runnable> m_taskToRunnableFunc;
     private final ConcurrentMap<ScheduledTaskToken, CompletionStage<Void>> m_futures = new ConcurrentHashMap<>();
 
+    /**
+     * Holds the continuation to run after the current unit of work,
+     * while a thread is running one for this scheduler.
+     */
+    private final ThreadLocal<Queue<Runnable>> m_continuations = new ThreadLocal<>();
+
     private LocalTaskScheduler(Executor executor, Function<T, ? extends Runnable> taskToRunnableFunc)
     {
         m_executor = executor;
@@ -71,9 +89,156 @@ public class LocalTaskScheduler<T> implements TaskScheduler<T>
     @Override
     public ScheduledTaskToken submit(T task, TaskCompletionCallback callback)
     {
-        CompletionStage<Void> future = CompletableFuture.runAsync(m_taskToRunnableFunc.apply(task), m_executor);
+        Runnable runnable = m_taskToRunnableFunc.apply(task);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.handle(makeHandler(callback));
+        CompletableFuture.runAsync(() -> runWithContinuations(() -> runTask(runnable, future)), m_executor);
+        return register(future);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ScheduledTaskToken submitContinuation(T task, TaskCompletionCallback callback)
+    {
+        Queue<Runnable> continuations = m_continuations.get();
+        if (continuations == null || !continuations.isEmpty())
+        {
+            // Not running a unit of work, or this unit already has a continuation
+            return submit(task, callback);
+        }
+
+        Runnable runnable = m_taskToRunnableFunc.apply(task);
+        CompletableFuture<Void> future = new CompletableFuture<>();
         future.handle(makeHandler(callback));
+        continuations.add(() -> runTask(runnable, future));
+        return register(future);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ScheduledTaskToken> submitFused(List<? extends T> tasks,
+                                                List<? extends TaskCompletionCallback> callbacks)
+    {
+        return submitUnit(tasks, callbacks, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ScheduledTaskToken> submitBatch(List<? extends T> tasks,
+                                                List<? extends TaskCompletionCallback> callbacks)
+    {
+        return submitUnit(tasks, callbacks, false);
+    }
 
+    private List<ScheduledTaskToken> submitUnit(List<? extends T> tasks,
+                                                List<? extends TaskCompletionCallback> callbacks,
+                                                boolean fused)
+    {
+        Preconditions.checkArgument(tasks.size() == callbacks.size(),
+                                    "Got %s tasks but %s callbacks", tasks.size(), callbacks.size());
+
+        List<Runnable> runnables = new ArrayList<>(tasks.size());
+        List<CompletableFuture<Void>> futures = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.handle(makeHandler(callbacks.get(i)));
+
+            runnables.add(m_taskToRunnableFunc.apply(tasks.get(i)));
+            futures.add(future);
+        }
+
+        Runnable unit = fused ? () -> runFused(runnables, futures) : () -> runBatch(runnables, futures);
+        CompletableFuture.runAsync(() -> runWithContinuations(unit), m_executor);
+
+        List<ScheduledTaskToken> tokens = new ArrayList<>(tasks.size());
+        for (CompletableFuture<Void> future : futures)
+        {
+            tokens.add(register(future));
+        }
+        return tokens;
+    }
+
+    private static void runFused(List<Runnable> runnables, List<CompletableFuture<Void>> futures)
+    {
+        for (int i = 0; i < runnables.size(); i++)
+        {
+            if (!runTask(runnables.get(i), futures.get(i)))
+            {
+                for (int j = i + 1; j < futures.size(); j++)
+                {
+                    futures.get(j).completeExceptionally(
+                            new CancellationException("Not run because an earlier fused task failed"));
+                }
+                return;
+            }
+        }
+    }
+
+    private static void runBatch(List<Runnable> runnables, List<CompletableFuture<Void>> futures)
+    {
+        for (int i = 0; i < runnables.size(); i++)
+        {
+            runTask(runnables.get(i), futures.get(i));
+        }
+    }
+
+    /**
+     * Runs a task and completes its future, returning whether it succeeded.
+     */
+    private static boolean runTask(Runnable runnable, CompletableFuture<Void> future)
+    {
+        try
+        {
+            runnable.run();
+        }
+        catch (Throwable t)
+        {
+            future.completeExceptionally(t);
+            return false;
+        }
+        future.complete(null);
+        return true;
+    }
+
+    /**
+     * Runs a unit of work on the current thread, followed by the
+     * continuations submitted while signaling its completion.
+     */
+    private void runWithContinuations(Runnable unit)
+    {
+        // A direct executor may run one unit inside another
+        Queue<Runnable> outer = m_continuations.get();
+        Queue<Runnable> continuations = new ArrayDeque<>(1);
+        m_continuations.set(continuations);
+        try
+        {
+            for (Runnable next = unit; next != null; next = continuations.poll())
+            {
+                next.run();
+            }
+        }
+        finally
+        {
+            if (outer == null)
+            {
+                m_continuations.remove();
+            }
+            else
+            {
+                m_continuations.set(outer);
+            }
+        }
+    }
+
+    private ScheduledTaskToken register(CompletionStage<Void> future)
+    {
         ScheduledTaskToken token = new ScheduledTaskToken() {};
         m_futures.put(token, future);
         return token;
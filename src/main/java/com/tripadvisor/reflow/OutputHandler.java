@@ -20,20 +20,24 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Stream;
 
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 /**
@@ -48,12 +52,25 @@ import static java.util.stream.Collectors.toMap;
  *
  * <p>If the removal of a particular piece of output results in an exception,
  * any other pieces of output that were slated for removal may persist.</p>
+ *
+ * <p>If a {@link FingerprintStore} is given, output is validated by content
+ * where possible. When a task succeeds, the fingerprints of its input (the
+ * output of the nearest dependencies that have tasks, looking through
+ * structure nodes) are recorded. Later, if all of those outputs are
+ * {@link FingerprintedOutput}s, the task's output is only considered
+ * out-of-date if their content changed or the output of any upstream node
+ * is out-of-date or missing; touching a file without changing it has no
+ * effect. Other nodes, and nodes that have not succeeded since the store
+ * was created, are validated by timestamp.</p>
  */
 public class OutputHandler
 {
     @Nullable
     private final OutputRemovalFilter m_outputRemovalFilter;
 
+    @Nullable
+    private final FingerprintStore m_fingerprintStore;
+
     /**
      * Cache of output instances associated with nodes. This is necessary when
      * using output instances as map keys: since the {@link Output} interface
@@ -72,9 +89,11 @@ public class OutputHandler
                 }
             });
 
-    private OutputHandler(@Nullable OutputRemovalFilter outputRemovalFilter)
+    private OutputHandler(@Nullable OutputRemovalFilter outputRemovalFilter,
+                          @Nullable FingerprintStore fingerprintStore)
     {
         m_outputRemovalFilter = outputRemovalFilter;
+        m_fingerprintStore = fingerprintStore;
     }
 
     /**
@@ -83,7 +102,7 @@ public class OutputHandler
      */
     public static OutputHandler create()
     {
-        return new OutputHandler(null);
+        return new OutputHandler(null, null);
     }
 
     /**
@@ -91,7 +110,26 @@ public class OutputHandler
      */
     public static OutputHandler create(OutputRemovalFilter outputRemovalFilter)
     {
-        return new OutputHandler(Preconditions.checkNotNull(outputRemovalFilter));
+        return new OutputHandler(Preconditions.checkNotNull(outputRemovalFilter), null);
+    }
+
+    /**
+     * Creates a new instance that validates output by content using the
+     * given fingerprint store. Output removal is not filtered.
+     */
+    public static OutputHandler create(FingerprintStore fingerprintStore)
+    {
+        return new OutputHandler(null, Preconditions.checkNotNull(fingerprintStore));
+    }
+
+    /**
+     * Creates a new instance with the given removal filter that validates
+     * output by content using the given fingerprint store.
+     */
+    public static OutputHandler create(OutputRemovalFilter outputRemovalFilter, FingerprintStore fingerprintStore)
+    {
+        return new OutputHandler(Preconditions.checkNotNull(outputRemovalFilter),
+                                 Preconditions.checkNotNull(fingerprintStore));
     }
 
     /**
@@ -161,14 +199,14 @@ public class OutputHandler
      */
     public void removeInvalidOutput(Target<?> target) throws IOException
     {
-        InvalidationResult<?> result = invalidateOutput(target.getNodes().values());
+        InvalidationResult<?> result = invalidateOutput(target);
         removeOutput(result.getInvalidNodes(), OutputRemovalReason.PREDATES_DEPENDENCY);
     }
 
     /**
-     * Checks the given nodes for potentially out-of-date output. Output is
-     * considered out-of-date if the output of a direct or indirect dependency
-     * is more recent.
+     * Checks the nodes in a target for potentially out-of-date output. Output
+     * is considered out-of-date if the output of a direct or indirect
+     * dependency within the target is more recent.
      *
      * <p>Returns a map of output to validated timestamp (where out-of-date or
      * missing outputs are indicated by {@link Instant#MAX}) and a list of
@@ -176,49 +214,64 @@ public class OutputHandler
      *
      * @throws IOException if an I/O error occurs
      */
-    <T extends Task> InvalidationResult<T> invalidateOutput(Collection<WorkflowNode<T>> targetNodes) throws IOException
+    <T extends Task> InvalidationResult<T> invalidateOutput(Target<T> target) throws IOException
     {
+        // Target nodes are in topological order; refer to them by position from here on
+        List<WorkflowNode<T>> nodes = ImmutableList.copyOf(target.getNodes().values());
+        int size = nodes.size();
+        Map<WorkflowNode<T>, Integer> indices = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++)
+        {
+            indices.put(nodes.get(i), i);
+        }
+
+        // Look up path output timestamps together, since they can be batched by directory
+        List<PathOutput> pathOutputs = new ArrayList<>();
+        for (WorkflowNode<T> node : nodes)
+        {
+            for (Output output : getCachedOutputs(node))
+            {
+                if (output instanceof PathOutput)
+                {
+                    pathOutputs.add((PathOutput) output);
+                }
+            }
+        }
+        Map<PathOutput, Optional<Instant>> pathTimestamps = PathOutput.getTimestamps(pathOutputs);
+
         // Cache output timestamps
         // Replace nulls with Instant.MAX (treat outputs that haven't been created yet as newer than anything else)
         Map<Output, Instant> timestamps = new HashMap<>();
-        for (WorkflowNode<T> node : targetNodes)
+        long[] minOutputTimestamps = new long[size];
+        long[] maxOutputTimestamps = new long[size];
+        for (int i = 0; i < size; i++)
         {
-            for (Output output : getCachedOutputs(node))
+            long minOutputTimestamp = Long.MAX_VALUE;
+            long maxOutputTimestamp = Long.MIN_VALUE;
+            for (Output output : getCachedOutputs(nodes.get(i)))
             {
-                timestamps.put(output, output.getTimestamp().orElse(Instant.MAX));
+                Optional<Instant> pathTimestamp = pathTimestamps.get(output);
+                Instant timestamp = (pathTimestamp != null ? pathTimestamp : output.getTimestamp()).orElse(Instant.MAX);
+                timestamps.put(output, timestamp);
+                minOutputTimestamp = Math.min(minOutputTimestamp, toEpochNanos(timestamp));
+                maxOutputTimestamp = Math.max(maxOutputTimestamp, toEpochNanos(timestamp));
             }
+            minOutputTimestamps[i] = minOutputTimestamp;
+            maxOutputTimestamps[i] = maxOutputTimestamp;
         }
 
-        Map<WorkflowNode<T>, Instant> maxDependencyTimestamps =
-                Maps.newHashMapWithExpectedSize(targetNodes.size());
+        LeveledInvalidation invalidation = new LeveledInvalidation(
+                dependencyIndices(target.getWorkflow(), nodes, indices), minOutputTimestamps, maxOutputTimestamps,
+                m_fingerprintStore == null ? null : fingerprintStates(target.getWorkflow(), nodes, m_fingerprintStore));
+        invalidation.run();
 
+        // Clear the timestamps of invalid output (and maybe actually delete the output)
         Collection<WorkflowNode<T>> invalidNodes = new ArrayList<>();
-        for (WorkflowNode<T> node : targetNodes)
+        for (int i = 0; i < size; i++)
         {
-            // Calculate the most recent timestamp associated with the dependencies (direct/indirect) of this node
-            Instant maxDependencyTimestamp = node.getDependencies().stream()
-                    .filter(targetNodes::contains)
-                    .flatMap(dependency -> Stream.concat(
-                            // Consider the timestamps of the output of each direct dependency...
-                            getCachedOutputs(dependency).stream().map(timestamps::get),
-                            // ...and indirect dependency
-                            Stream.of(maxDependencyTimestamps.get(dependency))
-                    ))
-                    .max(Comparator.naturalOrder())
-                    .orElse(Instant.MIN);
-
-            maxDependencyTimestamps.put(node, maxDependencyTimestamp);
-
-            // Calculate the least recent timestamp associated with the output of this node
-            Instant minOutputTimestamp = getCachedOutputs(node).stream()
-                    .map(timestamps::get)
-                    .min(Comparator.naturalOrder())
-                    .orElse(Instant.MAX);
-
-            // If a dependency has a more recent timestamp, the output of this node is invalid
-            // Clear associated timestamps (and maybe actually delete the output)
-            if (node.hasTask() && maxDependencyTimestamp.compareTo(minOutputTimestamp) > 0)
+            if (invalidation.isInvalid(i))
             {
+                WorkflowNode<T> node = nodes.get(i);
                 invalidNodes.add(node);
                 for (Output output : getCachedOutputs(node))
                 {
@@ -230,6 +283,193 @@ public class OutputHandler
         return new InvalidationResult<>(timestamps, invalidNodes);
     }
 
+    /**
+     * Records the fingerprints of the input of a node of the given
+     * workflow whose task has just succeeded, if validating output by content.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    <T extends Task> void recordSuccess(Workflow<T> workflow, WorkflowNode<T> node) throws IOException
+    {
+        if (m_fingerprintStore == null || !node.hasTask())
+        {
+            return;
+        }
+
+        Optional<Map<String, String>> dependencyHashes =
+                dependencyHashes(workflow, node, m_fingerprintStore, new HashMap<>());
+        if (dependencyHashes.isPresent())
+        {
+            m_fingerprintStore.putDependencyHashes(node.getKey(), dependencyHashes.get());
+        }
+    }
+
+    /**
+     * Compares the content of the input of each of the given
+     * nodes to that recorded when its task last succeeded.
+     */
+    private <T extends Task> byte[] fingerprintStates(Workflow<T> workflow, List<WorkflowNode<T>> nodes,
+                                                      FingerprintStore fingerprintStore) throws IOException
+    {
+        byte[] fingerprintStates = new byte[nodes.size()];
+        Map<Output, Optional<ContentFingerprint>> fingerprints = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            WorkflowNode<T> node = nodes.get(i);
+            if (!node.hasTask())
+            {
+                continue;
+            }
+
+            Optional<Map<String, String>> recorded = fingerprintStore.getDependencyHashes(node.getKey());
+            if (!recorded.isPresent())
+            {
+                continue;
+            }
+
+            Optional<Map<String, String>> current = dependencyHashes(workflow, node, fingerprintStore, fingerprints);
+            if (current.isPresent())
+            {
+                fingerprintStates[i] = current.get().equals(recorded.get()) ?
+                        LeveledInvalidation.FINGERPRINT_UNCHANGED : LeveledInvalidation.FINGERPRINT_CHANGED;
+            }
+        }
+        return fingerprintStates;
+    }
+
+    /**
+     * Returns the content hash of each input of the given node of the given
+     * workflow, keyed by fingerprint key, or an empty optional if any input
+     * can't be fingerprinted. Fingerprints are reused and updated via the
+     * given store.
+     *
+     * @throws IOException if an I/O error occurs
+     * @see #inputNodes(Workflow, WorkflowNode)
+     */
+    <T extends Task> Optional<Map<String, String>> getInputHashes(Workflow<T> workflow, WorkflowNode<T> node,
+                                                                  FingerprintStore fingerprintStore)
+            throws IOException
+    {
+        return dependencyHashes(workflow, node, fingerprintStore, new HashMap<>());
+    }
+
+    /**
+     * Returns the content hash of each input of the given node, keyed by
+     * fingerprint key, or an empty optional if any of those outputs can't be
+     * fingerprinted. Missing output is mapped to an empty string.
+     */
+    private <T extends Task> Optional<Map<String, String>> dependencyHashes(
+            Workflow<T> workflow, WorkflowNode<T> node, FingerprintStore fingerprintStore,
+            Map<Output, Optional<ContentFingerprint>> fingerprints) throws IOException
+    {
+        Map<String, String> hashes = new HashMap<>();
+        for (WorkflowNode<T> inputNode : inputNodes(workflow, node))
+        {
+            for (Output output : getCachedOutputs(inputNode))
+            {
+                if (!(output instanceof FingerprintedOutput))
+                {
+                    return Optional.empty();
+                }
+
+                FingerprintedOutput fingerprintedOutput = (FingerprintedOutput) output;
+                Optional<ContentFingerprint> fingerprint = fingerprints.get(output);
+                if (fingerprint == null)
+                {
+                    fingerprint = fingerprint(fingerprintedOutput, fingerprintStore);
+                    fingerprints.put(output, fingerprint);
+                }
+                hashes.put(fingerprintedOutput.getFingerprintKey(), fingerprint.map(ContentFingerprint::getHash)
+                        .orElse(""));
+            }
+        }
+        return Optional.of(hashes);
+    }
+
+    /**
+     * Returns the nodes whose output a node's task consumes: the nearest
+     * nodes with tasks among its direct and indirect dependencies, looking
+     * through structure nodes.
+     */
+    private static <T extends Task> Collection<WorkflowNode<T>> inputNodes(Workflow<T> workflow,
+                                                                           WorkflowNode<T> node)
+    {
+        return TraversalUtils.collectNodes(workflow.getDependencies(node),
+                                           dependency -> dependency.hasTask() ?
+                                                   ImmutableSet.of() : workflow.getDependencies(dependency))
+                .stream()
+                .filter(WorkflowNode::hasTask)
+                .collect(toList());
+    }
+
+    /**
+     * Fingerprints an output, reusing and updating the
+     * fingerprint most recently recorded for it.
+     */
+    private static Optional<ContentFingerprint> fingerprint(FingerprintedOutput output,
+                                                            FingerprintStore fingerprintStore) throws IOException
+    {
+        String key = output.getFingerprintKey();
+        Optional<ContentFingerprint> previous = fingerprintStore.getOutputFingerprint(key);
+        Optional<ContentFingerprint> fingerprint = output.getFingerprint(previous.orElse(null));
+        if (fingerprint.isPresent() && !fingerprint.equals(previous))
+        {
+            fingerprintStore.putOutputFingerprint(key, fingerprint.get());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * For each of the given nodes, returns the indices of its
+     * dependencies within the given index map, ignoring others.
+     */
+    private static <T extends Task> int[][] dependencyIndices(Workflow<T> workflow, List<WorkflowNode<T>> nodes,
+                                                              Map<WorkflowNode<T>, Integer> indices)
+    {
+        int[][] dependencyIndices = new int[nodes.size()][];
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            Set<WorkflowNode<T>> dependencies = workflow.getDependencies(nodes.get(i));
+            int[] nodeDependencyIndices = new int[dependencies.size()];
+            int count = 0;
+            for (WorkflowNode<T> dependency : dependencies)
+            {
+                Integer index = indices.get(dependency);
+                if (index != null)
+                {
+                    nodeDependencyIndices[count++] = index;
+                }
+            }
+            dependencyIndices[i] = count == nodeDependencyIndices.length ?
+                    nodeDependencyIndices : Arrays.copyOf(nodeDependencyIndices, count);
+        }
+        return dependencyIndices;
+    }
+
+    /**
+     * Converts a timestamp to nanoseconds since the epoch. Instant.MAX maps to
+     * Long.MAX_VALUE; other timestamps outside the representable range (before
+     * 1677 or after 2262) are clamped to just within it.
+     */
+    private static long toEpochNanos(Instant timestamp)
+    {
+        if (timestamp.equals(Instant.MAX))
+        {
+            return Long.MAX_VALUE;
+        }
+
+        try
+        {
+            long nanos = Math.addExact(Math.multiplyExact(timestamp.getEpochSecond(), 1_000_000_000L),
+                                       timestamp.getNano());
+            return Math.max(Long.MIN_VALUE + 1, Math.min(Long.MAX_VALUE - 1, nanos));
+        }
+        catch (ArithmeticException e)
+        {
+            return timestamp.getEpochSecond() < 0 ? Long.MIN_VALUE + 1 : Long.MAX_VALUE - 1;
+        }
+    }
+
     /**
      * Returns the cached output instances associated with the given node.
      * These instances are used to key the validated timestamps map in an
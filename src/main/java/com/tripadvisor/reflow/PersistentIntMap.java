@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * An immutable map from int keys to non-null values, supporting updates
+ * that share structure with the original map.
+ *
+ * <p>The map is a trie consuming five bits of the key per level, with each
+ * level holding only the children that are present. An update copies the
+ * path from the root to the affected entry and shares everything else, so
+ * it takes time proportional to the height of the trie, which is at most
+ * seven and grows only as large keys are added. Values are iterated in
+ * unsigned key order.</p>
+ */
+final class PersistentIntMap<V> implements Iterable<V>
+{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null, 0, 0);
+
+    @Nullable
+    private final Node m_root;
+
+    /**
+     * The number of key bits consumed below the root.
+     * Keys with bits set above {@code m_shift + BITS} are not present.
+     */
+    private final int m_shift;
+    private final int m_size;
+
+    private PersistentIntMap(@Nullable Node root, int shift, int size)
+    {
+        m_root = root;
+        m_shift = shift;
+        m_size = size;
+    }
+
+    private static final class Node
+    {
+        private final int m_bitmap;
+
+        /**
+         * Children in order of their bits in the bitmap; values at the
+         * bottom level and nodes above it.
+         */
+        private final Object[] m_children;
+
+        Node(int bitmap, Object[] children)
+        {
+            m_bitmap = bitmap;
+            m_children = children;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentIntMap<V> empty()
+    {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * Returns a map of the given keys to the values at the same positions.
+     * The keys must be distinct and in unsigned order.
+     */
+    static <V> PersistentIntMap<V> copyOf(int[] keys, List<? extends V> values)
+    {
+        Preconditions.checkArgument(keys.length == values.size(), "Expected %s values", keys.length);
+        if (keys.length == 0)
+        {
+            return empty();
+        }
+        int shift = shiftFor(keys[keys.length - 1], 0);
+        return new PersistentIntMap<>(build(keys, values, 0, keys.length, shift), shift, keys.length);
+    }
+
+    private static Node build(int[] keys, List<?> values, int from, int to, int shift)
+    {
+        int bitmap = 0;
+        for (int i = from; i < to; i++)
+        {
+            bitmap |= 1 << ((keys[i] >>> shift) & MASK);
+        }
+
+        Object[] children = new Object[Integer.bitCount(bitmap)];
+        int start = from;
+        for (int c = 0; c < children.length; c++)
+        {
+            int digit = (keys[start] >>> shift) & MASK;
+            int end = start + 1;
+            while (end < to && ((keys[end] >>> shift) & MASK) == digit)
+            {
+                end++;
+            }
+            Preconditions.checkArgument(shift > 0 || end == start + 1, "Repeated key %s", keys[start]);
+            children[c] = shift == 0 ? Preconditions.checkNotNull(values.get(start))
+                    : build(keys, values, start, end, shift - BITS);
+            start = end;
+        }
+        return new Node(bitmap, children);
+    }
+
+    /**
+     * Returns the smallest shift, no less than the given one, at which a
+     * root can hold the given key.
+     */
+    private static int shiftFor(int key, int shift)
+    {
+        while (shift < MAX_SHIFT && (key >>> (shift + BITS)) != 0)
+        {
+            shift += BITS;
+        }
+        return shift;
+    }
+
+    int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * Returns the value for the given key, or null if there is none.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(int key)
+    {
+        if (m_shift < MAX_SHIFT && (key >>> (m_shift + BITS)) != 0)
+        {
+            return null;
+        }
+
+        Node node = m_root;
+        for (int shift = m_shift; node != null; shift -= BITS)
+        {
+            int bit = 1 << ((key >>> shift) & MASK);
+            if ((node.m_bitmap & bit) == 0)
+            {
+                return null;
+            }
+            Object child = node.m_children[Integer.bitCount(node.m_bitmap & (bit - 1))];
+            if (shift == 0)
+            {
+                return (V) child;
+            }
+            node = (Node) child;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a map like this one, but with the given key mapped to the
+     * given value. This map is not modified.
+     */
+    PersistentIntMap<V> with(int key, V value)
+    {
+        Preconditions.checkNotNull(value);
+        V previous = get(key);
+        if (previous == value)
+        {
+            return this;
+        }
+
+        int shift = shiftFor(key, m_shift);
+        Node root = m_root;
+        for (int s = m_shift; s < shift && root != null; s += BITS)
+        {
+            root = new Node(1, new Object[] { root });
+        }
+        return new PersistentIntMap<>(with(root, shift, key, value), shift, previous == null ? m_size + 1 : m_size);
+    }
+
+    private static Node with(@Nullable Node node, int shift, int key, Object value)
+    {
+        int bit = 1 << ((key >>> shift) & MASK);
+        if (node == null)
+        {
+            return new Node(bit, new Object[] { shift == 0 ? value : with(null, shift - BITS, key, value) });
+        }
+
+        int index = Integer.bitCount(node.m_bitmap & (bit - 1));
+        if ((node.m_bitmap & bit) != 0)
+        {
+            Object[] children = node.m_children.clone();
+            children[index] = shift == 0 ? value : with((Node) children[index], shift - BITS, key, value);
+            return new Node(node.m_bitmap, children);
+        }
+
+        Object[] children = new Object[node.m_children.length + 1];
+        System.arraycopy(node.m_children, 0, children, 0, index);
+        children[index] = shift == 0 ? value : with(null, shift - BITS, key, value);
+        System.arraycopy(node.m_children, index, children, index + 1, node.m_children.length - index);
+        return new Node(node.m_bitmap | bit, children);
+    }
+
+    /**
+     * Returns a map like this one, but without the given key.
+     * This map is not modified.
+     */
+    PersistentIntMap<V> without(int key)
+    {
+        if (get(key) == null)
+        {
+            return this;
+        }
+        return new PersistentIntMap<>(without(m_root, m_shift, key), m_shift, m_size - 1);
+    }
+
+    /**
+     * Returns the given node without the given key, which must be present,
+     * or null if nothing else remains.
+     */
+    @Nullable
+    private static Node without(Node node, int shift, int key)
+    {
+        int bit = 1 << ((key >>> shift) & MASK);
+        int index = Integer.bitCount(node.m_bitmap & (bit - 1));
+        Node child = shift == 0 ? null : without((Node) node.m_children[index], shift - BITS, key);
+        if (child != null)
+        {
+            Object[] children = node.m_children.clone();
+            children[index] = child;
+            return new Node(node.m_bitmap, children);
+        }
+        if (node.m_children.length == 1)
+        {
+            return null;
+        }
+
+        Object[] children = new Object[node.m_children.length - 1];
+        System.arraycopy(node.m_children, 0, children, 0, index);
+        System.arraycopy(node.m_children, index + 1, children, index, children.length - index);
+        return new Node(node.m_bitmap & ~bit, children);
+    }
+
+    /**
+     * Returns an iterator over the values of this map in unsigned key order.
+     */
+    @Override
+    public Iterator<V> iterator()
+    {
+        int levels = m_shift / BITS + 1;
+        Node[] path = new Node[levels];
+        int[] indexes = new int[levels];
+        path[0] = m_root;
+
+        return new AbstractIterator<V>()
+        {
+            private int m_depth = m_root == null ? -1 : 0;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected V computeNext()
+            {
+                while (m_depth >= 0)
+                {
+                    Node node = path[m_depth];
+                    if (indexes[m_depth] == node.m_children.length)
+                    {
+                        m_depth--;
+                        continue;
+                    }
+
+                    Object child = node.m_children[indexes[m_depth]++];
+                    if (m_depth == levels - 1)
+                    {
+                        return (V) child;
+                    }
+                    m_depth++;
+                    path[m_depth] = (Node) child;
+                    indexes[m_depth] = 0;
+                }
+                return endOfData();
+            }
+        };
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Precomputed transitive closure of a workflow, answering in constant time
+ * whether one node is an ancestor (a direct or indirect dependency) of
+ * another.
+ *
+ * <p>The index holds the ancestors and descendants of each node as bit sets.
+ * Since a node's ancestors precede it in topological order and its
+ * descendants follow it, each set only spans part of the workflow, but the
+ * index still takes memory quadratic in the number of nodes: roughly
+ * <i>n</i><sup>2</sup>/8 bytes for <i>n</i> nodes.</p>
+ *
+ * @see Workflow#getReachabilityIndex()
+ */
+public final class ReachabilityIndex<T extends Task>
+{
+    private final Workflow<T> m_workflow;
+
+    /**
+     * The ordinals of the ancestors of each node.
+     */
+    private final BitSet[] m_ancestors;
+
+    /**
+     * The ordinals of the descendants of each node, reversed (so that bit
+     * {@code size - 1 - j} represents ordinal {@code j}) to keep them compact.
+     */
+    private final BitSet[] m_reversedDescendants;
+
+    private ReachabilityIndex(Workflow<T> workflow)
+    {
+        m_workflow = workflow;
+        int size = workflow.getOrdinalBound();
+        int[] order = workflow.getTopologicalOrder();
+        m_ancestors = new BitSet[size];
+        m_reversedDescendants = new BitSet[size];
+
+        for (int i : order)
+        {
+            BitSet ancestors = new BitSet();
+            for (WorkflowNode<T> dependency : workflow.getDependencies(workflow.getNode(i)))
+            {
+                ancestors.or(m_ancestors[dependency.getOrdinal()]);
+                ancestors.set(dependency.getOrdinal());
+            }
+            m_ancestors[i] = ancestors;
+        }
+
+        for (int k = order.length - 1; k >= 0; k--)
+        {
+            int i = order[k];
+            BitSet reversedDescendants = new BitSet();
+            for (WorkflowNode<T> dependent : workflow.getDependents(workflow.getNode(i)))
+            {
+                reversedDescendants.or(m_reversedDescendants[dependent.getOrdinal()]);
+                reversedDescendants.set(size - 1 - dependent.getOrdinal());
+            }
+            m_reversedDescendants[i] = reversedDescendants;
+        }
+    }
+
+    static <U extends Task> ReachabilityIndex<U> build(Workflow<U> workflow)
+    {
+        return new ReachabilityIndex<>(workflow);
+    }
+
+    /**
+     * Returns whether the first node is a direct or indirect dependency
+     * of the second.
+     *
+     * @throws IllegalArgumentException if either node is not in the workflow
+     */
+    public boolean isAncestor(WorkflowNode<T> ancestor, WorkflowNode<T> descendant)
+    {
+        checkNode(ancestor);
+        checkNode(descendant);
+        return m_ancestors[descendant.getOrdinal()].get(ancestor.getOrdinal());
+    }
+
+    /**
+     * Returns the direct and indirect dependencies of the given node.
+     *
+     * @throws IllegalArgumentException if the node is not in the workflow
+     */
+    public Set<WorkflowNode<T>> getAncestors(WorkflowNode<T> node)
+    {
+        checkNode(node);
+        return toNodes(m_ancestors[node.getOrdinal()]);
+    }
+
+    /**
+     * Returns the direct and indirect dependents of the given node.
+     *
+     * @throws IllegalArgumentException if the node is not in the workflow
+     */
+    public Set<WorkflowNode<T>> getDescendants(WorkflowNode<T> node)
+    {
+        checkNode(node);
+        BitSet descendants = new BitSet();
+        addDescendants(node, descendants);
+        return toNodes(descendants);
+    }
+
+    /**
+     * Returns the ordinals of the given nodes and their ancestors.
+     */
+    BitSet getAncestorOrdinals(Collection<WorkflowNode<T>> nodes)
+    {
+        BitSet ordinals = new BitSet();
+        for (WorkflowNode<T> node : nodes)
+        {
+            ordinals.or(m_ancestors[node.getOrdinal()]);
+            ordinals.set(node.getOrdinal());
+        }
+        return ordinals;
+    }
+
+    /**
+     * Returns the ordinals of the given nodes and their descendants.
+     */
+    BitSet getDescendantOrdinals(Collection<WorkflowNode<T>> nodes)
+    {
+        BitSet ordinals = new BitSet();
+        for (WorkflowNode<T> node : nodes)
+        {
+            addDescendants(node, ordinals);
+            ordinals.set(node.getOrdinal());
+        }
+        return ordinals;
+    }
+
+    private void addDescendants(WorkflowNode<T> node, BitSet ordinals)
+    {
+        int last = m_ancestors.length - 1;
+        BitSet reversedDescendants = m_reversedDescendants[node.getOrdinal()];
+        for (int i = reversedDescendants.nextSetBit(0); i >= 0; i = reversedDescendants.nextSetBit(i + 1))
+        {
+            ordinals.set(last - i);
+        }
+    }
+
+    private Set<WorkflowNode<T>> toNodes(BitSet ordinals)
+    {
+        ImmutableSet.Builder<WorkflowNode<T>> nodes = ImmutableSet.builder();
+        for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1))
+        {
+            nodes.add(m_workflow.getNode(i));
+        }
+        return nodes.build();
+    }
+
+    private void checkNode(WorkflowNode<T> node)
+    {
+        Preconditions.checkArgument(m_workflow.containsNode(node), "Node %s is not in the workflow", node);
+    }
+}
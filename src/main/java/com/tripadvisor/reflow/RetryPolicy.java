@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.function.Predicate;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+
+/**
+ * Determines whether and when a failed {@link RetryableTask} is resubmitted.
+ *
+ * <p>A task is attempted at most a fixed number of times. After each failed
+ * attempt, it is resubmitted after a delay that grows exponentially from an
+ * initial value up to a maximum, provided that the failure is retryable.
+ * Failures reported with a cause are retryable if the cause satisfies the
+ * policy's predicate; failures reported without a cause are always
+ * retryable. While a task is waiting to be resubmitted, its node remains
+ * scheduled.</p>
+ */
+public final class RetryPolicy
+{
+    private final int m_maxAttempts;
+    private final Duration m_initialBackoff;
+    private final double m_backoffMultiplier;
+    private final Duration m_maxBackoff;
+    private final Predicate<? super Throwable> m_retryableFailurePredicate;
+
+    private RetryPolicy(Builder builder)
+    {
+        m_maxAttempts = builder.m_maxAttempts;
+        m_initialBackoff = builder.m_initialBackoff;
+        m_backoffMultiplier = builder.m_backoffMultiplier;
+        m_maxBackoff = builder.m_maxBackoff;
+        m_retryableFailurePredicate = builder.m_retryableFailurePredicate;
+    }
+
+    /**
+     * Creates a builder with default settings: tasks are attempted at most
+     * 3 times, with a backoff starting at 1 second, doubling after each
+     * failure, and capped at 1 minute. All failures are retryable.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Returns the maximum number of times a task is attempted.
+     */
+    public int getMaxAttempts()
+    {
+        return m_maxAttempts;
+    }
+
+    /**
+     * Returns whether a task that has failed the given number of times
+     * (including the latest failure) should be resubmitted.
+     *
+     * @param failures the number of failed attempts so far
+     * @param cause the cause reported with the latest failure, if any
+     */
+    public boolean shouldRetry(int failures, @Nullable Throwable cause)
+    {
+        Preconditions.checkArgument(failures > 0, "Non-positive failure count");
+        return failures < m_maxAttempts && (cause == null || m_retryableFailurePredicate.test(cause));
+    }
+
+    /**
+     * Returns the delay before resubmitting a task that has failed the given
+     * number of times (including the latest failure).
+     */
+    public Duration getBackoff(int failures)
+    {
+        Preconditions.checkArgument(failures > 0, "Non-positive failure count");
+        double nanos = m_initialBackoff.toNanos() * Math.pow(m_backoffMultiplier, failures - 1);
+        return nanos >= m_maxBackoff.toNanos() ? m_maxBackoff : Duration.ofNanos((long) nanos);
+    }
+
+    public static final class Builder
+    {
+        private int m_maxAttempts = 3;
+        private Duration m_initialBackoff = Duration.ofSeconds(1);
+        private double m_backoffMultiplier = 2.0;
+        private Duration m_maxBackoff = Duration.ofMinutes(1);
+        private Predicate<? super Throwable> m_retryableFailurePredicate = cause -> true;
+
+        private Builder()
+        {}
+
+        /**
+         * Sets the maximum number of times a task is attempted,
+         * including the first attempt.
+         */
+        @CanIgnoreReturnValue
+        public Builder setMaxAttempts(int maxAttempts)
+        {
+            Preconditions.checkArgument(maxAttempts > 0, "Non-positive attempt count");
+            m_maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Sets the delay before resubmitting a task after its first failure.
+         */
+        @CanIgnoreReturnValue
+        public Builder setInitialBackoff(Duration initialBackoff)
+        {
+            Preconditions.checkArgument(!initialBackoff.isNegative(), "Negative backoff");
+            m_initialBackoff = initialBackoff;
+            return this;
+        }
+
+        /**
+         * Sets the factor (at least 1) by which the delay grows after each
+         * subsequent failure.
+         */
+        @CanIgnoreReturnValue
+        public Builder setBackoffMultiplier(double backoffMultiplier)
+        {
+            Preconditions.checkArgument(backoffMultiplier >= 1.0, "Invalid multiplier: %s", backoffMultiplier);
+            m_backoffMultiplier = backoffMultiplier;
+            return this;
+        }
+
+        /**
+         * Sets the maximum delay before resubmitting a task.
+         */
+        @CanIgnoreReturnValue
+        public Builder setMaxBackoff(Duration maxBackoff)
+        {
+            Preconditions.checkArgument(!maxBackoff.isNegative(), "Negative backoff");
+            m_maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * Sets the predicate that determines whether a failure
+         * reported with the given cause is retryable.
+         */
+        @CanIgnoreReturnValue
+        public Builder setRetryableFailurePredicate(Predicate<? super Throwable> retryableFailurePredicate)
+        {
+            m_retryableFailurePredicate = Preconditions.checkNotNull(retryableFailurePredicate);
+            return this;
+        }
+
+        /**
+         * Builds a policy with the current settings.
+         */
+        public RetryPolicy build()
+        {
+            return new RetryPolicy(this);
+        }
+    }
+}
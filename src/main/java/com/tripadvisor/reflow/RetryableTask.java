@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+/**
+ * A task that should be resubmitted, according to its
+ * {@link RetryPolicy}, when it fails to execute.
+ */
+public interface RetryableTask extends Task
+{
+    /**
+     * Returns the policy governing resubmission of this task. Any two calls
+     * to this method on this task should return equivalent policies.
+     */
+    RetryPolicy getRetryPolicy();
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Coordinates concurrent executions of the same workflow so that a task
+ * scheduled by one execution is not scheduled again by another.
+ *
+ * <p>Executions that share a registry (see
+ * {@link Execution#setSharedTaskRegistry(SharedTaskRegistry)}) consult it
+ * before submitting a task. If the same node (that is, the node with the
+ * same key in the same workflow instance) is already scheduled by another
+ * execution, the task is not resubmitted. Instead, the execution attaches
+ * to the existing scheduled task instance, registering a callback with its
+ * token if the scheduler accepts it, and otherwise waiting for the outcome
+ * to be reported through the registry.</p>
+ *
+ * <p>Attaching executions share the outcome of the original submission,
+ * so a failure is reported to every attached execution.</p>
+ */
+public class SharedTaskRegistry
+{
+    private final ConcurrentMap<WorkflowNode<?>, SharedTask> m_tasks = new ConcurrentHashMap<>();
+
+    private SharedTaskRegistry()
+    {}
+
+    /**
+     * Creates a new, empty registry.
+     */
+    public static SharedTaskRegistry create()
+    {
+        return new SharedTaskRegistry();
+    }
+
+    /**
+     * Returns the number of tasks currently scheduled through this registry.
+     */
+    public int size()
+    {
+        return m_tasks.size();
+    }
+
+    /**
+     * Submits the task associated with the given node, or attaches to an
+     * existing scheduled instance of it. Returns a token representing the
+     * scheduled task instance, or {@code null} if the callback has already
+     * been invoked or will be invoked through the registry rather than the
+     * scheduler.
+     */
+    @Nullable
+    <U extends Task> ScheduledTaskToken submit(TaskNode<U> node,
+                                              TaskScheduler<? super U> scheduler,
+                                              TaskCompletionCallback callback)
+    {
+        SharedTask sharedTask = new SharedTask();
+        SharedTask existing = m_tasks.putIfAbsent(node, sharedTask);
+        if (existing != null)
+        {
+            return existing.attach(scheduler, callback);
+        }
+
+        ScheduledTaskToken token;
+        try
+        {
+            token = scheduler.submit(node.getTask(), new SharingCallback(this, node, sharedTask, callback));
+        }
+        catch (RuntimeException e)
+        {
+            complete(node, sharedTask, waiter -> waiter.reportFailure("Task could not be scheduled", e));
+            throw e;
+        }
+
+        if (token != null)
+        {
+            sharedTask.publish(token);
+        }
+        return token;
+    }
+
+    private void complete(WorkflowNode<?> node, SharedTask sharedTask, Consumer<TaskCompletionCallback> outcome)
+    {
+        // Later submissions of the same node belong to later runs, so forget this instance first
+        m_tasks.remove(node, sharedTask);
+        sharedTask.complete(outcome);
+    }
+
+    /**
+     * A scheduled task instance that other executions may attach to.
+     */
+    private static final class SharedTask
+    {
+        @GuardedBy("this")
+        @Nullable
+        private ScheduledTaskToken m_token;
+
+        @GuardedBy("this")
+        private final List<TaskCompletionCallback> m_waiters = new ArrayList<>();
+
+        @GuardedBy("this")
+        @Nullable
+        private Consumer<TaskCompletionCallback> m_outcome;
+
+        public synchronized void publish(ScheduledTaskToken token)
+        {
+            m_token = token;
+        }
+
+        @Nullable
+        public <U> ScheduledTaskToken attach(TaskScheduler<U> scheduler, TaskCompletionCallback callback)
+        {
+            ScheduledTaskToken token;
+            Consumer<TaskCompletionCallback> outcome;
+            synchronized (this)
+            {
+                token = m_token;
+                outcome = m_outcome;
+                if (token == null && outcome == null)
+                {
+                    // Still being submitted
+                    m_waiters.add(callback);
+                    return null;
+                }
+            }
+
+            if (outcome != null)
+            {
+                outcome.accept(callback);
+                return null;
+            }
+
+            try
+            {
+                scheduler.registerCallback(token, callback);
+                return token;
+            }
+            catch (InvalidTokenException e)
+            {
+                // Probably scheduled through a different scheduler; wait for the outcome instead
+            }
+
+            synchronized (this)
+            {
+                outcome = m_outcome;
+                if (outcome == null)
+                {
+                    m_waiters.add(callback);
+                    return null;
+                }
+            }
+            outcome.accept(callback);
+            return null;
+        }
+
+        public void complete(Consumer<TaskCompletionCallback> outcome)
+        {
+            List<TaskCompletionCallback> waiters;
+            synchronized (this)
+            {
+                if (m_outcome != null)
+                {
+                    return;
+                }
+                m_outcome = outcome;
+                waiters = new ArrayList<>(m_waiters);
+                m_waiters.clear();
+            }
+            waiters.forEach(outcome);
+        }
+    }
+
+    /**
+     * Task completion callback that passes the outcome of a shared task
+     * on to waiting executions as well as the submitting execution.
+     */
+    private static final class SharingCallback implements TaskCompletionCallback
+    {
+        private final SharedTaskRegistry m_registry;
+        private final WorkflowNode<?> m_node;
+        private final SharedTask m_sharedTask;
+        private final TaskCompletionCallback m_delegate;
+
+        public SharingCallback(SharedTaskRegistry registry, WorkflowNode<?> node, SharedTask sharedTask,
+                               TaskCompletionCallback delegate)
+        {
+            m_registry = registry;
+            m_node = node;
+            m_sharedTask = sharedTask;
+            m_delegate = delegate;
+        }
+
+        @Override
+        public void reportSuccess()
+        {
+            report(TaskCompletionCallback::reportSuccess);
+        }
+
+        @Override
+        public void reportFailure()
+        {
+            report(TaskCompletionCallback::reportFailure);
+        }
+
+        @Override
+        public void reportFailure(String message)
+        {
+            Preconditions.checkNotNull(message);
+            report(callback -> callback.reportFailure(message));
+        }
+
+        @Override
+        public void reportFailure(String message, Throwable cause)
+        {
+            Preconditions.checkNotNull(message);
+            Preconditions.checkNotNull(cause);
+            report(callback -> callback.reportFailure(message, cause));
+        }
+
+        @Override
+        public void reportFailure(Throwable cause)
+        {
+            Preconditions.checkNotNull(cause);
+            report(callback -> callback.reportFailure(cause));
+        }
+
+        private void report(Consumer<TaskCompletionCallback> outcome)
+        {
+            m_registry.complete(m_node, m_sharedTask, outcome);
+            outcome.accept(m_delegate);
+        }
+    }
+}
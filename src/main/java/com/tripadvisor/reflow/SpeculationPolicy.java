@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+
+/**
+ * Determines when a straggling {@link SpeculativeTask} should be submitted
+ * for a second time, based on the run times previously observed for the
+ * same node.
+ *
+ * <p>A policy records the run times of speculative tasks that succeed in
+ * the executions using it, keyed by node key. Once enough run times have
+ * been recorded for a node, a scheduled instance of its task that runs for
+ * longer than the configured percentile of those run times is speculatively
+ * resubmitted. A policy may be shared between executions of the same
+ * workflow so that history accumulates across runs.</p>
+ *
+ * @see Execution#setSpeculationPolicy(SpeculationPolicy)
+ */
+public class SpeculationPolicy
+{
+    private final double m_percentile;
+    private final int m_minimumSamples;
+    private final int m_historySize;
+
+    private final ConcurrentMap<String, RunTimeHistory> m_histories = new ConcurrentHashMap<>();
+
+    private SpeculationPolicy(Builder builder)
+    {
+        m_percentile = builder.m_percentile;
+        m_minimumSamples = builder.m_minimumSamples;
+        m_historySize = builder.m_historySize;
+    }
+
+    /**
+     * Creates a policy with default settings: tasks are resubmitted after
+     * exceeding the 95th percentile of at least 5 of their 100 most recently
+     * recorded run times.
+     */
+    public static SpeculationPolicy create()
+    {
+        return builder().build();
+    }
+
+    /**
+     * Creates a builder with default settings.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Returns how long a scheduled instance of the given node's task may run
+     * before it is resubmitted, or an empty optional if too few run times
+     * have been recorded for the node.
+     */
+    public Optional<Duration> getSpeculationDelay(String key)
+    {
+        RunTimeHistory history = m_histories.get(key);
+        return history == null ? Optional.empty() : history.percentile(m_percentile, m_minimumSamples);
+    }
+
+    /**
+     * Records the run time of a successful instance of the given node's task.
+     */
+    void recordRunTime(String key, Duration runTime)
+    {
+        Preconditions.checkArgument(!runTime.isNegative(), "Negative run time");
+        m_histories.computeIfAbsent(key, k -> new RunTimeHistory(m_historySize)).add(runTime.toNanos());
+    }
+
+    public static final class Builder
+    {
+        private double m_percentile = 95.0;
+        private int m_minimumSamples = 5;
+        private int m_historySize = 100;
+
+        private Builder()
+        {}
+
+        /**
+         * Sets the percentile of historical run times (greater than 0 and at
+         * most 100) beyond which a task is resubmitted.
+         */
+        @CanIgnoreReturnValue
+        public Builder setPercentile(double percentile)
+        {
+            Preconditions.checkArgument(percentile > 0.0 && percentile <= 100.0, "Invalid percentile: %s", percentile);
+            m_percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Sets the number of run times that must be recorded for a node
+         * before its task is eligible for resubmission.
+         */
+        @CanIgnoreReturnValue
+        public Builder setMinimumSamples(int minimumSamples)
+        {
+            Preconditions.checkArgument(minimumSamples > 0, "Non-positive sample count");
+            m_minimumSamples = minimumSamples;
+            return this;
+        }
+
+        /**
+         * Sets the number of recent run times retained for each node.
+         */
+        @CanIgnoreReturnValue
+        public Builder setHistorySize(int historySize)
+        {
+            Preconditions.checkArgument(historySize > 0, "Non-positive history size");
+            m_historySize = historySize;
+            return this;
+        }
+
+        /**
+         * Builds a policy with the current settings.
+         *
+         * @throws IllegalStateException if the history size is
+         * smaller than the minimum number of samples
+         */
+        public SpeculationPolicy build()
+        {
+            Preconditions.checkState(m_historySize >= m_minimumSamples,
+                                     "History size %s is smaller than minimum sample count %s",
+                                     m_historySize, m_minimumSamples);
+            return new SpeculationPolicy(this);
+        }
+    }
+
+    /**
+     * A ring buffer of the most recent run times, in nanoseconds.
+     */
+    private static final class RunTimeHistory
+    {
+        @GuardedBy("this")
+        private final long[] m_runTimes;
+
+        @GuardedBy("this")
+        private int m_count;
+
+        @GuardedBy("this")
+        private int m_next;
+
+        public RunTimeHistory(int size)
+        {
+            m_runTimes = new long[size];
+        }
+
+        public synchronized void add(long runTime)
+        {
+            m_runTimes[m_next] = runTime;
+            m_next = (m_next + 1) % m_runTimes.length;
+            m_count = Math.min(m_count + 1, m_runTimes.length);
+        }
+
+        public Optional<Duration> percentile(double percentile, int minimumSamples)
+        {
+            long[] sorted;
+            synchronized (this)
+            {
+                if (m_count < minimumSamples)
+                {
+                    return Optional.empty();
+                }
+                sorted = Arrays.copyOf(m_runTimes, m_count);
+            }
+
+            // Nearest-rank method
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return Optional.of(Duration.ofNanos(sorted[Math.max(rank, 1) - 1]));
+        }
+    }
+}
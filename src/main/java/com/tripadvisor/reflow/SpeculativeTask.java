@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+/**
+ * A task that may safely be run more than once at the same time. When an
+ * execution has a {@link SpeculationPolicy}, a scheduled task implementing
+ * this interface is submitted a second time if it runs unusually long, and
+ * the first attempt to succeed determines the outcome.
+ *
+ * <p>Concurrent attempts create the same outputs, so implementations should
+ * write output atomically (for example, by writing to a temporary location
+ * and renaming) in order that a slower attempt cannot corrupt the output of
+ * one that has already succeeded.</p>
+ *
+ * @see Execution#setSpeculationPolicy(SpeculationPolicy)
+ */
+public interface SpeculativeTask extends Task
+{}
@@ -43,6 +43,18 @@ public class StructureNode<T extends Task> extends WorkflowNode<T>
         return false;
     }
 
+    @Override
+    Builder<T> toBuilder()
+    {
+        return builder(getKey());
+    }
+
+    @Override
+    StructureNode<T> withTask(@Nullable T task)
+    {
+        return new StructureNode<>(getKey());
+    }
+
     /**
      * Immediately throws an exception.
      *
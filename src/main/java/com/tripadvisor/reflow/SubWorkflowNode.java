@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+
+/**
+ * A node with no task of its own that stands for a whole sub-workflow,
+ * which is only expanded when an execution reaches it.
+ *
+ * <p>When the node becomes ready in an {@link Execution}, the execution
+ * obtains the sub-workflow from the node's {@link Source} and splices a copy
+ * of its nodes in between this node and its dependents, as for an
+ * {@link ExpandingNode}. The key of each copy is the key of this node and
+ * the key of the original, joined by an underscore. The node itself then
+ * succeeds like a {@link StructureNode}. Sub-workflows may contain further
+ * sub-workflow nodes, which are expanded in turn.</p>
+ *
+ * <p>Until then, the sub-workflow adds nothing to the parent workflow or to
+ * the state of executions, and only the source is serialized with the node.
+ * Nodes of an expanded sub-workflow are always run, even by executions
+ * created from existing output. If the source fails or the sub-workflow
+ * can't be spliced in (for example, because a key would be too long), the
+ * node fails.</p>
+ */
+public class SubWorkflowNode<T extends Task> extends WorkflowNode<T>
+{
+    private static final long serialVersionUID = 0L;
+
+    private final Source<T> m_source;
+
+    private SubWorkflowNode(String key, Source<T> source)
+    {
+        super(key);
+        m_source = source;
+        validateState();
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException
+    {
+        stream.defaultReadObject();
+        validateState();
+    }
+
+    private void readObjectNoData() throws ObjectStreamException
+    {
+        throw new InvalidObjectException("No object data");
+    }
+
+    private void validateState()
+    {
+        Preconditions.checkNotNull(m_source, "Null source");
+    }
+
+    /**
+     * Returns builders for copies of the nodes of the sub-workflow.
+     */
+    List<WorkflowNode.Builder<T>> expand()
+    {
+        Workflow<T> workflow = Preconditions.checkNotNull(m_source.getWorkflow(), "Null sub-workflow");
+        Map<WorkflowNode<T>, WorkflowNode.Builder<T>> copies = Maps.newHashMapWithExpectedSize(
+                workflow.getNodes().size());
+        List<WorkflowNode.Builder<T>> builders = new ArrayList<>(workflow.getNodes().size());
+        for (WorkflowNode<T> node : workflow.getNodes().values())
+        {
+            WorkflowNode.Builder<T> copy = node.toBuilder().setKey(getKey() + "_" + node.getKey());
+            copies.put(node, copy);
+            builders.add(copy);
+        }
+        for (WorkflowNode<T> node : workflow.getNodes().values())
+        {
+            for (WorkflowNode<T> dependency : workflow.getDependencies(node))
+            {
+                copies.get(node).getDependencies().add(copies.get(dependency));
+            }
+        }
+        return builders;
+    }
+
+    @Override
+    WorkflowNode.Builder<T> toBuilder()
+    {
+        return builder(getKey(), m_source);
+    }
+
+    @Override
+    SubWorkflowNode<T> withTask(@Nullable T task)
+    {
+        return new SubWorkflowNode<>(getKey(), m_source);
+    }
+
+    /**
+     * Returns {@code false}.
+     */
+    @Override
+    public boolean hasTask()
+    {
+        return false;
+    }
+
+    /**
+     * Immediately throws an exception.
+     *
+     * @deprecated
+     * There's no task to get.
+     *
+     * @throws NoSuchElementException always
+     */
+    @Override
+    @Deprecated
+    public T getTask()
+    {
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Supplies the sub-workflow of a node when an execution reaches it.
+     * Sources are serialized along with their nodes, so a source should
+     * describe how to build or load its sub-workflow rather than hold it.
+     */
+    @FunctionalInterface
+    public interface Source<U extends Task> extends Serializable
+    {
+        /**
+         * Returns the sub-workflow. This is called on the execution's
+         * cleanup executor (see {@link Execution#setCleanupExecutor}),
+         * without holding the execution's lock, once for each execution
+         * that reaches the node.
+         */
+        Workflow<U> getWorkflow();
+    }
+
+    public static final class Builder<U extends Task> extends WorkflowNode.Builder<U>
+    {
+        private Source<U> m_source;
+
+        /**
+         * {@inheritDoc}
+         */
+        @CanIgnoreReturnValue
+        @Override
+        public Builder<U> setKey(@Nullable String key)
+        {
+            return (Builder<U>) super.setKey(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @CanIgnoreReturnValue
+        @Override
+        public Builder<U> setDependencies(Set<WorkflowNode.Builder<U>> dependencies)
+        {
+            return (Builder<U>) super.setDependencies(dependencies);
+        }
+
+        /**
+         * Gets the source that will be used when building nodes, or
+         * {@code null} if no source has been set.
+         */
+        @Nullable
+        public Source<U> getSource()
+        {
+            return m_source;
+        }
+
+        /**
+         * Sets the source that will be used when building nodes.
+         * The source must be set before constructing a workflow.
+         */
+        @CanIgnoreReturnValue
+        public Builder<U> setSource(Source<U> source)
+        {
+            m_source = source;
+            return this;
+        }
+
+        @Override
+        SubWorkflowNode<U> build(String key)
+        {
+            return new SubWorkflowNode<>(key, m_source);
+        }
+    }
+
+    /**
+     * Returns a new builder associated with the given source.
+     */
+    public static <U extends Task> SubWorkflowNode.Builder<U> builder(Source<U> source)
+    {
+        return new SubWorkflowNode.Builder<U>().setSource(source);
+    }
+
+    /**
+     * Returns a new builder associated with the given key and source.
+     */
+    public static <U extends Task> SubWorkflowNode.Builder<U> builder(@Nullable String key, Source<U> source)
+    {
+        return new SubWorkflowNode.Builder<U>().setKey(key).setSource(source);
+    }
+}
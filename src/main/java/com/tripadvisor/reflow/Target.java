@@ -17,13 +17,17 @@
 package com.tripadvisor.reflow;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 
+import static java.util.stream.Collectors.toList;
+
 /**
  * A non-empty subset of the nodes in a workflow.
  * Designates a particular point to which the flow can be run.
@@ -45,6 +49,23 @@ public abstract class Target<T extends Task> implements Serializable
      */
     public abstract Map<String, WorkflowNode<T>> getNodes();
 
+    /**
+     * Returns the ordinals of the nodes in this target, which are positions
+     * in the workflow's topological order unless nodes have been spliced
+     * into it (see {@link Workflow#getTopologicalOrder()}). The returned set
+     * must not be modified. Subclasses should override this if they can
+     * avoid building a new set on each call.
+     */
+    BitSet getOrdinals()
+    {
+        BitSet ordinals = new BitSet();
+        for (WorkflowNode<T> node : getNodes().values())
+        {
+            ordinals.set(node.getOrdinal());
+        }
+        return ordinals;
+    }
+
     /**
      * Returns (in constant time) whether this target contains a particular node.
      */
@@ -125,6 +146,48 @@ public abstract class Target<T extends Task> implements Serializable
         return startingFrom(Collections2.transform(keys, getNodes()::get));
     }
 
+    /**
+     * Returns a target for the nodes whose keys start with the given prefix,
+     * plus dependent nodes. Dependents are defined over the subgraph induced
+     * by the nodes in this target rather than the graph represented by the
+     * overall workflow.
+     *
+     * <p>Matching keys are found using an index built on first use, so the
+     * cost of selection grows with the number of matches rather than the
+     * number of nodes in the workflow.</p>
+     *
+     * @return a target for the nodes with matching keys
+     * plus dependent nodes in this target
+     * @throws IllegalArgumentException if no keys in this target match
+     * @see #startingFrom(Collection)
+     */
+    public Target<T> startingFromKeysWithPrefix(String prefix)
+    {
+        return startingFrom(selectNodes(getWorkflow().getKeyIndex().getNodesWithPrefix(prefix), prefix));
+    }
+
+    /**
+     * Returns a target for the nodes whose keys match the given glob pattern,
+     * plus dependent nodes. In the pattern, {@code *} matches any sequence of
+     * characters and {@code ?} matches any single character. Dependents are
+     * defined over the subgraph induced by the nodes in this target rather
+     * than the graph represented by the overall workflow.
+     *
+     * <p>Matching keys are found using an index built on first use. Only
+     * keys that start with the part of the pattern preceding the first
+     * wildcard are examined, so patterns should begin with a literal prefix
+     * where possible.</p>
+     *
+     * @return a target for the nodes with matching keys
+     * plus dependent nodes in this target
+     * @throws IllegalArgumentException if no keys in this target match
+     * @see #startingFrom(Collection)
+     */
+    public Target<T> startingFromKeysMatching(String glob)
+    {
+        return startingFrom(selectNodes(getWorkflow().getKeyIndex().getNodesMatching(glob), glob));
+    }
+
     /**
      * Returns a target for the given nodes plus dependencies. All of the given
      * nodes must be included in this target. Dependencies are defined over the
@@ -198,4 +261,46 @@ public abstract class Target<T extends Task> implements Serializable
                                     "Target nodes must belong to the parent target");
         return stoppingAfter(Collections2.transform(keys, getNodes()::get));
     }
+
+    /**
+     * Returns a target for the nodes whose keys start with the given prefix,
+     * plus dependency nodes. Dependencies are defined over the subgraph
+     * induced by the nodes in this target rather than the graph represented
+     * by the overall workflow.
+     *
+     * @return a target for the nodes with matching keys
+     * plus dependency nodes in this target
+     * @throws IllegalArgumentException if no keys in this target match
+     * @see #startingFromKeysWithPrefix(String)
+     */
+    public Target<T> stoppingAfterKeysWithPrefix(String prefix)
+    {
+        return stoppingAfter(selectNodes(getWorkflow().getKeyIndex().getNodesWithPrefix(prefix), prefix));
+    }
+
+    /**
+     * Returns a target for the nodes whose keys match the given glob pattern,
+     * plus dependency nodes. Dependencies are defined over the subgraph
+     * induced by the nodes in this target rather than the graph represented
+     * by the overall workflow.
+     *
+     * @return a target for the nodes with matching keys
+     * plus dependency nodes in this target
+     * @throws IllegalArgumentException if no keys in this target match
+     * @see #startingFromKeysMatching(String)
+     */
+    public Target<T> stoppingAfterKeysMatching(String glob)
+    {
+        return stoppingAfter(selectNodes(getWorkflow().getKeyIndex().getNodesMatching(glob), glob));
+    }
+
+    /**
+     * Filters nodes of the workflow down to those in this target.
+     */
+    private List<WorkflowNode<T>> selectNodes(List<WorkflowNode<T>> workflowNodes, String pattern)
+    {
+        List<WorkflowNode<T>> nodes = workflowNodes.stream().filter(this::containsNode).collect(toList());
+        Preconditions.checkArgument(!nodes.isEmpty(), "No keys in target match %s", pattern);
+        return nodes;
+    }
 }
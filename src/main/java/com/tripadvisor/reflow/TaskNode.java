@@ -35,7 +35,7 @@ public class TaskNode<T extends Task> extends WorkflowNode<T>
 
     private final T m_task;
 
-    private TaskNode(String key, T task)
+    TaskNode(String key, T task)
     {
         super(key);
         m_task = task;
@@ -76,6 +76,18 @@ public class TaskNode<T extends Task> extends WorkflowNode<T>
         return m_task;
     }
 
+    @Override
+    WorkflowNode.Builder<T> toBuilder()
+    {
+        return builder(getKey(), m_task);
+    }
+
+    @Override
+    TaskNode<T> withTask(@Nullable T task)
+    {
+        return new TaskNode<>(getKey(), task);
+    }
+
     /**
      * {@inheritDoc}
      */
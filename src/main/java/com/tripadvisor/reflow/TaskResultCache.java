@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A local, content-addressed store of task output, used by an
+ * {@link Execution} to skip {@link CacheableTask}s whose output is already
+ * known.
+ *
+ * <p>Each task is identified by an action key, a hash of its cache key and
+ * the content of its input. When a cacheable task succeeds, the files making
+ * up its output are copied into the cache, keyed by their own content hash,
+ * and a manifest of the output is recorded under the action key. Before a
+ * cacheable task is submitted, its action key is computed; if a manifest is
+ * recorded under it, the output is restored from the cache instead.</p>
+ *
+ * <p>The cache is safe for use by concurrent executions within a process,
+ * but should not be opened by more than one process at once. Entries are
+ * never evicted; delete the cache directory to reclaim space.</p>
+ */
+public class TaskResultCache implements Closeable
+{
+    private static final int MAGIC = 0x52464143;
+    private static final int VERSION = 1;
+
+    private final Path m_actionDirectory;
+    private final Path m_blobDirectory;
+
+    /**
+     * Fingerprints of task input, so that
+     * unmodified input need not be rehashed.
+     */
+    private final FingerprintStore m_fingerprintStore;
+
+    private TaskResultCache(Path directory, FingerprintStore fingerprintStore)
+    {
+        m_actionDirectory = directory.resolve("actions");
+        m_blobDirectory = directory.resolve("blobs");
+        m_fingerprintStore = fingerprintStore;
+    }
+
+    /**
+     * Opens a cache in the given directory, creating it if it does not exist.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static TaskResultCache open(Path directory) throws IOException
+    {
+        Files.createDirectories(directory);
+        FingerprintStore fingerprintStore = FingerprintStore.open(directory.resolve("fingerprints"));
+        TaskResultCache cache = new TaskResultCache(directory, fingerprintStore);
+        Files.createDirectories(cache.m_actionDirectory);
+        Files.createDirectories(cache.m_blobDirectory);
+        return cache;
+    }
+
+    /**
+     * Returns the action key of the task of the given node of the given
+     * workflow, or an empty optional if the task can't be cached.
+     *
+     * @throws IOException if an I/O error occurs while fingerprinting input
+     */
+    <T extends Task> Optional<String> getActionKey(Workflow<T> workflow, WorkflowNode<T> node,
+                                                   OutputHandler outputHandler) throws IOException
+    {
+        if (!node.hasTask() || !(node.getTask() instanceof CacheableTask))
+        {
+            return Optional.empty();
+        }
+
+        Task task = node.getTask();
+        Collection<Output> outputs = task.getOutputs();
+        if (!outputs.stream().allMatch(PathOutput.class::isInstance))
+        {
+            return Optional.empty();
+        }
+
+        Optional<Map<String, String>> inputHashes = outputHandler.getInputHashes(workflow, node, m_fingerprintStore);
+        if (!inputHashes.isPresent())
+        {
+            return Optional.empty();
+        }
+
+        Hasher hasher = Hashing.sha256().newHasher().putInt(VERSION);
+        putString(hasher, ((CacheableTask) task).getCacheKey());
+        hasher.putInt(outputs.size());
+        for (Map.Entry<String, String> e : new TreeMap<>(inputHashes.get()).entrySet())
+        {
+            putString(hasher, e.getKey());
+            putString(hasher, e.getValue());
+        }
+        return Optional.of(hasher.hash().toString());
+    }
+
+    /**
+     * Writes a string so that no two sequences of strings hash the same.
+     */
+    private static void putString(Hasher hasher, String string)
+    {
+        hasher.putInt(string.length()).putUnencodedChars(string);
+    }
+
+    /**
+     * Replaces the given output with that recorded under the given action
+     * key, returning whether anything was recorded. If restoration fails,
+     * the output is removed.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    boolean restore(String actionKey, Collection<Output> outputs) throws IOException
+    {
+        Path manifestFile = m_actionDirectory.resolve(actionKey);
+        if (Files.notExists(manifestFile))
+        {
+            return false;
+        }
+
+        List<PathOutput> pathOutputs = sortedPathOutputs(outputs);
+        List<List<Entry>> manifest = readManifest(manifestFile);
+        if (manifest == null || manifest.size() != pathOutputs.size() || !blobsExist(manifest))
+        {
+            return false;
+        }
+
+        try
+        {
+            for (int i = 0; i < pathOutputs.size(); i++)
+            {
+                PathOutput output = pathOutputs.get(i);
+                output.delete();
+
+                List<Entry> entries = manifest.get(i);
+                if (entries == null)
+                {
+                    continue;
+                }
+
+                Path root = output.getPath();
+                for (Entry entry : entries)
+                {
+                    Path target = entry.m_relativePath.isEmpty() ? root : root.resolve(entry.m_relativePath);
+                    if (entry.m_hash == null)
+                    {
+                        Files.createDirectories(target);
+                    }
+                    else
+                    {
+                        Path parent = target.toAbsolutePath().getParent();
+                        if (parent != null)
+                        {
+                            Files.createDirectories(parent);
+                        }
+                        Files.copy(blobFile(entry.m_hash), target);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Don't leave partially restored output behind
+            for (PathOutput output : pathOutputs)
+            {
+                try
+                {
+                    output.delete();
+                }
+                catch (IOException suppressed)
+                {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the given output into the cache and records it
+     * under the given action key.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void store(String actionKey, Collection<Output> outputs) throws IOException
+    {
+        List<List<Entry>> manifest = new ArrayList<>();
+        for (PathOutput output : sortedPathOutputs(outputs))
+        {
+            Path root = output.getPath();
+            if (Files.notExists(root))
+            {
+                manifest.add(null);
+                continue;
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                {
+                    entries.add(new Entry(root.relativize(dir).toString(), null));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    entries.add(new Entry(root.relativize(file).toString(), storeBlob(file)));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            manifest.add(entries);
+        }
+
+        Path tempFile = Files.createTempFile(m_actionDirectory, actionKey, ".tmp");
+        try
+        {
+            writeManifest(tempFile, manifest);
+            Files.move(tempFile, m_actionDirectory.resolve(actionKey),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Closes the cache's record of input fingerprints.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException
+    {
+        m_fingerprintStore.close();
+    }
+
+    /**
+     * Returns the given outputs, which must all be path outputs, in an order
+     * that doesn't depend on the iteration order of the collection.
+     */
+    private static List<PathOutput> sortedPathOutputs(Collection<Output> outputs)
+    {
+        return outputs.stream()
+                .map(PathOutput.class::cast)
+                .sorted(Comparator.comparing(PathOutput::getFingerprintKey))
+                .collect(toList());
+    }
+
+    private Path blobFile(String hash)
+    {
+        return m_blobDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private boolean blobsExist(List<List<Entry>> manifest)
+    {
+        return manifest.stream()
+                .filter(entries -> entries != null)
+                .flatMap(List::stream)
+                .allMatch(entry -> entry.m_hash == null || Files.exists(blobFile(entry.m_hash)));
+    }
+
+    /**
+     * Copies a file into the cache, returning its content hash.
+     */
+    private String storeBlob(Path file) throws IOException
+    {
+        Path tempFile = Files.createTempFile(m_blobDirectory, "blob", ".tmp");
+        try
+        {
+            String hash;
+            try (HashingInputStream in = new HashingInputStream(Hashing.sha256(), Files.newInputStream(file)))
+            {
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                hash = in.hash().toString();
+            }
+
+            Path blobFile = blobFile(hash);
+            if (Files.notExists(blobFile))
+            {
+                Files.createDirectories(blobFile.getParent());
+                Files.move(tempFile, blobFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return hash;
+        }
+        finally
+        {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void writeManifest(Path file, List<List<Entry>> manifest) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(manifest.size());
+            for (List<Entry> entries : manifest)
+            {
+                out.writeInt(entries == null ? -1 : entries.size());
+                if (entries != null)
+                {
+                    for (Entry entry : entries)
+                    {
+                        out.writeUTF(entry.m_relativePath);
+                        out.writeBoolean(entry.m_hash != null);
+                        if (entry.m_hash != null)
+                        {
+                            out.writeUTF(entry.m_hash);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a manifest, returning null if it is unreadable.
+     */
+    @Nullable
+    private static List<List<Entry>> readManifest(Path file) throws IOException
+    {
+        try (InputStream fileIn = Files.newInputStream(file))
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                return null;
+            }
+
+            int outputCount = in.readInt();
+            List<List<Entry>> manifest = new ArrayList<>(outputCount);
+            for (int i = 0; i < outputCount; i++)
+            {
+                int entryCount = in.readInt();
+                if (entryCount < 0)
+                {
+                    manifest.add(null);
+                    continue;
+                }
+
+                List<Entry> entries = new ArrayList<>(entryCount);
+                for (int j = 0; j < entryCount; j++)
+                {
+                    String relativePath = in.readUTF();
+                    entries.add(new Entry(relativePath, in.readBoolean() ? in.readUTF() : null));
+                }
+                manifest.add(entries);
+            }
+            return manifest;
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A file or directory within an output.
+     */
+    private static final class Entry
+    {
+        /**
+         * The path relative to the output root, which is the empty string for
+         * the root itself. Parent directories precede their contents.
+         */
+        private final String m_relativePath;
+
+        /**
+         * The content hash of a file, or null for a directory.
+         */
+        @Nullable
+        private final String m_hash;
+
+        public Entry(String relativePath, @Nullable String hash)
+        {
+            m_relativePath = Preconditions.checkNotNull(relativePath);
+            m_hash = hash;
+        }
+    }
+}
@@ -162,6 +162,25 @@ class TraversalUtils
      * otherwise, an empty optional
      */
     public static <T extends Task> Optional<List<WorkflowNode<T>>> topologicalSort(Collection<WorkflowNode<T>> nodes)
+    {
+        return topologicalSort(nodes, WorkflowNode::getDependencies);
+    }
+
+    /**
+     * Given a graph represented as a set of nodes, returns the nodes sorted
+     * topologically (dependency-free nodes first), using the given function
+     * to determine the dependencies of each node. If the input graph is not
+     * acyclic, returns an empty optional. Dependencies absent from the input
+     * set are ignored.
+     *
+     * @param nodes a set of nodes representing a graph
+     * @param dependenciesFunc a function defining the dependencies of a node
+     * @return a topological sort of the nodes if the graph is acyclic;
+     * otherwise, an empty optional
+     */
+    public static <T extends Task> Optional<List<WorkflowNode<T>>> topologicalSort(
+            Collection<WorkflowNode<T>> nodes,
+            Function<? super WorkflowNode<T>, ? extends Collection<WorkflowNode<T>>> dependenciesFunc)
     {
         // This is an iterative version of Tarjan's algorithm.
         //
@@ -200,15 +219,22 @@ class TraversalUtils
                     continue;
                 }
 
+                // A node can be pushed more than once before it is explored
+                // If it has already been explored via another path, skip it
+                if (!unseen.remove(node))
+                {
+                    stack.removeLast();
+                    continue;
+                }
+
                 // Otherwise, we haven't explored it yet
-                // Mark it as seen and add it to the current path
-                unseen.remove(node);
+                // Add it to the current path
                 currentPath.add(node);
 
                 // Push the unseen dependencies of this node on the stack for
                 // exploration. If any dependencies are already on the current
                 // path, we've found a cycle
-                for (WorkflowNode<T> dependency : node.getDependencies())
+                for (WorkflowNode<T> dependency : dependenciesFunc.apply(node))
                 {
                     if (unseen.contains(dependency))
                     {
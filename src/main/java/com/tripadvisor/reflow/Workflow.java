@@ -16,25 +16,45 @@
 
 package com.tripadvisor.reflow;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import static java.util.stream.Collectors.toList;
 
 import static com.google.common.collect.ImmutableBiMap.toImmutableBiMap;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 /**
@@ -50,13 +70,148 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
  */
 public class Workflow<T extends Task> extends Target<T> implements Serializable
 {
-    private final ImmutableBiMap<String, WorkflowNode<T>> m_nodes;
+    /**
+     * The nodes by ordinal, which is their position in topological order
+     * when they are built. Nodes are shared with the workflows derived from
+     * this one by {@link #withAdded} and {@link #withoutNodes}, and keep
+     * their ordinals there, so the ordinals of removed nodes are left empty.
+     * Like the other indexes below, this is a persistent map, so a derived
+     * workflow shares all but the parts of it that change.
+     */
+    private final transient PersistentIntMap<WorkflowNode<T>> m_nodesByOrdinal;
+    private final int m_ordinalBound;
+
+    /**
+     * The nodes by the hash codes of their keys, with nodes whose keys
+     * have the same hash code sharing a list.
+     */
+    private final transient PersistentIntMap<ImmutableList<WorkflowNode<T>>> m_nodesByKeyHash;
 
-    private Workflow(Collection<WorkflowNode<T>> nodes)
+    /**
+     * Dependents added by {@link #withAdded} to nodes built by an earlier
+     * workflow, by the ordinals of those nodes. The shared nodes themselves
+     * are left untouched, so deriving workflows repeatedly, as every run of
+     * an expanding node does, doesn't grow their dependent sets.
+     */
+    private final transient PersistentIntMap<ImmutableSet<WorkflowNode<T>>> m_addedDependents;
+
+    /**
+     * Dependencies added by {@link #withExpansion} to nodes built by an
+     * earlier workflow, by the ordinals of those nodes, and mirrored in
+     * {@link #m_addedDependents}. An added dependency has a larger ordinal
+     * than its dependent, so ordinal order is only topological while there
+     * are none.
+     */
+    private final transient PersistentIntMap<ImmutableSet<WorkflowNode<T>>> m_addedDependencies;
+
+    private final transient NodeSet m_nodeSet = new NodeSet();
+    private final transient NodeMap m_nodes = new NodeMap();
+
+    @Nullable
+    private transient volatile ReachabilityIndex<T> m_reachabilityIndex;
+
+    private final transient Supplier<BitSet> m_ordinals;
+    private final transient Supplier<int[]> m_topologicalOrder;
+    private final transient Supplier<KeyIndex<T>> m_keyIndex;
+
+    /**
+     * Creates a workflow from nodes that already have ordinals.
+     */
+    private Workflow(PersistentIntMap<WorkflowNode<T>> nodesByOrdinal, int ordinalBound,
+                     PersistentIntMap<ImmutableList<WorkflowNode<T>>> nodesByKeyHash,
+                     PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependents,
+                     PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependencies)
     {
-        Optional<List<WorkflowNode<T>>> sortedNodes = TraversalUtils.topologicalSort(nodes);
-        Preconditions.checkArgument(sortedNodes.isPresent(), "Input graph contains a cycle");
-        m_nodes = sortedNodes.get().stream().collect(toImmutableBiMap(WorkflowNode::getKey, Function.identity()));
+        m_nodesByOrdinal = nodesByOrdinal;
+        m_ordinalBound = ordinalBound;
+        m_nodesByKeyHash = nodesByKeyHash;
+        m_addedDependents = addedDependents;
+        m_addedDependencies = addedDependencies;
+        m_ordinals = Suppliers.memoize(() ->
+        {
+            BitSet ordinals = new BitSet(m_ordinalBound);
+            m_nodesByOrdinal.forEach(node -> ordinals.set(node.getOrdinal()));
+            return ordinals;
+        });
+        m_topologicalOrder = Suppliers.memoize(() ->
+        {
+            Collection<WorkflowNode<T>> sortedNodes = hasTopologicalOrdinals() ? m_nodeSet
+                    : TraversalUtils.topologicalSort(ImmutableList.copyOf(m_nodesByOrdinal), this::getDependencies)
+                            .orElseThrow(() -> new IllegalStateException("Workflow contains a cycle"));
+            return sortedNodes.stream().mapToInt(WorkflowNode::getOrdinal).toArray();
+        });
+        m_keyIndex = Suppliers.memoize(() -> new KeyIndex<>(ImmutableList.copyOf(m_nodeSet)));
+    }
+
+    /**
+     * Returns a workflow of nodes that have already been linked, with
+     * ordinals matching their positions in the given topologically sorted
+     * list. The nodes must have distinct keys.
+     */
+    static <U extends Task> Workflow<U> ofLinked(List<WorkflowNode<U>> sortedNodes)
+    {
+        int[] ordinals = new int[sortedNodes.size()];
+        Arrays.setAll(ordinals, i -> i);
+        return new Workflow<>(PersistentIntMap.copyOf(ordinals, sortedNodes), sortedNodes.size(),
+                              indexByKeyHash(sortedNodes), PersistentIntMap.empty(), PersistentIntMap.empty());
+    }
+
+    /**
+     * Creates a workflow from linked nodes in topological order. The order
+     * determines the ordinal of each node.
+     */
+    private static <U extends Task> Workflow<U> ofSorted(List<WorkflowNode<U>> sortedNodes)
+    {
+        for (int i = 0; i < sortedNodes.size(); i++)
+        {
+            sortedNodes.get(i).setOrdinal(i);
+        }
+        return ofLinked(sortedNodes);
+    }
+
+    private static <U extends Task> PersistentIntMap<ImmutableList<WorkflowNode<U>>> indexByKeyHash(
+            Collection<WorkflowNode<U>> nodes)
+    {
+        Map<Integer, List<WorkflowNode<U>>> nodesByHash = Maps.newHashMapWithExpectedSize(nodes.size());
+        for (WorkflowNode<U> node : nodes)
+        {
+            nodesByHash.computeIfAbsent(node.getKey().hashCode(), hash -> new ArrayList<>(1)).add(node);
+        }
+        int[] hashes = nodesByHash.keySet().stream().sorted(Integer::compareUnsigned).mapToInt(i -> i).toArray();
+        return PersistentIntMap.copyOf(hashes, Arrays.stream(hashes)
+                .mapToObj(hash -> ImmutableList.copyOf(nodesByHash.get(hash)))
+                .collect(toList()));
+    }
+
+    private static <U extends Task> PersistentIntMap<ImmutableList<WorkflowNode<U>>> withKey(
+            PersistentIntMap<ImmutableList<WorkflowNode<U>>> nodesByKeyHash, WorkflowNode<U> node)
+    {
+        int hash = node.getKey().hashCode();
+        ImmutableList<WorkflowNode<U>> nodes = nodesByKeyHash.get(hash);
+        return nodesByKeyHash.with(hash, nodes == null ? ImmutableList.of(node)
+                : ImmutableList.<WorkflowNode<U>>builder().addAll(nodes).add(node).build());
+    }
+
+    /**
+     * Returns the given index with the given nodes added to the set
+     * for the given node.
+     */
+    private static <U extends Task> PersistentIntMap<ImmutableSet<WorkflowNode<U>>> withUnion(
+            PersistentIntMap<ImmutableSet<WorkflowNode<U>>> index, WorkflowNode<U> node,
+            Collection<WorkflowNode<U>> nodes)
+    {
+        ImmutableSet<WorkflowNode<U>> existing = index.get(node.getOrdinal());
+        return index.with(node.getOrdinal(), existing == null ? ImmutableSet.copyOf(nodes)
+                : ImmutableSet.<WorkflowNode<U>>builder().addAll(existing).addAll(nodes).build());
+    }
+
+    private static <U extends Task> PersistentIntMap<ImmutableList<WorkflowNode<U>>> withoutKey(
+            PersistentIntMap<ImmutableList<WorkflowNode<U>>> nodesByKeyHash, WorkflowNode<U> node)
+    {
+        int hash = node.getKey().hashCode();
+        ImmutableList<WorkflowNode<U>> nodes = nodesByKeyHash.get(hash);
+        return nodes.size() == 1 ? nodesByKeyHash.without(hash) : nodesByKeyHash.with(
+                hash, nodes.stream().filter(n -> n != node).collect(toImmutableList()));
     }
 
     private static class SerializedForm<U extends Task> implements Serializable
@@ -65,14 +220,23 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
 
         private final ImmutableSet<WorkflowNode<U>> m_nodes;
 
-        public SerializedForm(ImmutableSet<WorkflowNode<U>> nodes)
+        /**
+         * The dependencies added by {@link #withExpansion}, by dependent.
+         * Not set in streams written by earlier versions.
+         */
+        @Nullable
+        private final ImmutableSetMultimap<WorkflowNode<U>, WorkflowNode<U>> m_addedDependencies;
+
+        public SerializedForm(ImmutableSet<WorkflowNode<U>> nodes,
+                              ImmutableSetMultimap<WorkflowNode<U>, WorkflowNode<U>> addedDependencies)
         {
             m_nodes = nodes;
+            m_addedDependencies = addedDependencies;
         }
 
         private Object readResolve()
         {
-            return Workflow.of(m_nodes);
+            return Workflow.of(m_nodes, m_addedDependencies == null ? ImmutableSetMultimap.of() : m_addedDependencies);
         }
     }
 
@@ -150,7 +314,9 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
         return calculateDependents(nodesByBuilder.values());
     }
 
-    private static <U extends Task> Workflow<U> of(ImmutableSet<WorkflowNode<U>> nodes)
+    private static <U extends Task> Workflow<U> of(
+            ImmutableSet<WorkflowNode<U>> nodes,
+            ImmutableSetMultimap<WorkflowNode<U>, WorkflowNode<U>> addedDependencies)
     {
         Preconditions.checkArgument(
                 nodes.stream().map(WorkflowNode::getKey).distinct().count() == nodes.size(),
@@ -164,7 +330,22 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
                 "Input collection is incomplete"
         );
 
-        return calculateDependents(nodes);
+        Preconditions.checkArgument(
+                nodes.containsAll(addedDependencies.keySet()) && nodes.containsAll(addedDependencies.values()),
+                "Input collection is incomplete"
+        );
+
+        Workflow<U> workflow = calculateDependents(nodes);
+        if (addedDependencies.isEmpty())
+        {
+            return workflow;
+        }
+        workflow = workflow.withAddedDependencies(addedDependencies);
+        Preconditions.checkArgument(
+                TraversalUtils.topologicalSort(nodes, workflow::getDependencies).isPresent(),
+                "Input graph contains a cycle"
+        );
+        return workflow;
     }
 
     private static <U extends Task> Workflow<U> calculateDependents(Collection<WorkflowNode<U>> nodes)
@@ -184,7 +365,353 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
             node.setDependents(dependentsMap.getOrDefault(node, ImmutableSet.of()));
         }
 
-        return new Workflow<>(nodes);
+        // A deserialized workflow arrives in topological order; keeping
+        // that order keeps the ordinals of its nodes stable
+        if (isTopologicallySorted(nodes))
+        {
+            return ofSorted(ImmutableList.copyOf(nodes));
+        }
+
+        Optional<List<WorkflowNode<U>>> sortedNodes = TraversalUtils.topologicalSort(nodes);
+        Preconditions.checkArgument(sortedNodes.isPresent(), "Input graph contains a cycle");
+        return ofSorted(sortedNodes.get());
+    }
+
+    private static <U extends Task> boolean isTopologicallySorted(Collection<WorkflowNode<U>> nodes)
+    {
+        Set<WorkflowNode<U>> seen = Sets.newHashSetWithExpectedSize(nodes.size());
+        for (WorkflowNode<U> node : nodes)
+        {
+            if (!seen.containsAll(node.getDependencies()))
+            {
+                return false;
+            }
+            seen.add(node);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a workflow containing the nodes of this workflow plus nodes
+     * built from the given collection of builders. This workflow is not
+     * modified.
+     *
+     * <p>The builders follow the same rules as in {@link #create}, except
+     * that they may also depend on builders outside the collection. Such
+     * dependencies are resolved by key to the nodes of this workflow.</p>
+     *
+     * <p>The nodes of this workflow are shared with the returned workflow
+     * rather than copied, as are most of its indexes, so the work done is
+     * proportional to the number of builders and the dependencies they
+     * declare, times a factor logarithmic in the size of this workflow. Shared nodes are not modified either, so
+     * {@link WorkflowNode#getDependents()} on a shared node does not report
+     * the nodes that depend on it in the returned workflow.</p>
+     *
+     * @param builders a collection of builder objects representing the nodes
+     *                 to add
+     * @return a workflow with the given nodes added
+     * @throws IllegalArgumentException if {@code builders} contains repeated
+     * elements, contains builders with repeated keys or keys already in this
+     * workflow, contains builders that depend on builders neither in the
+     * collection nor matching a key in this workflow, or contains builders
+     * arranged in a cyclical graph
+     */
+    public Workflow<T> withAdded(Collection<? extends WorkflowNode.Builder<T>> builders)
+    {
+        return withAdded(builders, Maps.newHashMapWithExpectedSize(builders.size()));
+    }
+
+    /**
+     * As {@link #withAdded(Collection)}, also filling the given empty map
+     * with the node built from each builder.
+     */
+    private Workflow<T> withAdded(Collection<? extends WorkflowNode.Builder<T>> builders,
+                                  Map<WorkflowNode.Builder<T>, WorkflowNode<T>> nodesByBuilder)
+    {
+        if (builders.isEmpty())
+        {
+            return this;
+        }
+
+        ImmutableBiMap<WorkflowNode.Builder<T>, String> keysByBuilder = builders.stream()
+                .filter(b -> b.getKey() != null)
+                .collect(toImmutableBiMap(Function.identity(), (WorkflowNode.Builder<T> b) -> b.getKey()));
+        keysByBuilder.values().forEach(key -> Preconditions.checkArgument(
+                findNode(key) == null, "Key %s is already in the workflow", key));
+        int nextKey = 0;
+
+        for (WorkflowNode.Builder<T> builder : builders)
+        {
+            String key = keysByBuilder.get(builder);
+            if (key == null)
+            {
+                do
+                {
+                    key = Strings.padStart(Integer.toHexString(nextKey++), Integer.BYTES * 2, '0');
+                }
+                while (keysByBuilder.containsValue(key) || findNode(key) != null);
+            }
+
+            if (nodesByBuilder.put(builder, builder.build(key)) != null)
+            {
+                throw new IllegalArgumentException("Input collection contains repeated elements");
+            }
+        }
+
+        // Dependencies outside the collection refer to the nodes of this workflow
+        Function<WorkflowNode.Builder<T>, WorkflowNode<T>> getNode = (builder) ->
+        {
+            WorkflowNode<T> node = nodesByBuilder.get(builder);
+            if (node == null && builder.getKey() != null)
+            {
+                node = findNode(builder.getKey());
+            }
+            if (node == null)
+            {
+                throw new IllegalArgumentException("Input collection is incomplete: missing builder " + builder);
+            }
+            return node;
+        };
+
+        nodesByBuilder.forEach((builder, node) -> node.setDependencies(
+                Optional.ofNullable(builder.getDependenciesNullable())
+                        .orElse(ImmutableSet.of())
+                        .stream()
+                        .map(getNode)
+                        .collect(toImmutableSet())));
+
+        // Nodes of this workflow cannot depend on the new nodes, so only the
+        // new nodes need sorting, and they can follow the existing ones
+        Optional<List<WorkflowNode<T>>> sortedNodes = TraversalUtils.topologicalSort(nodesByBuilder.values());
+        Preconditions.checkArgument(sortedNodes.isPresent(), "Input graph contains a cycle");
+
+        Map<WorkflowNode<T>, Set<WorkflowNode<T>>> dependentsMap = new HashMap<>();
+        for (WorkflowNode<T> node : sortedNodes.get())
+        {
+            for (WorkflowNode<T> dependency : node.getDependencies())
+            {
+                dependentsMap.computeIfAbsent(dependency, key -> new HashSet<>()).add(node);
+            }
+        }
+
+        PersistentIntMap<WorkflowNode<T>> nodesByOrdinal = m_nodesByOrdinal;
+        PersistentIntMap<ImmutableList<WorkflowNode<T>>> nodesByKeyHash = m_nodesByKeyHash;
+        int ordinalBound = m_ordinalBound;
+        for (WorkflowNode<T> node : sortedNodes.get())
+        {
+            node.setOrdinal(ordinalBound);
+            node.setDependents(dependentsMap.getOrDefault(node, ImmutableSet.of()));
+            nodesByOrdinal = nodesByOrdinal.with(ordinalBound++, node);
+            nodesByKeyHash = withKey(nodesByKeyHash, node);
+        }
+
+        PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependents = m_addedDependents;
+        for (Map.Entry<WorkflowNode<T>, Set<WorkflowNode<T>>> entry : dependentsMap.entrySet())
+        {
+            WorkflowNode<T> dependency = entry.getKey();
+            if (containsNode(dependency))
+            {
+                addedDependents = withUnion(addedDependents, dependency, entry.getValue());
+            }
+        }
+
+        return new Workflow<>(nodesByOrdinal, ordinalBound, nodesByKeyHash, addedDependents, m_addedDependencies);
+    }
+
+    /**
+     * Returns a workflow containing the nodes of this workflow except those
+     * with the given keys. This workflow is not modified.
+     *
+     * <p>The remaining nodes are shared with the returned workflow rather
+     * than copied, as in {@link #withAdded}, so the work done is proportional
+     * to the number of nodes removed and their dependencies. The ordinals of
+     * the removed nodes are not reused, though, so once more than half of
+     * the ordinals up to {@link #getOrdinalBound()} would be unused, the
+     * returned workflow is instead built from copies of the remaining nodes,
+     * which have the same keys and tasks but are distinct from the nodes of
+     * this workflow. The work of copying is at most proportional to the
+     * number of nodes removed since the last copy.</p>
+     *
+     * @param keys the keys of the nodes to remove
+     * @return a workflow without the given nodes
+     * @throws IllegalArgumentException if any key is not in this workflow,
+     * if a remaining node depends on a removed node, or if every node would
+     * be removed
+     */
+    public Workflow<T> withoutNodes(Collection<String> keys)
+    {
+        Set<WorkflowNode<T>> removed = Sets.newHashSetWithExpectedSize(keys.size());
+        for (String key : keys)
+        {
+            WorkflowNode<T> node = findNode(key);
+            Preconditions.checkArgument(node != null, "Key %s is not in the workflow", key);
+            removed.add(node);
+        }
+        if (removed.isEmpty())
+        {
+            return this;
+        }
+        int size = m_nodesByOrdinal.size() - removed.size();
+        Preconditions.checkArgument(size > 0, "Workflow must contain at least one node");
+
+        PersistentIntMap<WorkflowNode<T>> nodesByOrdinal = m_nodesByOrdinal;
+        PersistentIntMap<ImmutableList<WorkflowNode<T>>> nodesByKeyHash = m_nodesByKeyHash;
+        PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependents = m_addedDependents;
+        PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependencies = m_addedDependencies;
+        for (WorkflowNode<T> node : removed)
+        {
+            for (WorkflowNode<T> dependent : getDependents(node))
+            {
+                Preconditions.checkArgument(removed.contains(dependent),
+                                            "Node %s depends on removed node %s", dependent, node);
+            }
+            nodesByOrdinal = nodesByOrdinal.without(node.getOrdinal());
+            nodesByKeyHash = withoutKey(nodesByKeyHash, node);
+            addedDependents = addedDependents.without(node.getOrdinal());
+            addedDependencies = addedDependencies.without(node.getOrdinal());
+        }
+
+        // A removed node may also be an added dependent of a remaining node
+        for (WorkflowNode<T> node : removed)
+        {
+            for (WorkflowNode<T> dependency : getDependencies(node))
+            {
+                ImmutableSet<WorkflowNode<T>> dependents = addedDependents.get(dependency.getOrdinal());
+                if (dependents != null && dependents.contains(node))
+                {
+                    ImmutableSet<WorkflowNode<T>> remaining = Sets.difference(dependents, removed).immutableCopy();
+                    addedDependents = remaining.isEmpty() ? addedDependents.without(dependency.getOrdinal())
+                            : addedDependents.with(dependency.getOrdinal(), remaining);
+                }
+            }
+        }
+
+        Workflow<T> workflow = new Workflow<>(nodesByOrdinal, m_ordinalBound, nodesByKeyHash, addedDependents,
+                                              addedDependencies);
+        return size * 2 < m_ordinalBound ? workflow.copy() : workflow;
+    }
+
+    /**
+     * Returns a workflow built from copies of the nodes of this one,
+     * with ordinals that leave no gaps.
+     */
+    private Workflow<T> copy()
+    {
+        Map<WorkflowNode<T>, WorkflowNode.Builder<T>> copies = Maps.newHashMapWithExpectedSize(m_nodeSet.size());
+        m_nodeSet.forEach(node -> copies.put(node, node.toBuilder()));
+        copies.forEach((node, copy) -> getDependencies(node).forEach(
+                dependency -> copy.getDependencies().add(copies.get(dependency))));
+        return create(copies.values());
+    }
+
+    /**
+     * Returns a workflow in which nodes built from the given builders run
+     * after the given node and before its dependents. Builders without
+     * dependencies in the collection are made to depend on the node, and
+     * the node's dependents are made to depend on builders that no other
+     * builder in the collection depends on. This workflow is not modified.
+     *
+     * <p>The nodes of this workflow are shared with the returned workflow as
+     * in {@link #withAdded}, including the node's descendants. The new
+     * dependencies of its dependents are recorded by the returned workflow
+     * rather than the shared nodes, and reported by
+     * {@link #getDependencies(WorkflowNode)}, so the work done is
+     * proportional to the size of the expansion and the number of the node's
+     * dependents. The new nodes take ordinals after those of the dependents
+     * that follow them, so the ordinals of the returned workflow are no
+     * longer in topological order; see {@link #getTopologicalOrder()}.</p>
+     *
+     * @throws IllegalArgumentException under the same conditions as
+     * {@link #withAdded}, or if a builder depends on a descendant of the node
+     */
+    Workflow<T> withExpansion(WorkflowNode<T> node, Collection<? extends WorkflowNode.Builder<T>> builders)
+    {
+        Preconditions.checkArgument(containsNode(node), "Node %s is not in the workflow", node);
+        if (builders.isEmpty())
+        {
+            return this;
+        }
+
+        Set<WorkflowNode.Builder<T>> expansion = ImmutableSet.copyOf(builders);
+        Set<WorkflowNode.Builder<T>> innerDependencies = new HashSet<>();
+        WorkflowNode.Builder<T> nodeBuilder = StructureNode.builder(node.getKey());
+        for (WorkflowNode.Builder<T> builder : expansion)
+        {
+            Set<WorkflowNode.Builder<T>> dependencies = Optional.ofNullable(builder.getDependenciesNullable())
+                    .orElse(ImmutableSet.of());
+            if (dependencies.stream().noneMatch(expansion::contains))
+            {
+                builder.setDependencies(ImmutableSet.<WorkflowNode.Builder<T>>builder()
+                                                .addAll(dependencies)
+                                                .add(nodeBuilder)
+                                                .build());
+            }
+            dependencies.stream().filter(expansion::contains).forEach(innerDependencies::add);
+        }
+
+        Map<WorkflowNode.Builder<T>, WorkflowNode<T>> nodesByBuilder = Maps.newHashMapWithExpectedSize(
+                expansion.size());
+        Workflow<T> workflow = withAdded(expansion, nodesByBuilder);
+
+        // The dependents will also depend on the expansion, which would form
+        // a cycle if the expansion depended on any of their descendants
+        Set<WorkflowNode<T>> outerDependencies = new HashSet<>();
+        for (WorkflowNode<T> added : nodesByBuilder.values())
+        {
+            for (WorkflowNode<T> dependency : added.getDependencies())
+            {
+                if (dependency != node && containsNode(dependency))
+                {
+                    outerDependencies.add(dependency);
+                }
+            }
+        }
+        if (!outerDependencies.isEmpty())
+        {
+            Set<WorkflowNode<T>> ancestors = TraversalUtils.collectNodes(outerDependencies, this::getDependencies);
+            Preconditions.checkArgument(!ancestors.contains(node),
+                                        "Expansion of node %s depends on a descendant of the node", node);
+        }
+
+        Set<WorkflowNode<T>> dependents = getDependents(node);
+        if (dependents.isEmpty())
+        {
+            return workflow;
+        }
+        ImmutableSetMultimap.Builder<WorkflowNode<T>, WorkflowNode<T>> addedDependencies =
+                ImmutableSetMultimap.builder();
+        for (WorkflowNode.Builder<T> builder : expansion)
+        {
+            if (!innerDependencies.contains(builder))
+            {
+                WorkflowNode<T> tail = nodesByBuilder.get(builder);
+                dependents.forEach(dependent -> addedDependencies.put(dependent, tail));
+            }
+        }
+        return workflow.withAddedDependencies(addedDependencies.build());
+    }
+
+    /**
+     * Returns a workflow with the same nodes as this one, in which each key
+     * of the given multimap also depends on the nodes it maps to.
+     */
+    private Workflow<T> withAddedDependencies(SetMultimap<WorkflowNode<T>, WorkflowNode<T>> dependencies)
+    {
+        PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependencies = m_addedDependencies;
+        for (Map.Entry<WorkflowNode<T>, Collection<WorkflowNode<T>>> entry : dependencies.asMap().entrySet())
+        {
+            addedDependencies = withUnion(addedDependencies, entry.getKey(), entry.getValue());
+        }
+
+        PersistentIntMap<ImmutableSet<WorkflowNode<T>>> addedDependents = m_addedDependents;
+        SetMultimap<WorkflowNode<T>, WorkflowNode<T>> dependents = Multimaps.invertFrom(dependencies,
+                                                                                        HashMultimap.create());
+        for (Map.Entry<WorkflowNode<T>, Collection<WorkflowNode<T>>> entry : dependents.asMap().entrySet())
+        {
+            addedDependents = withUnion(addedDependents, entry.getKey(), entry.getValue());
+        }
+
+        return new Workflow<>(m_nodesByOrdinal, m_ordinalBound, m_nodesByKeyHash, addedDependents, addedDependencies);
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
@@ -194,7 +721,19 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
 
     private Object writeReplace()
     {
-        return new SerializedForm<>(ImmutableSet.copyOf(m_nodes.values()));
+        // Store the nodes in ordinal order, which their own dependencies
+        // follow, so that deserialization keeps the order of the ordinals
+        ImmutableSetMultimap.Builder<WorkflowNode<T>, WorkflowNode<T>> addedDependencies =
+                ImmutableSetMultimap.builder();
+        for (WorkflowNode<T> node : m_nodesByOrdinal)
+        {
+            ImmutableSet<WorkflowNode<T>> dependencies = m_addedDependencies.get(node.getOrdinal());
+            if (dependencies != null)
+            {
+                addedDependencies.putAll(node, dependencies);
+            }
+        }
+        return new SerializedForm<>(ImmutableSet.copyOf(m_nodesByOrdinal), addedDependencies.build());
     }
 
     /**
@@ -221,12 +760,238 @@ public class Workflow<T extends Task> extends Target<T> implements Serializable
 
     Set<WorkflowNode<T>> getNodeSet()
     {
-        return m_nodes.values();
+        return m_nodeSet;
+    }
+
+    /**
+     * Returns the node with the given key, or null if there is none.
+     */
+    @Nullable
+    private WorkflowNode<T> findNode(String key)
+    {
+        ImmutableList<WorkflowNode<T>> nodes = m_nodesByKeyHash.get(key.hashCode());
+        if (nodes != null)
+        {
+            for (WorkflowNode<T> node : nodes)
+            {
+                if (node.getKey().equals(key))
+                {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an index answering reachability queries about this workflow,
+     * building it on the first call. Once it has been built, it is also used
+     * to compute targets starting from or stopping after nodes of this
+     * workflow without traversing the graph.
+     *
+     * <p>The index takes memory quadratic in the number of nodes; see
+     * {@link ReachabilityIndex}.</p>
+     */
+    public ReachabilityIndex<T> getReachabilityIndex()
+    {
+        ReachabilityIndex<T> reachabilityIndex = m_reachabilityIndex;
+        if (reachabilityIndex == null)
+        {
+            synchronized (this)
+            {
+                reachabilityIndex = m_reachabilityIndex;
+                if (reachabilityIndex == null)
+                {
+                    reachabilityIndex = ReachabilityIndex.build(this);
+                    m_reachabilityIndex = reachabilityIndex;
+                }
+            }
+        }
+        return reachabilityIndex;
+    }
+
+    /**
+     * Returns the reachability index of this workflow if it has been built.
+     */
+    Optional<ReachabilityIndex<T>> getBuiltReachabilityIndex()
+    {
+        return Optional.ofNullable(m_reachabilityIndex);
+    }
+
+    /**
+     * Returns an index of the nodes in this workflow by key,
+     * building it on the first call.
+     */
+    KeyIndex<T> getKeyIndex()
+    {
+        return m_keyIndex.get();
+    }
+
+    /**
+     * Returns the node with the given ordinal.
+     */
+    WorkflowNode<T> getNode(int ordinal)
+    {
+        return m_nodesByOrdinal.get(ordinal);
+    }
+
+    /**
+     * Returns one more than the largest ordinal of any node in this
+     * workflow. This exceeds the number of nodes if nodes were removed.
+     */
+    int getOrdinalBound()
+    {
+        return m_ordinalBound;
+    }
+
+    /**
+     * Returns the nodes of this workflow that the given node depends on.
+     * Unlike {@link WorkflowNode#getDependencies()}, this includes
+     * dependencies added to a shared node by {@link #withExpansion}.
+     */
+    Set<WorkflowNode<T>> getDependencies(WorkflowNode<T> node)
+    {
+        ImmutableSet<WorkflowNode<T>> addedDependencies = m_addedDependencies.get(node.getOrdinal());
+        return addedDependencies == null || !containsNode(node) ? node.getDependencies()
+                : Sets.union(node.getDependencies(), addedDependencies);
+    }
+
+    /**
+     * Returns the nodes of this workflow that depend on the given node.
+     * Unlike {@link WorkflowNode#getDependents()}, this includes dependents
+     * added to a shared node by {@link #withAdded} or {@link #withExpansion}
+     * and excludes dependents removed from this workflow.
+     */
+    Set<WorkflowNode<T>> getDependents(WorkflowNode<T> node)
+    {
+        Set<WorkflowNode<T>> addedDependents = getAddedDependents(node);
+        Set<WorkflowNode<T>> dependents = addedDependents.isEmpty() ? node.getDependents()
+                : Sets.union(node.getDependents(), addedDependents);
+        return Sets.filter(dependents, this::containsNode);
+    }
+
+    /**
+     * Returns the nodes that depend on the given shared node in this workflow
+     * but not in the workflow that built it. Together with
+     * {@link WorkflowNode#getDependents()}, these are a superset of
+     * {@link #getDependents(WorkflowNode)}.
+     */
+    ImmutableSet<WorkflowNode<T>> getAddedDependents(WorkflowNode<T> node)
+    {
+        ImmutableSet<WorkflowNode<T>> addedDependents = m_addedDependents.get(node.getOrdinal());
+        return addedDependents != null && containsNode(node) ? addedDependents : ImmutableSet.of();
+    }
+
+    @Override
+    BitSet getOrdinals()
+    {
+        return m_ordinals.get();
+    }
+
+    /**
+     * Returns whether the ordinals of the nodes of this workflow are in
+     * topological order, which is the case unless it was derived by
+     * {@link #withExpansion}.
+     */
+    boolean hasTopologicalOrdinals()
+    {
+        return m_addedDependencies.size() == 0;
+    }
+
+    /**
+     * Returns the ordinals of the nodes of this workflow in topological
+     * order, which is also the order in which {@link #getNodes()} iterates.
+     * The returned array must not be modified.
+     */
+    int[] getTopologicalOrder()
+    {
+        return m_topologicalOrder.get();
     }
 
     @Override
     boolean containsNode(WorkflowNode<T> node)
     {
-        return m_nodes.containsValue(node);
+        return m_nodesByOrdinal.get(node.getOrdinal()) == node;
+    }
+
+    /**
+     * A view of the nodes of this workflow by key, iterated in topological order.
+     */
+    private final class NodeMap extends AbstractMap<String, WorkflowNode<T>>
+    {
+        private final Set<Entry<String, WorkflowNode<T>>> m_entries = new AbstractSet<Entry<String, WorkflowNode<T>>>()
+        {
+            @Override
+            public Iterator<Entry<String, WorkflowNode<T>>> iterator()
+            {
+                return Iterators.transform(m_nodeSet.iterator(), node -> Maps.immutableEntry(node.getKey(), node));
+            }
+
+            @Override
+            public int size()
+            {
+                return m_nodesByOrdinal.size();
+            }
+        };
+
+        @Override
+        public Set<Entry<String, WorkflowNode<T>>> entrySet()
+        {
+            return m_entries;
+        }
+
+        @Override
+        public Set<WorkflowNode<T>> values()
+        {
+            return m_nodeSet;
+        }
+
+        @Override
+        public int size()
+        {
+            return m_nodesByOrdinal.size();
+        }
+
+        @Override
+        @Nullable
+        public WorkflowNode<T> get(Object key)
+        {
+            return key instanceof String ? findNode((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return get(key) != null;
+        }
+    }
+
+    /**
+     * A view of the nodes of this workflow, iterated in topological order.
+     */
+    private final class NodeSet extends AbstractSet<WorkflowNode<T>>
+    {
+        @Override
+        public Iterator<WorkflowNode<T>> iterator()
+        {
+            if (hasTopologicalOrdinals())
+            {
+                return m_nodesByOrdinal.iterator();
+            }
+            return Arrays.stream(getTopologicalOrder()).mapToObj(Workflow.this::getNode).iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return m_nodesByOrdinal.size();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(Object o)
+        {
+            return o instanceof WorkflowNode && containsNode((WorkflowNode<T>) o);
+        }
     }
 }
@@ -50,6 +50,11 @@ public abstract class WorkflowNode<T extends Task> implements Serializable
     private ImmutableSet<WorkflowNode<T>> m_dependencies;
     private transient ImmutableSet<WorkflowNode<T>> m_dependents;
 
+    /**
+     * The position of this node in the topological order of the workflow that built it.
+     */
+    private transient int m_ordinal;
+
     WorkflowNode(String key)
     {
         m_key = key;
@@ -99,6 +104,28 @@ public abstract class WorkflowNode<T extends Task> implements Serializable
         m_dependents = ImmutableSet.copyOf(dependents);
     }
 
+    int getOrdinal()
+    {
+        return m_ordinal;
+    }
+
+    void setOrdinal(int ordinal)
+    {
+        m_ordinal = ordinal;
+    }
+
+    /**
+     * Returns a builder for a node like this one, with the same key but
+     * no dependencies.
+     */
+    abstract Builder<T> toBuilder();
+
+    /**
+     * Returns a node like this one, with the same key but no dependencies,
+     * associated with the given task. Nodes without tasks ignore the task.
+     */
+    abstract WorkflowNode<T> withTask(@Nullable T task);
+
     /**
      * Indicates whether this node has an associated task.
      */
@@ -16,21 +16,21 @@
 
 package com.tripadvisor.reflow;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.function.Function;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 
 /**
  * A non-empty subset of the nodes in a workflow.
@@ -39,13 +39,29 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
 {
     private final Workflow<T> m_workflow;
     private final ImmutableMap<String, WorkflowNode<T>> m_nodes;
+    private final BitSet m_ordinals;
 
-    private WorkflowSubset(Workflow<T> workflow, Set<WorkflowNode<T>> nodes)
+    /**
+     * Creates a subset of the nodes with the given ordinals, which must
+     * all belong to the given workflow. The set of ordinals is not copied.
+     */
+    private WorkflowSubset(Workflow<T> workflow, BitSet ordinals)
     {
         m_workflow = Preconditions.checkNotNull(workflow);
-        Optional<List<WorkflowNode<T>>> sortedNodes = TraversalUtils.topologicalSort(nodes);
-        assert sortedNodes.isPresent() : "Unexpected graph cycle";
-        m_nodes = Maps.uniqueIndex(sortedNodes.get(), WorkflowNode::getKey);
+        m_ordinals = ordinals;
+
+        // Ordinals usually follow the workflow's topological order, in which case no sorting is needed
+        ImmutableMap.Builder<String, WorkflowNode<T>> nodes = ImmutableMap.builderWithExpectedSize(
+                ordinals.cardinality());
+        for (int i : workflow.hasTopologicalOrdinals() ? ordinals.stream().toArray() : workflow.getTopologicalOrder())
+        {
+            if (ordinals.get(i))
+            {
+                WorkflowNode<T> node = workflow.getNode(i);
+                nodes.put(node.getKey(), node);
+            }
+        }
+        m_nodes = nodes.build();
     }
 
     /**
@@ -63,7 +79,32 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
      */
     public static <U extends Task> Target<U> subsetBeginningAt(Target<U> universe, Collection<WorkflowNode<U>> nodes)
     {
-        return subsetOfCollectedNodes(universe, nodes, WorkflowNode::getDependents);
+        ImmutableSet<WorkflowNode<U>> nodesCopy = validateSubset(universe, nodes);
+        if (nodesCopy.size() == universe.getNodes().size())
+        {
+            return universe;
+        }
+
+        Workflow<U> workflow = universe.getWorkflow();
+        Optional<ReachabilityIndex<U>> reachabilityIndex = workflow.getBuiltReachabilityIndex();
+        if (universe == workflow && reachabilityIndex.isPresent())
+        {
+            return new WorkflowSubset<>(workflow, reachabilityIndex.get().getDescendantOrdinals(nodesCopy));
+        }
+
+        // Visit the universe in topological order, so that each node is
+        // visited after its dependencies and before its dependents
+        BitSet universeOrdinals = universe.getOrdinals();
+        BitSet ordinals = toOrdinals(nodesCopy);
+        for (int i : workflow.getTopologicalOrder())
+        {
+            if (universeOrdinals.get(i) && !ordinals.get(i)
+                    && anyOrdinalSet(workflow.getDependencies(workflow.getNode(i)), ordinals))
+            {
+                ordinals.set(i);
+            }
+        }
+        return new WorkflowSubset<>(workflow, ordinals);
     }
 
     /**
@@ -82,30 +123,60 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
      */
     public static <U extends Task> Target<U> subsetEndingAt(Target<U> universe, Collection<WorkflowNode<U>> nodes)
     {
-        return subsetOfCollectedNodes(universe, nodes, WorkflowNode::getDependencies);
+        ImmutableSet<WorkflowNode<U>> nodesCopy = validateSubset(universe, nodes);
+        if (nodesCopy.size() == universe.getNodes().size())
+        {
+            return universe;
+        }
+
+        Workflow<U> workflow = universe.getWorkflow();
+        Optional<ReachabilityIndex<U>> reachabilityIndex = workflow.getBuiltReachabilityIndex();
+        if (universe == workflow && reachabilityIndex.isPresent())
+        {
+            return new WorkflowSubset<>(workflow, reachabilityIndex.get().getAncestorOrdinals(nodesCopy));
+        }
+
+        // Visit the universe in reverse topological order
+        BitSet universeOrdinals = universe.getOrdinals();
+        BitSet ordinals = toOrdinals(nodesCopy);
+        int[] order = workflow.getTopologicalOrder();
+        for (int k = order.length - 1; k >= 0; k--)
+        {
+            int i = order[k];
+            if (universeOrdinals.get(i) && !ordinals.get(i)
+                    && anyOrdinalSet(workflow.getDependents(workflow.getNode(i)), ordinals))
+            {
+                ordinals.set(i);
+            }
+        }
+        return new WorkflowSubset<>(workflow, ordinals);
     }
 
-    private static <U extends Task> Target<U> subsetOfCollectedNodes(
-            Target<U> universe, Collection<WorkflowNode<U>> startNodes,
-            Function<WorkflowNode<U>, Set<WorkflowNode<U>>> neighborsFunc)
+    private static <U extends Task> BitSet toOrdinals(Collection<WorkflowNode<U>> nodes)
     {
-        ImmutableSet<WorkflowNode<U>> nodesCopy = validateSubset(universe, startNodes);
-        return nodesCopy.size() == universe.getNodes().size() ?
-                universe :
-                new WorkflowSubset<>(
-                        universe.getWorkflow(),
-                        TraversalUtils.collectNodes(
-                                nodesCopy.iterator(),
-                                node -> neighborsFunc.apply(node).stream()
-                                        .filter(universe::containsNode)
-                                        .iterator()
-                        )
-                );
+        BitSet ordinals = new BitSet();
+        for (WorkflowNode<U> node : nodes)
+        {
+            ordinals.set(node.getOrdinal());
+        }
+        return ordinals;
+    }
+
+    private static <U extends Task> boolean anyOrdinalSet(Collection<WorkflowNode<U>> nodes, BitSet ordinals)
+    {
+        for (WorkflowNode<U> node : nodes)
+        {
+            if (ordinals.get(node.getOrdinal()))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static <U extends Task> WorkflowSubset<U> of(Workflow<U> workflow, ImmutableSet<WorkflowNode<U>> nodes)
     {
-        return new WorkflowSubset<>(workflow, validateSubset(workflow, nodes));
+        return new WorkflowSubset<>(workflow, toOrdinals(validateSubset(workflow, nodes)));
     }
 
     private static <U extends Task> ImmutableSet<WorkflowNode<U>> validateSubset(Target<U> target,
@@ -120,23 +191,175 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
         return nodesCopy;
     }
 
-    // TODO: for large subsets, we could store the absent nodes instead
+    /**
+     * The serialized form of a subset. Nodes are stored by ordinal, which
+     * is stable across serialization of the workflow, using whichever of
+     * these encodings is shortest:
+     *
+     * <ul>
+     * <li>the gaps between consecutive included ordinals, as varints</li>
+     * <li>the gaps between consecutive excluded ordinals, as varints</li>
+     * <li>a bitset of the included ordinals</li>
+     * </ul>
+     */
     private static class SerializedForm<U extends Task> implements Serializable
     {
         private static final long serialVersionUID = 0L;
 
+        private static final byte INCLUDED = 0;
+        private static final byte EXCLUDED = 1;
+        private static final byte BITSET = 2;
+
         private final Workflow<U> m_workflow;
+
+        /**
+         * Every node in the subset. Only set in streams written by earlier
+         * versions, which did not store ordinals.
+         */
+        @Nullable
         private final ImmutableSet<WorkflowNode<U>> m_nodes;
 
-        public SerializedForm(Workflow<U> workflow, ImmutableSet<WorkflowNode<U>> nodes)
+        private final byte m_encoding;
+        private final byte[] m_ordinals;
+
+        public SerializedForm(Workflow<U> workflow, BitSet ordinals)
         {
+            // A workflow is deserialized without the gaps left by removed
+            // nodes, so store each ordinal's rank among the workflow's
+            // ordinals, which is its ordinal after deserialization
+            int size = workflow.getNodes().size();
+            if (workflow.getOrdinalBound() != size)
+            {
+                ordinals = toRanks(ordinals, workflow.getOrdinals());
+            }
+
+            BitSet excluded = (BitSet) ordinals.clone();
+            excluded.flip(0, size);
+
+            byte[] includedGaps = encodeGaps(ordinals);
+            byte[] excludedGaps = encodeGaps(excluded);
+            byte[] bitset = ordinals.toByteArray();
+
             m_workflow = workflow;
-            m_nodes = nodes;
+            m_nodes = null;
+            if (includedGaps.length <= excludedGaps.length && includedGaps.length <= bitset.length)
+            {
+                m_encoding = INCLUDED;
+                m_ordinals = includedGaps;
+            }
+            else if (excludedGaps.length <= bitset.length)
+            {
+                m_encoding = EXCLUDED;
+                m_ordinals = excludedGaps;
+            }
+            else
+            {
+                m_encoding = BITSET;
+                m_ordinals = bitset;
+            }
+        }
+
+        private static BitSet toRanks(BitSet ordinals, BitSet workflowOrdinals)
+        {
+            BitSet ranks = new BitSet();
+            int rank = 0;
+            for (int i = workflowOrdinals.nextSetBit(0); i >= 0; i = workflowOrdinals.nextSetBit(i + 1), rank++)
+            {
+                if (ordinals.get(i))
+                {
+                    ranks.set(rank);
+                }
+            }
+            return ranks;
         }
 
-        private Object readResolve()
+        private static byte[] encodeGaps(BitSet ordinals)
         {
-            return WorkflowSubset.of(m_workflow, m_nodes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int previous = -1;
+            for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1))
+            {
+                int gap = i - previous - 1;
+                while ((gap & ~0x7F) != 0)
+                {
+                    out.write((gap & 0x7F) | 0x80);
+                    gap >>>= 7;
+                }
+                out.write(gap);
+                previous = i;
+            }
+            return out.toByteArray();
+        }
+
+        private static BitSet decodeGaps(byte[] bytes) throws InvalidObjectException
+        {
+            BitSet ordinals = new BitSet();
+            int previous = -1;
+            int pos = 0;
+            while (pos < bytes.length)
+            {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    if (pos == bytes.length || shift > 28)
+                    {
+                        throw new InvalidObjectException("Malformed subset ordinals");
+                    }
+                    b = bytes[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                while ((b & 0x80) != 0);
+
+                if (gap < 0 || gap >= Integer.MAX_VALUE - previous - 1)
+                {
+                    throw new InvalidObjectException("Malformed subset ordinals");
+                }
+                previous += gap + 1;
+                ordinals.set(previous);
+            }
+            return ordinals;
+        }
+
+        private Object readResolve() throws ObjectStreamException
+        {
+            if (m_nodes != null)
+            {
+                return WorkflowSubset.of(m_workflow, m_nodes);
+            }
+
+            BitSet ordinals;
+            switch (m_encoding)
+            {
+                case INCLUDED:
+                case EXCLUDED:
+                    ordinals = decodeGaps(m_ordinals);
+                    break;
+                case BITSET:
+                    ordinals = BitSet.valueOf(m_ordinals);
+                    break;
+                default:
+                    throw new InvalidObjectException("Unknown subset encoding " + m_encoding);
+            }
+
+            // The ordinals index into the same workflow they were taken
+            // from, so a range check is all the validation needed
+            int size = m_workflow.getNodes().size();
+            if (ordinals.length() > size)
+            {
+                throw new InvalidObjectException("Subset ordinals do not fit the workflow");
+            }
+            if (m_encoding == EXCLUDED)
+            {
+                ordinals.flip(0, size);
+            }
+            if (ordinals.isEmpty())
+            {
+                throw new InvalidObjectException("Target must contain at least one node");
+            }
+            return new WorkflowSubset<>(m_workflow, ordinals);
         }
     }
 
@@ -147,7 +370,7 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
 
     private Object writeReplace()
     {
-        return new SerializedForm<>(m_workflow, ImmutableSet.copyOf(m_nodes.values()));
+        return new SerializedForm<>(m_workflow, m_ordinals);
     }
 
     @Override
@@ -162,9 +385,15 @@ class WorkflowSubset<T extends Task> extends Target<T> implements Serializable
         return m_nodes;
     }
 
+    @Override
+    BitSet getOrdinals()
+    {
+        return m_ordinals;
+    }
+
     @Override
     boolean containsNode(WorkflowNode<T> node)
     {
-        return m_workflow.containsNode(node) && m_nodes.containsKey(node.getKey());
+        return m_workflow.containsNode(node) && m_ordinals.get(node.getOrdinal());
     }
 }
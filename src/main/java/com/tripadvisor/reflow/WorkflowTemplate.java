@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The shape of a workflow, from which workflows with the same nodes and
+ * dependencies but different tasks can be created cheaply.
+ *
+ * <p>The template holds the workflow's topological order and the
+ * dependencies and dependents of each node as arrays of positions in that
+ * order. Instantiating it allocates the nodes and their dependency sets,
+ * without validating, sorting or otherwise traversing the graph. This suits
+ * workflows instantiated many times with different task parameters, such as
+ * one per date partition.</p>
+ *
+ * <p>Each node of an instance is of the same kind as the corresponding node
+ * of the original workflow. Task nodes (including {@link ExpandingNode}s)
+ * take their task from the instantiation; other nodes need no task, and
+ * {@link SubWorkflowNode}s keep the source of the original.</p>
+ */
+public final class WorkflowTemplate<T extends Task>
+{
+    /**
+     * The nodes of the original workflow in topological order, used as
+     * prototypes for the nodes of instances.
+     */
+    private final ImmutableList<WorkflowNode<T>> m_prototypes;
+
+    private final ImmutableList<String> m_keys;
+
+    /**
+     * The positions of the dependencies and dependents of each node.
+     */
+    private final int[][] m_dependencies;
+    private final int[][] m_dependents;
+
+    private WorkflowTemplate(Workflow<T> workflow)
+    {
+        // Positions differ from ordinals if nodes have been removed from or spliced into the workflow
+        m_prototypes = ImmutableList.copyOf(workflow.getNodes().values());
+        m_keys = ImmutableList.copyOf(workflow.getNodes().keySet());
+        int[] positions = new int[workflow.getOrdinalBound()];
+        for (int i = 0; i < m_prototypes.size(); i++)
+        {
+            positions[m_prototypes.get(i).getOrdinal()] = i;
+        }
+
+        m_dependencies = new int[m_prototypes.size()][];
+        m_dependents = new int[m_prototypes.size()][];
+        for (int i = 0; i < m_prototypes.size(); i++)
+        {
+            WorkflowNode<T> node = m_prototypes.get(i);
+            m_dependencies[i] = workflow.getDependencies(node).stream()
+                    .mapToInt(dependency -> positions[dependency.getOrdinal()])
+                    .sorted()
+                    .toArray();
+            m_dependents[i] = workflow.getDependents(node).stream()
+                    .mapToInt(dependent -> positions[dependent.getOrdinal()])
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    /**
+     * Returns a template with the shape of the given workflow.
+     */
+    public static <U extends Task> WorkflowTemplate<U> of(Workflow<U> workflow)
+    {
+        return new WorkflowTemplate<>(workflow);
+    }
+
+    /**
+     * Returns the keys of the template's nodes in topological order. This is
+     * the order in which {@link #instantiate(List)} expects tasks.
+     */
+    public List<String> getKeys()
+    {
+        return m_keys;
+    }
+
+    /**
+     * Returns a new workflow with this template's shape, associating the
+     * task at each position in the given list with the node whose key is at
+     * the same position in {@link #getKeys()}. Tasks for nodes without tasks
+     * are ignored and may be null.
+     *
+     * @throws IllegalArgumentException if the number of tasks doesn't match
+     * the number of nodes
+     * @throws NullPointerException if a task node is given a null task
+     */
+    public Workflow<T> instantiate(List<? extends T> tasks)
+    {
+        Preconditions.checkArgument(tasks.size() == m_prototypes.size(),
+                                    "Expected %s tasks, got %s", m_prototypes.size(), tasks.size());
+
+        List<WorkflowNode<T>> nodes = new ArrayList<>(m_prototypes.size());
+        for (int i = 0; i < m_prototypes.size(); i++)
+        {
+            WorkflowNode<T> node = m_prototypes.get(i).withTask(tasks.get(i));
+            node.setOrdinal(i);
+            nodes.add(node);
+        }
+
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            WorkflowNode<T> node = nodes.get(i);
+            node.setDependencies(toSet(nodes, m_dependencies[i]));
+            node.setDependents(toSet(nodes, m_dependents[i]));
+        }
+
+        return Workflow.ofLinked(nodes);
+    }
+
+    /**
+     * Returns a new workflow with this template's shape, associating each
+     * task node with the task returned by the given function for its key.
+     * The function is only called for task nodes.
+     *
+     * @throws NullPointerException if the function returns null
+     */
+    public Workflow<T> instantiate(Function<? super String, ? extends T> tasksByKey)
+    {
+        List<T> tasks = new ArrayList<>(m_prototypes.size());
+        for (WorkflowNode<T> prototype : m_prototypes)
+        {
+            tasks.add(prototype.hasTask() ? tasksByKey.apply(prototype.getKey()) : null);
+        }
+        return instantiate(tasks);
+    }
+
+    private static <U extends Task> ImmutableSet<WorkflowNode<U>> toSet(List<WorkflowNode<U>> nodes, int[] positions)
+    {
+        ImmutableSet.Builder<WorkflowNode<U>> set = ImmutableSet.builderWithExpectedSize(positions.length);
+        for (int position : positions)
+        {
+            set.add(nodes.get(position));
+        }
+        return set.build();
+    }
+}
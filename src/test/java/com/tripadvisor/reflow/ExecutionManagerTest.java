@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.tripadvisor.reflow.TaskNode.Builder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.testng.Assert.fail;
+
+public final class ExecutionManagerTest
+{
+    @Test
+    public void testWeightedRoundRobin()
+    {
+        ManualTaskScheduler<String> sharedScheduler = new ManualTaskScheduler<>();
+        ExecutionManager<String> manager = ExecutionManager.create(sharedScheduler, 1);
+        TaskScheduler<String> blocking = manager.newScheduler(1);
+        TaskScheduler<String> light = manager.newScheduler(1);
+        TaskScheduler<String> heavy = manager.newScheduler(2);
+        CountingCallback callback = new CountingCallback();
+
+        // Occupy the only slot so that everything else is queued before dispatch starts
+        blocking.submit("x", callback);
+        for (int i = 1; i <= 3; i++)
+        {
+            light.submit("a" + i, callback);
+        }
+        for (int i = 1; i <= 3; i++)
+        {
+            heavy.submit("b" + i, callback);
+        }
+
+        assertThat(manager.getRunningTaskCount()).isEqualTo(1);
+        assertThat(manager.getQueuedTaskCount()).isEqualTo(6);
+
+        List<String> order = new ArrayList<>();
+        while (sharedScheduler.getPendingCount() > 0)
+        {
+            order.add(sharedScheduler.completeNext());
+        }
+
+        assertThat(order).containsExactly("x", "a1", "b1", "b2", "a2", "b3", "a3").inOrder();
+        assertThat(callback.getSuccessCount()).isEqualTo(7);
+        assertThat(manager.getCompletedTaskCount()).isEqualTo(7);
+        assertThat(manager.getRunningTaskCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testQuota()
+    {
+        ManualTaskScheduler<String> sharedScheduler = new ManualTaskScheduler<>();
+        ExecutionManager<String> manager = ExecutionManager.create(sharedScheduler, 4);
+        TaskScheduler<String> limited = manager.newScheduler(5, 1);
+        TaskScheduler<String> unlimited = manager.newScheduler(1);
+        CountingCallback callback = new CountingCallback();
+
+        for (int i = 0; i < 3; i++)
+        {
+            limited.submit("q" + i, callback);
+            unlimited.submit("r" + i, callback);
+        }
+
+        // One slot for the limited scheduler, the rest for the other
+        assertThat(sharedScheduler.getPendingCount()).isEqualTo(4);
+        assertThat(manager.getQueuedTaskCount()).isEqualTo(2);
+
+        while (sharedScheduler.getPendingCount() > 0)
+        {
+            sharedScheduler.completeNext();
+        }
+        assertThat(callback.getSuccessCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void testRegisterCallback() throws InvalidTokenException
+    {
+        ManualTaskScheduler<String> sharedScheduler = new ManualTaskScheduler<>();
+        ExecutionManager<String> manager = ExecutionManager.create(sharedScheduler, 1);
+        TaskScheduler<String> first = manager.newScheduler(1);
+        TaskScheduler<String> second = manager.newScheduler(1);
+
+        CountingCallback beforeCompletion = new CountingCallback();
+        ScheduledTaskToken token = first.submit("x", new CountingCallback());
+        second.registerCallback(token, beforeCompletion);
+
+        sharedScheduler.completeNext();
+        assertThat(beforeCompletion.getSuccessCount()).isEqualTo(1);
+
+        CountingCallback afterCompletion = new CountingCallback();
+        first.registerCallback(token, afterCompletion);
+        assertThat(afterCompletion.getSuccessCount()).isEqualTo(1);
+
+        try
+        {
+            ExecutionManager.create(sharedScheduler, 1).newScheduler(1).registerCallback(token, afterCompletion);
+            fail("Token from another manager accepted");
+        }
+        catch (InvalidTokenException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSharedExecutions() throws InterruptedException, ExecutionException
+    {
+        // Two executions of the same eight-node graph share a two-thread scheduler
+        //
+        // 0-1-2-3-4
+        //    \ /
+        //   5-6-7
+
+        ExecutorService es = Executors.newCachedThreadPool();
+        try
+        {
+            ExecutionManager<Runnable> manager = ExecutionManager.create(LocalTaskScheduler.create(es), 2);
+            AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+
+            List<CompletableFuture<ExecutionResult<TestTask>>> futures = new ArrayList<>();
+            for (int weight = 1; weight <= 2; weight++)
+            {
+                BuilderAssembler<TestTask, Builder<TestTask>> builderAssembler = BuilderAssembler.usingTasks(
+                        () -> TestTask.succeeding(5, outputMutabilityFlag)
+                );
+                Workflow<TestTask> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+                futures.add(Execution.newExecution(workflow, manager.newScheduler(weight))
+                                    .start()
+                                    .toCompletableFuture());
+            }
+
+            for (CompletableFuture<ExecutionResult<TestTask>> future : futures)
+            {
+                future.get().getNodeStatuses().values()
+                        .forEach(status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+            }
+
+            assertThat(manager.getCompletedTaskCount()).isEqualTo(16);
+            assertThat(manager.getThroughput()).isGreaterThan(0.0);
+        }
+        finally
+        {
+            es.shutdown();
+        }
+    }
+
+    private static final class CountingCallback implements TaskCompletionCallback
+    {
+        private final AtomicInteger m_successCount = new AtomicInteger();
+
+        public int getSuccessCount()
+        {
+            return m_successCount.get();
+        }
+
+        @Override
+        public void reportSuccess()
+        {
+            m_successCount.incrementAndGet();
+        }
+
+        @Override
+        public void reportFailure()
+        {}
+
+        @Override
+        public void reportFailure(String message)
+        {}
+
+        @Override
+        public void reportFailure(String message, Throwable cause)
+        {}
+
+        @Override
+        public void reportFailure(Throwable cause)
+        {}
+    }
+}
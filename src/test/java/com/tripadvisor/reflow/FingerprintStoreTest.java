@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class FingerprintStoreTest
+{
+    private Path m_directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException
+    {
+        m_directory = Files.createTempDirectory("reflow");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException
+    {
+        PathOutput.of(m_directory).delete();
+    }
+
+    @Test
+    public void testReopen() throws IOException
+    {
+        Path file = m_directory.resolve("fingerprints");
+        ContentFingerprint fingerprint = ContentFingerprint.of(3, Instant.ofEpochSecond(1000), "abc");
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            store.putOutputFingerprint("a", ContentFingerprint.of(1, Instant.ofEpochSecond(500), "xyz"));
+            store.putOutputFingerprint("a", fingerprint);
+            store.putDependencyHashes("1", ImmutableMap.of("a", "abc"));
+        }
+
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            assertThat(store.getOutputFingerprint("a")).isEqualTo(Optional.of(fingerprint));
+            assertThat(store.getOutputFingerprint("b")).isEqualTo(Optional.empty());
+            assertThat(store.getDependencyHashes("1")).isEqualTo(Optional.of(ImmutableMap.of("a", "abc")));
+
+            long size = Files.size(file);
+            store.compact();
+            assertThat(Files.size(file)).isLessThan(size);
+            store.putDependencyHashes("2", ImmutableMap.of());
+        }
+
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            assertThat(store.getOutputFingerprint("a")).isEqualTo(Optional.of(fingerprint));
+            assertThat(store.getDependencyHashes("1")).isEqualTo(Optional.of(ImmutableMap.of("a", "abc")));
+            assertThat(store.getDependencyHashes("2")).isEqualTo(Optional.of(ImmutableMap.of()));
+        }
+    }
+
+    @Test
+    public void testIncompleteUpdate() throws IOException
+    {
+        Path file = m_directory.resolve("fingerprints");
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            store.putDependencyHashes("1", ImmutableMap.of("a", "abc"));
+        }
+        long size = Files.size(file);
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            store.putDependencyHashes("2", ImmutableMap.of("a", "abc"));
+        }
+
+        // Cut the second update short
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, (int) size + 3));
+
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            assertThat(store.getDependencyHashes("1")).isEqualTo(Optional.of(ImmutableMap.of("a", "abc")));
+            assertThat(store.getDependencyHashes("2")).isEqualTo(Optional.empty());
+            assertThat(Files.size(file)).isEqualTo(size);
+            store.putDependencyHashes("3", ImmutableMap.of());
+        }
+
+        try (FingerprintStore store = FingerprintStore.open(file))
+        {
+            assertThat(store.getDependencyHashes("3")).isEqualTo(Optional.of(ImmutableMap.of()));
+        }
+    }
+
+    @Test
+    public void testPathFingerprint() throws IOException
+    {
+        Path directory = Files.createDirectory(m_directory.resolve("output"));
+        Path file = directory.resolve("data");
+        Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+        PathOutput output = PathOutput.of(directory);
+
+        ContentFingerprint fingerprint = output.getFingerprint(null).get();
+        assertThat(fingerprint.getSize()).isEqualTo(7L);
+
+        // A matching previous fingerprint is trusted without reading the content
+        ContentFingerprint previous = ContentFingerprint.of(
+                fingerprint.getSize(), fingerprint.getLastModified(), "trusted");
+        assertThat(output.getFingerprint(previous)).isEqualTo(Optional.of(previous));
+
+        // Touching the file changes the modification time but not the content
+        touch(file);
+        ContentFingerprint touched = output.getFingerprint(fingerprint).get();
+        assertThat(touched.getLastModified()).isGreaterThan(fingerprint.getLastModified());
+        assertThat(touched.hasSameContent(fingerprint)).isTrue();
+
+        Files.write(file, "CONTENT".getBytes(StandardCharsets.UTF_8));
+        touch(file);
+        assertThat(output.getFingerprint(touched).get().hasSameContent(fingerprint)).isFalse();
+
+        assertThat(PathOutput.of(m_directory.resolve("missing")).getFingerprint(null)).isEqualTo(Optional.empty());
+    }
+
+    @Test
+    public void testContentValidation() throws IOException
+    {
+        Path input = m_directory.resolve("input");
+        Path result = m_directory.resolve("result");
+        TaskNode.Builder<PathTask> builder0 = TaskNode.builder("0", new PathTask(input));
+        TaskNode.Builder<PathTask> builder1 = TaskNode.builder("1", new PathTask(result));
+        builder1.addDependencies(builder0);
+        Workflow<PathTask> workflow = Workflow.create(ImmutableList.of(builder0, builder1));
+        WorkflowNode<PathTask> node1 = workflow.getNodes().get("1");
+
+        Files.write(input, "input".getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        Files.write(result, "result".getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        Files.setLastModifiedTime(input, FileTime.from(Files.getLastModifiedTime(result).toInstant().minusSeconds(5)));
+
+        OutputHandler timestampHandler = OutputHandler.create();
+        OutputHandler contentHandler = OutputHandler.create(FingerprintStore.inMemory());
+        contentHandler.recordSuccess(workflow, node1);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).isEmpty();
+
+        // Touching the input invalidates by timestamp, but not by content
+        touch(input);
+        assertThat(timestampHandler.invalidateOutput(workflow).getInvalidNodes()).containsExactly(node1);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).isEmpty();
+
+        Files.write(input, "changed".getBytes(StandardCharsets.UTF_8));
+        touch(input);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).containsExactly(node1);
+
+        // Once the task has run again, the new input is recorded
+        contentHandler.recordSuccess(workflow, node1);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).isEmpty();
+    }
+
+    @Test
+    public void testContentValidationThroughStructureNode() throws IOException
+    {
+        // 0 -> s -> 1, where s has no task of its own
+        Path input = m_directory.resolve("input");
+        Path result = m_directory.resolve("result");
+        TaskNode.Builder<PathTask> builder0 = TaskNode.builder("0", new PathTask(input));
+        StructureNode.Builder<PathTask> builderS = StructureNode.builder("s");
+        TaskNode.Builder<PathTask> builder1 = TaskNode.builder("1", new PathTask(result));
+        builderS.addDependencies(builder0);
+        builder1.addDependencies(builderS);
+        Workflow<PathTask> workflow = Workflow.create(ImmutableList.of(builder0, builderS, builder1));
+        WorkflowNode<PathTask> node1 = workflow.getNodes().get("1");
+
+        Files.write(input, "input".getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        Files.write(result, "result".getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+
+        OutputHandler contentHandler = OutputHandler.create(FingerprintStore.inMemory());
+        contentHandler.recordSuccess(workflow, node1);
+
+        // The input of 1 is the output of 0, seen through s
+        touch(input);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).doesNotContain(node1);
+        Files.write(input, "changed".getBytes(StandardCharsets.UTF_8));
+        touch(input);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).contains(node1);
+
+        // Missing upstream output invalidates as well
+        contentHandler.recordSuccess(workflow, node1);
+        Files.delete(input);
+        assertThat(contentHandler.invalidateOutput(workflow).getInvalidNodes()).contains(node1);
+    }
+
+    private static void touch(Path path) throws IOException
+    {
+        Instant lastModified = Files.getLastModifiedTime(path).toInstant();
+        Files.setLastModifiedTime(path, FileTime.from(lastModified.plusSeconds(10)));
+    }
+
+    private static final class PathTask implements Task
+    {
+        private final PathOutput m_output;
+
+        public PathTask(Path path)
+        {
+            m_output = PathOutput.of(path);
+        }
+
+        @Override
+        public Collection<Output> getOutputs()
+        {
+            return ImmutableList.of(m_output);
+        }
+    }
+}
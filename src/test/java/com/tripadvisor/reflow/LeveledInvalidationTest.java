@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import org.testng.annotations.Test;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public final class LeveledInvalidationTest
+{
+    @Test
+    public void testWideLevel()
+    {
+        // Node 0 feeds a level wide enough to be processed in parallel; even
+        // nodes in that level predate it. The last node depends on node 2 and
+        // is invalid by extension, despite having the most recent output.
+        int width = 5000;
+        int size = width + 2;
+        int[][] dependencyIndices = new int[size][];
+        long[] minOutputTimestamps = new long[size];
+        long[] maxOutputTimestamps = new long[size];
+
+        dependencyIndices[0] = new int[0];
+        minOutputTimestamps[0] = 100;
+        maxOutputTimestamps[0] = 100;
+
+        for (int i = 1; i <= width; i++)
+        {
+            dependencyIndices[i] = new int[] { 0 };
+            minOutputTimestamps[i] = i % 2 == 0 ? 50 : 150;
+            maxOutputTimestamps[i] = i % 2 == 0 ? 50 : 150;
+        }
+
+        dependencyIndices[size - 1] = new int[] { 1, 2 };
+        minOutputTimestamps[size - 1] = 1000;
+        maxOutputTimestamps[size - 1] = 1000;
+
+        LeveledInvalidation invalidation = new LeveledInvalidation(
+                dependencyIndices, minOutputTimestamps, maxOutputTimestamps);
+        invalidation.run();
+
+        assertWithMessage("Node 0 invalid").that(invalidation.isInvalid(0)).isFalse();
+        for (int i = 1; i <= width; i++)
+        {
+            assertWithMessage("Node %s invalid", i).that(invalidation.isInvalid(i)).isEqualTo(i % 2 == 0);
+        }
+        assertWithMessage("Last node invalid").that(invalidation.isInvalid(size - 1)).isTrue();
+    }
+
+    @Test
+    public void testMissingOutput()
+    {
+        // 0-1-2, where node 0 has no output and node 1 has missing output
+        int[][] dependencyIndices = { {}, { 0 }, { 1 } };
+        long[] minOutputTimestamps = { Long.MAX_VALUE, Long.MAX_VALUE, 100 };
+        long[] maxOutputTimestamps = { Long.MIN_VALUE, Long.MAX_VALUE, 100 };
+
+        LeveledInvalidation invalidation = new LeveledInvalidation(
+                dependencyIndices, minOutputTimestamps, maxOutputTimestamps);
+        invalidation.run();
+
+        assertWithMessage("Node 0 invalid").that(invalidation.isInvalid(0)).isFalse();
+        assertWithMessage("Node 1 invalid").that(invalidation.isInvalid(1)).isFalse();
+        assertWithMessage("Node 2 invalid").that(invalidation.isInvalid(2)).isTrue();
+    }
+}
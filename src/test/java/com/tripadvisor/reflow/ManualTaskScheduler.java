@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Scheduler that records submissions and leaves them pending until completed by hand.
+ */
+final class ManualTaskScheduler<T> implements TaskScheduler<T>
+{
+    private final Deque<Submission<T>> m_pending = new ArrayDeque<>();
+    private final Map<ScheduledTaskToken, Submission<T>> m_submissions = new HashMap<>();
+
+    @Override
+    public synchronized ScheduledTaskToken submit(T task, TaskCompletionCallback callback)
+    {
+        Submission<T> submission = new Submission<>(task);
+        submission.m_callbacks.add(callback);
+        ScheduledTaskToken token = new TestToken(m_submissions.size());
+        m_pending.addLast(submission);
+        m_submissions.put(token, submission);
+        return token;
+    }
+
+    @Override
+    public void registerCallback(ScheduledTaskToken token, TaskCompletionCallback callback)
+            throws InvalidTokenException
+    {
+        Consumer<TaskCompletionCallback> outcome;
+        synchronized (this)
+        {
+            Submission<T> submission = m_submissions.get(token);
+            if (submission == null)
+            {
+                throw new InvalidTokenException();
+            }
+            if (submission.m_outcome == null)
+            {
+                submission.m_callbacks.add(callback);
+                return;
+            }
+            outcome = submission.m_outcome;
+        }
+        outcome.accept(callback);
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return m_pending.size();
+    }
+
+    public synchronized int getSubmissionCount()
+    {
+        return m_submissions.size();
+    }
+
+    /**
+     * Removes the oldest pending submission, reports its success, and returns its task.
+     */
+    public T completeNext()
+    {
+        return finishNext(TaskCompletionCallback::reportSuccess);
+    }
+
+    /**
+     * Removes the oldest pending submission, reports its failure, and returns its task.
+     */
+    public T failNext()
+    {
+        return finishNext(TaskCompletionCallback::reportFailure);
+    }
+
+    private T finishNext(Consumer<TaskCompletionCallback> outcome)
+    {
+        Submission<T> submission;
+        List<TaskCompletionCallback> callbacks;
+        synchronized (this)
+        {
+            submission = m_pending.removeFirst();
+            submission.m_outcome = outcome;
+            callbacks = new ArrayList<>(submission.m_callbacks);
+        }
+        callbacks.forEach(outcome);
+        return submission.m_task;
+    }
+
+    private static final class Submission<T>
+    {
+        private final T m_task;
+        private final List<TaskCompletionCallback> m_callbacks = new ArrayList<>();
+        @Nullable
+        private Consumer<TaskCompletionCallback> m_outcome;
+
+        public Submission(T task)
+        {
+            m_task = task;
+        }
+    }
+}
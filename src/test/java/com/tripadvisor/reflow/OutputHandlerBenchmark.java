@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.tripadvisor.reflow.TaskNode.Builder;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Benchmarks for output invalidation over large targets. These are excluded
+ * from the regular test run; use {@code gradle benchmark} to run them.
+ */
+public final class OutputHandlerBenchmark
+{
+    private static final int BASE_SIZE = 20_000;
+    private static final int SCALE_FACTOR = 4;
+
+    @Test(groups = "benchmark")
+    public void benchmarkInvalidationScaling() throws IOException
+    {
+        Target<NoOpTask> small = newLadderSubset(BASE_SIZE);
+        Target<NoOpTask> large = newLadderSubset(BASE_SIZE * SCALE_FACTOR);
+
+        // Warm up
+        timeInvalidation(small);
+        timeInvalidation(large);
+
+        long smallNanos = timeInvalidation(small);
+        long largeNanos = timeInvalidation(large);
+        double ratio = (double) largeNanos / smallNanos;
+        System.out.printf("Invalidated %d nodes in %d ms, %d nodes in %d ms (ratio %.1f)%n",
+                          small.getNodes().size(), TimeUnit.NANOSECONDS.toMillis(smallNanos),
+                          large.getNodes().size(), TimeUnit.NANOSECONDS.toMillis(largeNanos), ratio);
+
+        // Linear scaling gives a ratio close to the scale factor, quadratic scaling close to its square
+        assertWithMessage("Invalidation time should grow linearly with target size")
+                .that(ratio).isLessThan((double) SCALE_FACTOR * SCALE_FACTOR / 2);
+    }
+
+    private static long timeInvalidation(Target<NoOpTask> target) throws IOException
+    {
+        OutputHandler outputHandler = OutputHandler.create();
+        long start = System.nanoTime();
+        outputHandler.invalidateOutput(target);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns a subset of a workflow in which each node depends on the two
+     * preceding nodes. The subset excludes only the first node, so that it
+     * is not simply the workflow itself.
+     */
+    private static Target<NoOpTask> newLadderSubset(int size)
+    {
+        List<Builder<NoOpTask>> builders = BuilderAssembler.<NoOpTask>usingTasks(NoOpTask::new).builderList(size);
+        for (int i = 1; i < size; i++)
+        {
+            builders.get(i).addDependencies(builders.get(i - 1));
+            if (i > 1)
+            {
+                builders.get(i).addDependencies(builders.get(i - 2));
+            }
+        }
+        Workflow<NoOpTask> workflow = Workflow.create(builders);
+        return workflow.startingFromKeys("1");
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public final class PathOutputTest
+{
+    private Path m_directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException
+    {
+        m_directory = Files.createTempDirectory("reflow");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException
+    {
+        PathOutput.of(m_directory).delete();
+    }
+
+    @Test
+    public void testBatchTimestamps() throws IOException
+    {
+        // Enough outputs in one directory to be batched, some of them missing or directories,
+        // plus a few elsewhere that are looked up separately
+        Path batched = Files.createDirectory(m_directory.resolve("batched"));
+        List<PathOutput> outputs = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            Path path = batched.resolve("output" + i);
+            if (i % 3 == 1)
+            {
+                Files.createDirectory(path);
+            }
+            else if (i % 3 == 2)
+            {
+                Files.createFile(path);
+            }
+            if (Files.exists(path))
+            {
+                Files.setLastModifiedTime(path, FileTime.from(Instant.ofEpochSecond(1_000_000 + i)));
+            }
+            outputs.add(PathOutput.of(path));
+        }
+        Files.createFile(batched.resolve("unrelated"));
+        outputs.add(PathOutput.of(Files.createFile(m_directory.resolve("single"))));
+        outputs.add(PathOutput.of(m_directory.resolve("missing").resolve("output")));
+        for (int i = 0; i < 10; i++)
+        {
+            outputs.add(PathOutput.of(m_directory.resolve("missing").resolve("output" + i)));
+        }
+
+        Map<PathOutput, Optional<Instant>> timestamps = PathOutput.getTimestamps(outputs);
+        assertThat(timestamps).hasSize(outputs.size());
+        for (PathOutput output : outputs)
+        {
+            assertWithMessage("Timestamp of %s", output)
+                    .that(timestamps.get(output)).isEqualTo(output.getTimestamp());
+        }
+        assertThat(timestamps.get(outputs.get(2))).isEqualTo(Optional.of(Instant.ofEpochSecond(1_000_002)));
+        assertThat(timestamps.get(outputs.get(3))).isEqualTo(Optional.empty());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static java.util.stream.Collectors.toList;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public final class ReachabilityIndexTest
+{
+    private static final long RANDOM_GRAPH_SEED = 6148830373560813229L;
+
+    @Test
+    public void testAgainstTraversal()
+    {
+        Random random = new Random(RANDOM_GRAPH_SEED);
+        List<StructureNode.Builder<Task>> builders = BuilderAssembler.withoutTasks().builderList(150);
+        for (int i = 1; i < builders.size(); i++)
+        {
+            for (int j = random.nextInt(3); j > 0; j--)
+            {
+                builders.get(i).addDependencies(builders.get(random.nextInt(i)));
+            }
+        }
+        Workflow<Task> workflow = Workflow.create(builders);
+        ReachabilityIndex<Task> index = workflow.getReachabilityIndex();
+        assertThat(workflow.getReachabilityIndex()).isSameAs(index);
+
+        for (WorkflowNode<Task> node : workflow.getNodes().values())
+        {
+            Set<WorkflowNode<Task>> descendants =
+                    TraversalUtils.collectNodes(ImmutableList.of(node), WorkflowNode::getDependents);
+            Set<WorkflowNode<Task>> ancestors =
+                    TraversalUtils.collectNodes(ImmutableList.of(node), WorkflowNode::getDependencies);
+
+            for (WorkflowNode<Task> other : workflow.getNodes().values())
+            {
+                assertWithMessage("%s is ancestor of %s", node, other)
+                        .that(index.isAncestor(node, other))
+                        .isEqualTo(other != node && descendants.contains(other));
+            }
+            assertThat(index.getDescendants(node)).containsExactlyElementsIn(
+                    descendants.stream().filter(n -> n != node).collect(toList()));
+            assertThat(index.getAncestors(node)).containsExactlyElementsIn(
+                    ancestors.stream().filter(n -> n != node).collect(toList()));
+
+            // Targets computed using the index match the traversal
+            assertThat(workflow.startingFrom(node).getNodes().values()).containsExactlyElementsIn(descendants);
+            assertThat(workflow.stoppingAfter(node).getNodes().values()).containsExactlyElementsIn(ancestors);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testForeignNode()
+    {
+        Workflow<Task> workflow = Workflow.create(BuilderAssembler.withoutTasks().builderListTestConfig1());
+        Workflow<Task> otherWorkflow = Workflow.create(BuilderAssembler.withoutTasks().builderListTestConfig1());
+        workflow.getReachabilityIndex().isAncestor(workflow.getNodes().get("0"), otherWorkflow.getNodes().get("2"));
+    }
+}
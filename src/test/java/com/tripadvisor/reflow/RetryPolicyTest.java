@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.testng.Assert.fail;
+
+public final class RetryPolicyTest
+{
+    @Test
+    public void testBackoff()
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxAttempts(4)
+                .setInitialBackoff(Duration.ofSeconds(1))
+                .setBackoffMultiplier(3.0)
+                .setMaxBackoff(Duration.ofSeconds(5))
+                .setRetryableFailurePredicate(cause -> cause instanceof IllegalStateException)
+                .build();
+
+        assertThat(policy.getBackoff(1)).isEqualTo(Duration.ofSeconds(1));
+        assertThat(policy.getBackoff(2)).isEqualTo(Duration.ofSeconds(3));
+        assertThat(policy.getBackoff(3)).isEqualTo(Duration.ofSeconds(5));
+
+        assertThat(policy.shouldRetry(1, null)).isTrue();
+        assertThat(policy.shouldRetry(1, new IllegalStateException())).isTrue();
+        assertThat(policy.shouldRetry(1, new IllegalArgumentException())).isFalse();
+        assertThat(policy.shouldRetry(3, null)).isTrue();
+        assertThat(policy.shouldRetry(4, null)).isFalse();
+    }
+
+    @Test
+    public void testRetryUntilSuccess() throws InterruptedException, ExecutionException
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxAttempts(3)
+                .setInitialBackoff(Duration.ofMillis(1))
+                .build();
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Workflow<FailingTask> workflow = Workflow.create(
+                BuilderAssembler.<FailingTask>usingTasks(() -> new FailingTask(policy)).builderList(1)
+        );
+        CompletableFuture<ExecutionResult<FailingTask>> future =
+                Execution.newExecution(workflow, scheduler).start().toCompletableFuture();
+
+        for (int attempt = 1; attempt <= 2; attempt++)
+        {
+            scheduler.failNext();
+            awaitSubmissionCount(scheduler, attempt + 1);
+            assertThat(future.isDone()).isFalse();
+        }
+
+        scheduler.completeNext();
+        assertThat(future.get().getNodeStatuses().get(workflow.getNodes().get("0")).getState())
+                .isEqualTo(NodeState.SUCCEEDED);
+    }
+
+    @Test
+    public void testRetriesExhausted() throws InterruptedException
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxAttempts(3)
+                .setInitialBackoff(Duration.ofMillis(1))
+                .build();
+
+        assertThat(runFailingTask(policy).getAttemptCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testNonRetryableFailure() throws InterruptedException
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxAttempts(3)
+                .setInitialBackoff(Duration.ofMillis(1))
+                .setRetryableFailurePredicate(cause -> !(cause instanceof TestTask.TestException))
+                .build();
+
+        assertThat(runFailingTask(policy).getAttemptCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testShutdownAbandonsRetries() throws InterruptedException
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setInitialBackoff(Duration.ofHours(1))
+                .build();
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Workflow<FailingTask> workflow = Workflow.create(
+                BuilderAssembler.<FailingTask>usingTasks(() -> new FailingTask(policy)).builderList(1)
+        );
+        Execution<FailingTask> execution = Execution.newExecution(workflow, scheduler);
+        CompletableFuture<ExecutionResult<FailingTask>> future = execution.start().toCompletableFuture();
+
+        scheduler.failNext();
+        assertThat(future.isDone()).isFalse();
+
+        execution.shutdown();
+        try
+        {
+            future.get();
+            fail("Execution succeeded");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(1);
+    }
+
+    private static FailingTask runFailingTask(RetryPolicy policy) throws InterruptedException
+    {
+        FailingTask task = new FailingTask(policy);
+        Workflow<FailingTask> workflow = Workflow.create(
+                BuilderAssembler.<FailingTask>usingTasks(() -> task).builderList(1)
+        );
+        Execution<FailingTask> execution = Execution.newExecution(
+                workflow, LocalTaskScheduler.create(MoreExecutors.directExecutor())
+        );
+
+        try
+        {
+            execution.start().toCompletableFuture().get();
+            fail("Execution succeeded");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause().getCause()).isInstanceOf(TestTask.TestException.class);
+        }
+        return task;
+    }
+
+    private static void awaitSubmissionCount(ManualTaskScheduler<?> scheduler, int count) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getSubmissionCount() < count && System.nanoTime() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(count);
+    }
+
+    /**
+     * Task that always fails when run.
+     */
+    private static final class FailingTask implements RetryableTask, Runnable
+    {
+        private final RetryPolicy m_retryPolicy;
+        private final AtomicInteger m_attemptCount = new AtomicInteger();
+
+        public FailingTask(RetryPolicy retryPolicy)
+        {
+            m_retryPolicy = retryPolicy;
+        }
+
+        public int getAttemptCount()
+        {
+            return m_attemptCount.get();
+        }
+
+        @Override
+        public RetryPolicy getRetryPolicy()
+        {
+            return m_retryPolicy;
+        }
+
+        @Override
+        public Set<Output> getOutputs()
+        {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public void run()
+        {
+            m_attemptCount.incrementAndGet();
+            throw new TestTask.TestException();
+        }
+    }
+}
@@ -23,13 +23,17 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 
 import static com.google.common.collect.ImmutableSetMultimap.flatteningToImmutableSetMultimap;
@@ -80,7 +84,21 @@ public class SerializationTest
     {
         BuilderAssembler<Task, TaskNode.Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
         Workflow<Task> workflow = Workflow.create(builderAssembler.builderListTestConfig1());
-        return new Object[][] { new Object[] { workflow } };
+        return new Object[][] {
+                new Object[] { workflow },
+                new Object[] { expand(workflow) },
+        };
+    }
+
+    /**
+     * Returns the given workflow with two nodes spliced in after node 0.
+     */
+    private static Workflow<Task> expand(Workflow<Task> workflow)
+    {
+        TaskNode.Builder<Task> first = TaskNode.builder("expansion-0", new NoOpTask());
+        WorkflowNode.Builder<Task> second = TaskNode.<Task>builder("expansion-1", new NoOpTask())
+                .addDependencies(first);
+        return workflow.withExpansion(workflow.getNodes().get("0"), ImmutableList.of(first, second));
     }
 
     @Test(dataProvider = "testSerializeWorkflowDataSet")
@@ -94,7 +112,26 @@ public class SerializationTest
     {
         BuilderAssembler<Task, TaskNode.Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
         Workflow<Task> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
-        return new Object[][] { new Object[] { workflow.startingFromKeys("1").stoppingAfterKeys("7") } };
+
+        // Small, middle and large subsets of a chain, and a scattered subset of independent nodes
+        List<TaskNode.Builder<Task>> chainBuilders = builderAssembler.builderList(200);
+        for (int i = 1; i < chainBuilders.size(); i++)
+        {
+            chainBuilders.get(i).addDependencies(chainBuilders.get(i - 1));
+        }
+        Workflow<Task> chain = Workflow.create(chainBuilders);
+        Workflow<Task> independent = Workflow.create(builderAssembler.builderList(200));
+        List<String> evenKeys = IntStream.range(0, 100).mapToObj(i -> Integer.toString(i * 2)).collect(toList());
+
+        return new Object[][] {
+                new Object[] { workflow.startingFromKeys("1").stoppingAfterKeys("7") },
+                new Object[] { chain.stoppingAfterKeys("3") },
+                new Object[] { chain.startingFromKeys("150").stoppingAfterKeys("152") },
+                new Object[] { chain.startingFromKeys("3") },
+                new Object[] { independent.stoppingAfterKeys(evenKeys) },
+                new Object[] { workflow.withoutNodes(ImmutableList.of("4", "7")).startingFromKeys("1") },
+                new Object[] { expand(chain).startingFromKeys("expansion-1").stoppingAfterKeys("5") },
+        };
     }
 
     @Test(dataProvider = "testSerializeWorkflowSubsetDataSet")
@@ -151,18 +188,18 @@ public class SerializationTest
 
         ImmutableSetMultimap<String, String> dependencyMap = original.getNodes().values().stream()
                 .collect(flatteningToImmutableSetMultimap(
-                        WorkflowNode::getKey, node -> node.getDependencies().stream().map(WorkflowNode::getKey)
+                        WorkflowNode::getKey, node -> original.getDependencies(node).stream().map(WorkflowNode::getKey)
                 ));
         ImmutableSetMultimap<String, String> dependentMap = dependencyMap.inverse();
 
         serialized.getNodes().forEach((key, node) -> assertThat(
-                node.getDependencies().stream()
+                serialized.getDependencies(node).stream()
                         .map(WorkflowNode::getKey)
                         .collect(toSet())
         ).containsExactlyElementsIn(dependencyMap.get(key)));
 
         serialized.getNodes().forEach((key, node) -> assertThat(
-                node.getDependents().stream()
+                serialized.getDependents(node).stream()
                         .map(WorkflowNode::getKey)
                         .collect(toSet())
         ).containsExactlyElementsIn(dependentMap.get(key)));
@@ -171,8 +208,12 @@ public class SerializationTest
     private <T extends Task> void compareWorkflowSubsets(WorkflowSubset<T> serialized, WorkflowSubset<T> original)
     {
         compareWorkflows(serialized.getWorkflow(), original.getWorkflow());
-        assertThat(serialized.getNodes().keySet()).containsExactlyElementsIn(original.getNodes().keySet());
+        assertThat(serialized.getNodes().keySet()).containsExactlyElementsIn(original.getNodes().keySet()).inOrder();
         serialized.getNodes().forEach((key, node) -> assertThat(node.getKey()).isEqualTo(key));
+        if (original.getWorkflow().getOrdinalBound() == original.getWorkflow().getNodes().size())
+        {
+            assertThat(serialized.getOrdinals()).isEqualTo(original.getOrdinals());
+        }
     }
 
     private <T extends Task> void compareFrozenExecutions(FrozenExecution<T> serialized, FrozenExecution<T> original)
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.testng.annotations.Test;
+
+import com.tripadvisor.reflow.TaskNode.Builder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class SharedTaskRegistryTest
+{
+    @Test
+    public void testSharedTasksScheduledOnce() throws InterruptedException, ExecutionException
+    {
+        // 0-1-2, run in full by one execution and up to 1 by another
+        BuilderAssembler<NoOpTask, Builder<NoOpTask>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        Workflow<NoOpTask> workflow = Workflow.create(builderAssembler.builderListTestConfig1());
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        SharedTaskRegistry registry = SharedTaskRegistry.create();
+
+        Execution<NoOpTask> full = Execution.newExecution(workflow, scheduler);
+        Execution<NoOpTask> partial = Execution.newExecution(workflow.stoppingAfterKeys("1"), scheduler);
+        full.setSharedTaskRegistry(registry);
+        partial.setSharedTaskRegistry(registry);
+
+        CompletableFuture<ExecutionResult<NoOpTask>> fullFuture = full.start().toCompletableFuture();
+        CompletableFuture<ExecutionResult<NoOpTask>> partialFuture = partial.start().toCompletableFuture();
+
+        while (scheduler.getPendingCount() > 0)
+        {
+            assertThat(scheduler.getPendingCount()).isEqualTo(1);
+            scheduler.completeNext();
+        }
+
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(3);
+        assertThat(registry.size()).isEqualTo(0);
+        assertThat(partialFuture.get().getNodeStatuses().get(workflow.getNodes().get("1")).getState())
+                .isEqualTo(NodeState.SUCCEEDED);
+        fullFuture.get().getNodeStatuses().values()
+                .forEach(status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+    }
+
+    @Test
+    public void testUnsharedTasksScheduledTwice() throws InterruptedException, ExecutionException
+    {
+        BuilderAssembler<NoOpTask, Builder<NoOpTask>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        Workflow<NoOpTask> workflow = Workflow.create(builderAssembler.builderListTestConfig1());
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        CompletableFuture<ExecutionResult<NoOpTask>> first =
+                Execution.newExecution(workflow, scheduler).start().toCompletableFuture();
+        CompletableFuture<ExecutionResult<NoOpTask>> second =
+                Execution.newExecution(workflow, scheduler).start().toCompletableFuture();
+
+        assertThat(scheduler.getPendingCount()).isEqualTo(2);
+        while (scheduler.getPendingCount() > 0)
+        {
+            scheduler.completeNext();
+        }
+
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(6);
+        first.get();
+        second.get();
+    }
+}
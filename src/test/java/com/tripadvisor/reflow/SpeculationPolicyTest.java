@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import com.tripadvisor.reflow.TaskNode.Builder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class SpeculationPolicyTest
+{
+    @Test
+    public void testSpeculationDelay()
+    {
+        SpeculationPolicy policy = SpeculationPolicy.builder()
+                .setPercentile(90.0)
+                .setMinimumSamples(5)
+                .setHistorySize(10)
+                .build();
+
+        for (int i = 1; i <= 4; i++)
+        {
+            policy.recordRunTime("a", Duration.ofSeconds(i));
+        }
+        assertThat(policy.getSpeculationDelay("a").isPresent()).isFalse();
+        assertThat(policy.getSpeculationDelay("b").isPresent()).isFalse();
+
+        for (int i = 5; i <= 10; i++)
+        {
+            policy.recordRunTime("a", Duration.ofSeconds(i));
+        }
+        assertThat(policy.getSpeculationDelay("a").get()).isEqualTo(Duration.ofSeconds(9));
+
+        // The oldest run times are discarded
+        for (int i = 0; i < 5; i++)
+        {
+            policy.recordRunTime("a", Duration.ofSeconds(20));
+        }
+        assertThat(policy.getSpeculationDelay("a").get()).isEqualTo(Duration.ofSeconds(20));
+    }
+
+    @Test
+    public void testSpeculativeResubmission() throws InterruptedException, ExecutionException
+    {
+        SpeculationPolicy policy = SpeculationPolicy.builder().setMinimumSamples(1).build();
+        policy.recordRunTime("0", Duration.ofMillis(10));
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Workflow<IdempotentTask> workflow = Workflow.create(
+                BuilderAssembler.<IdempotentTask>usingTasks(IdempotentTask::new).builderList(1)
+        );
+        Execution<IdempotentTask> execution = Execution.newExecution(workflow, scheduler);
+        execution.setSpeculationPolicy(policy);
+        CompletableFuture<ExecutionResult<IdempotentTask>> future = execution.start().toCompletableFuture();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getSubmissionCount() < 2 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(2);
+
+        // The straggler fails, but the other attempt is still running
+        scheduler.failNext();
+        assertThat(future.isDone()).isFalse();
+
+        scheduler.completeNext();
+        assertThat(future.get().getNodeStatuses().get(workflow.getNodes().get("0")).getState())
+                .isEqualTo(NodeState.SUCCEEDED);
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testOnlySpeculativeTasksResubmitted() throws InterruptedException, ExecutionException
+    {
+        SpeculationPolicy policy = SpeculationPolicy.builder().setMinimumSamples(1).build();
+        policy.recordRunTime("0", Duration.ofMillis(1));
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Workflow<NoOpTask> workflow = Workflow.create(
+                BuilderAssembler.<NoOpTask>usingTasks(NoOpTask::new).builderList(1)
+        );
+        Execution<NoOpTask> execution = Execution.newExecution(workflow, scheduler);
+        execution.setSpeculationPolicy(policy);
+        CompletableFuture<ExecutionResult<NoOpTask>> future = execution.start().toCompletableFuture();
+
+        Thread.sleep(100);
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(1);
+
+        scheduler.completeNext();
+        future.get();
+    }
+
+    @Test
+    public void testLosingAttemptNotRecorded() throws InterruptedException, ExecutionException
+    {
+        SpeculationPolicy policy = SpeculationPolicy.builder().setMinimumSamples(1).build();
+        policy.recordRunTime("1", Duration.ofMillis(10));
+
+        // 1 depends on 0, whose output counts how often it is fingerprinted
+        AtomicInteger fingerprintCount = new AtomicInteger();
+        FingerprintedOutput output = new FingerprintedOutput()
+        {
+            @Override
+            public String getFingerprintKey()
+            {
+                return "output";
+            }
+
+            @Override
+            public Optional<ContentFingerprint> getFingerprint(@Nullable ContentFingerprint previous)
+            {
+                fingerprintCount.incrementAndGet();
+                return Optional.empty();
+            }
+
+            @Override
+            public Optional<Instant> getTimestamp()
+            {
+                return Optional.empty();
+            }
+
+            @Override
+            public void delete()
+            {}
+        };
+        WorkflowNode.Builder<Task> builder0 = TaskNode.builder("0", () -> ImmutableSet.<Output>of(output));
+        WorkflowNode.Builder<Task> builder1 = TaskNode.<Task>builder("1", new IdempotentTask())
+                .addDependencies(builder0);
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(builder0, builder1));
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Execution<Task> execution = Execution.newExecution(
+                workflow, scheduler, OutputHandler.create(FingerprintStore.inMemory()));
+        execution.setSpeculationPolicy(policy);
+        CompletableFuture<ExecutionResult<Task>> future = execution.start().toCompletableFuture();
+
+        scheduler.completeNext();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getSubmissionCount() < 3 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(3);
+
+        // Only the first attempt to succeed records the input of 1
+        scheduler.completeNext();
+        future.get();
+        int recordedCount = fingerprintCount.get();
+        assertThat(recordedCount).isGreaterThan(0);
+        scheduler.completeNext();
+        assertThat(fingerprintCount.get()).isEqualTo(recordedCount);
+    }
+
+    private static final class IdempotentTask implements SpeculativeTask
+    {
+        @Override
+        public Set<Output> getOutputs()
+        {
+            return ImmutableSet.of();
+        }
+    }
+}
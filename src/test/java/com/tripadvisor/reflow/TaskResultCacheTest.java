@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class TaskResultCacheTest
+{
+    private Path m_directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException
+    {
+        m_directory = Files.createTempDirectory("reflow");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException
+    {
+        PathOutput.of(m_directory).delete();
+    }
+
+    @Test
+    public void testRestoreOutput() throws IOException, ExecutionException, InterruptedException
+    {
+        // Node 1 copies the input file written by node 0 into an output directory, via a structure node
+        Path input = m_directory.resolve("input");
+        Path output = m_directory.resolve("output");
+        AtomicInteger copies = new AtomicInteger();
+        TaskNode.Builder<FileTask> builder0 = TaskNode.builder("0", new WriteTask(input));
+        StructureNode.Builder<FileTask> builderS = StructureNode.builder("S");
+        TaskNode.Builder<FileTask> builder1 = TaskNode.builder("1", new CopyTask(input, output, copies));
+        builderS.addDependencies(builder0);
+        builder1.addDependencies(builderS);
+        Workflow<FileTask> workflow = Workflow.create(ImmutableList.of(builder0, builderS, builder1));
+        TaskScheduler<Runnable> scheduler = LocalTaskScheduler.create(MoreExecutors.directExecutor());
+
+        try (TaskResultCache cache = TaskResultCache.open(m_directory.resolve("cache")))
+        {
+            Files.write(input, "a".getBytes(StandardCharsets.UTF_8));
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(1);
+
+            // Identical input: output is restored without running the task
+            PathOutput.of(output).delete();
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(1);
+            assertThat(new String(Files.readAllBytes(output.resolve("sub").resolve("copy")), StandardCharsets.UTF_8))
+                    .isEqualTo("a");
+
+            // Different input: the task runs
+            Files.write(input, "b".getBytes(StandardCharsets.UTF_8));
+            ((WriteTask) workflow.getNodes().get("0").getTask()).m_content = "b";
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(2);
+        }
+
+        // Both results persist
+        try (TaskResultCache cache = TaskResultCache.open(m_directory.resolve("cache")))
+        {
+            ((WriteTask) workflow.getNodes().get("0").getTask()).m_content = "a";
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(2);
+            assertThat(new String(Files.readAllBytes(output.resolve("sub").resolve("copy")), StandardCharsets.UTF_8))
+                    .isEqualTo("a");
+        }
+    }
+
+    @Test
+    public void testStoreFailureIgnored() throws IOException, ExecutionException, InterruptedException
+    {
+        Path input = m_directory.resolve("input");
+        Path output = m_directory.resolve("output");
+        AtomicInteger copies = new AtomicInteger();
+        TaskNode.Builder<FileTask> builder0 = TaskNode.builder("0", new WriteTask(input));
+        TaskNode.Builder<FileTask> builder1 = TaskNode.builder("1", new CopyTask(input, output, copies));
+        builder1.addDependencies(builder0);
+        Workflow<FileTask> workflow = Workflow.create(ImmutableList.of(builder0, builder1));
+        TaskScheduler<Runnable> scheduler = LocalTaskScheduler.create(MoreExecutors.directExecutor());
+
+        try (TaskResultCache cache = TaskResultCache.open(m_directory.resolve("cache")))
+        {
+            // Without the blob directory, nothing can be written to the cache
+            PathOutput.of(m_directory.resolve("cache").resolve("blobs")).delete();
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(1);
+
+            // Nothing was stored, so the task runs again
+            runWithCache(workflow, scheduler, cache);
+            assertThat(copies.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testLookupOnCleanupExecutor() throws IOException, ExecutionException, InterruptedException
+    {
+        Path input = m_directory.resolve("input");
+        Path output = m_directory.resolve("output");
+        AtomicInteger copies = new AtomicInteger();
+        TaskNode.Builder<FileTask> builder0 = TaskNode.builder("0", new WriteTask(input));
+        TaskNode.Builder<FileTask> builder1 = TaskNode.builder("1", new CopyTask(input, output, copies));
+        builder1.addDependencies(builder0);
+        Workflow<FileTask> workflow = Workflow.create(ImmutableList.of(builder0, builder1));
+        TaskScheduler<Runnable> scheduler = LocalTaskScheduler.create(MoreExecutors.directExecutor());
+
+        // Only the cacheable task goes through the cleanup executor, once per run
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicInteger lookups = new AtomicInteger();
+        try (TaskResultCache cache = TaskResultCache.open(m_directory.resolve("cache")))
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                PathOutput.of(output).delete();
+                Execution<FileTask> execution = Execution.newExecution(workflow, scheduler);
+                execution.setResultCache(cache);
+                execution.setCleanupExecutor(runnable ->
+                {
+                    lookups.incrementAndGet();
+                    executor.execute(runnable);
+                });
+                execution.run();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertThat(lookups.get()).isEqualTo(2);
+        assertThat(copies.get()).isEqualTo(1);
+        assertThat(Files.exists(output.resolve("sub").resolve("copy"))).isTrue();
+    }
+
+    private static void runWithCache(Workflow<FileTask> workflow, TaskScheduler<Runnable> scheduler,
+                                     TaskResultCache cache) throws ExecutionException, InterruptedException
+    {
+        Execution<FileTask> execution = Execution.newExecution(workflow, scheduler);
+        execution.setResultCache(cache);
+        execution.run();
+    }
+
+    private interface FileTask extends Runnable, Task
+    {}
+
+    private static final class WriteTask implements FileTask
+    {
+        private final Path m_path;
+        private volatile String m_content = "a";
+
+        public WriteTask(Path path)
+        {
+            m_path = path;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Files.write(m_path, m_content.getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Collection<Output> getOutputs()
+        {
+            return ImmutableList.of(PathOutput.of(m_path));
+        }
+    }
+
+    private static final class CopyTask implements FileTask, CacheableTask
+    {
+        private final Path m_input;
+        private final Path m_output;
+        private final AtomicInteger m_copies;
+
+        public CopyTask(Path input, Path output, AtomicInteger copies)
+        {
+            m_input = input;
+            m_output = output;
+            m_copies = copies;
+        }
+
+        @Override
+        public void run()
+        {
+            m_copies.incrementAndGet();
+            try
+            {
+                PathOutput.of(m_output).delete();
+                Files.createDirectories(m_output.resolve("sub"));
+                Files.createDirectories(m_output.resolve("empty"));
+                Files.copy(m_input, m_output.resolve("sub").resolve("copy"));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String getCacheKey()
+        {
+            return "copy";
+        }
+
+        @Override
+        public Collection<Output> getOutputs()
+        {
+            return ImmutableList.of(PathOutput.of(m_output));
+        }
+    }
+}
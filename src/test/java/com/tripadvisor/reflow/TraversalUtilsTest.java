@@ -154,6 +154,16 @@ public final class TraversalUtilsTest
         workflow = Workflow.create(builderAssembler.builderListTestConfig2());
         dataSet.add(ImmutableSet.copyOf(workflow.getNodes().values()));
 
+        // Each node depends on the two preceding nodes, so nodes
+        // can be reached along several paths before being explored
+        List<StructureNode.Builder<Task>> builders = builderAssembler.builderList(16);
+        for (int i = 2; i < builders.size(); i++)
+        {
+            builders.get(i).addDependencies(builders.get(i - 1), builders.get(i - 2));
+        }
+        workflow = Workflow.create(builders);
+        dataSet.add(ImmutableSet.copyOf(workflow.getNodes().values()));
+
         return dataSet.stream().map(x -> new Object[] { x }).toArray(Object[][]::new);
     }
 
@@ -184,6 +194,7 @@ public final class TraversalUtilsTest
         assertThat(boxedResult).isPresent();
 
         List<WorkflowNode<Task>> result = boxedResult.get();
+        assertThat(result).containsExactlyElementsIn(nodes);
         Map<WorkflowNode, Integer> nodeIndexMap = IntStream.range(0, result.size()).boxed().collect(toMap(
                 result::get, Function.identity()
         ));
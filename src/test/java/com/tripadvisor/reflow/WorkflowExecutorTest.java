@@ -17,23 +17,45 @@
 package com.tripadvisor.reflow;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Range;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.testng.annotations.Test;
 
 import com.tripadvisor.reflow.TaskNode.Builder;
 
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static org.testng.Assert.fail;
@@ -45,6 +67,65 @@ public final class WorkflowExecutorTest
     private static final long RUNNABLE_DURATION_SEED = 1798045396195092384L;
     private static final int MAX_RUNNABLE_DURATION_MS = 50;
 
+    /**
+     * A short task that does nothing but optionally fail.
+     */
+    private static final class CheapTask implements BatchableTask, Runnable
+    {
+        private final boolean m_fail;
+
+        public CheapTask(boolean fail)
+        {
+            m_fail = fail;
+        }
+
+        @Override
+        public Set<Output> getOutputs()
+        {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public Duration getCostHint()
+        {
+            return Duration.ofNanos(100);
+        }
+
+        @Override
+        public void run()
+        {
+            if (m_fail)
+            {
+                throw new TestTask.TestException();
+            }
+        }
+    }
+
+    /**
+     * A task that does nothing and may be retried.
+     */
+    private static final class RetryableNoOpTask implements RetryableTask
+    {
+        private final RetryPolicy m_retryPolicy;
+
+        public RetryableNoOpTask(RetryPolicy retryPolicy)
+        {
+            m_retryPolicy = retryPolicy;
+        }
+
+        @Override
+        public Set<Output> getOutputs()
+        {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public RetryPolicy getRetryPolicy()
+        {
+            return m_retryPolicy;
+        }
+    }
+
     private interface ExecutorConsumer
     {
         void accept(Executor executor) throws IOException, InterruptedException, ExecutionException;
@@ -307,6 +388,640 @@ public final class WorkflowExecutorTest
         checkDependenciesFrom(workflow.getNodes().get("7"));
     }
 
+    @Test
+    public void testStart() throws IOException, InterruptedException, ExecutionException
+    {
+        testWithDirectExecutor(this::testStart);
+    }
+
+    @Test
+    public void testStartConcurrent() throws IOException, InterruptedException, ExecutionException
+    {
+        testWithThreadPool(this::testStart);
+    }
+
+    private void testStart(Executor executor) throws InterruptedException, ExecutionException
+    {
+        // Same eight-node graph as above, driven without blocking the calling thread.
+        //
+        // 0-1-2-3-4
+        //    \ /
+        //   5-6-7
+
+        Random random = new Random(RUNNABLE_DURATION_SEED);
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean();
+        BuilderAssembler<TestTask, Builder<TestTask>> builderAssembler = BuilderAssembler.usingTasks(
+                () -> TestTask.succeeding(random.nextInt(MAX_RUNNABLE_DURATION_MS), outputMutabilityFlag)
+        );
+
+        Workflow<TestTask> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+
+        TaskScheduler<Runnable> scheduler = LocalTaskScheduler.create(executor);
+        Execution<TestTask> execution = Execution.newExecution(workflow, scheduler);
+
+        Instant stage1start = Instant.now();
+        outputMutabilityFlag.set(true);
+
+        ExecutionResult<TestTask> result = execution.start().toCompletableFuture().get();
+
+        outputMutabilityFlag.set(false);
+        Instant stage1finish = Instant.now();
+        Range<Instant> stage1 = Range.closed(stage1start, stage1finish);
+
+        assertThat(execution.getState()).isEqualTo(ExecutionState.IDLE);
+        assertThat(result.getNodeStatuses()).hasSize(8);
+        result.getNodeStatuses().values()
+                .forEach(status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+        workflow.getNodes().values().forEach(node -> assertThat(node.getTask()).hasAllOutputWithin(stage1));
+        checkDependenciesFrom(workflow.getNodes().get("4"));
+        checkDependenciesFrom(workflow.getNodes().get("7"));
+    }
+
+    @Test
+    public void testStartExceptionHandling() throws IOException, InterruptedException, ExecutionException
+    {
+        testWithDirectExecutor(this::testStartExceptionHandling);
+    }
+
+    @Test
+    public void testStartExceptionHandlingConcurrent() throws IOException, InterruptedException, ExecutionException
+    {
+        testWithThreadPool(this::testStartExceptionHandling);
+    }
+
+    private void testStartExceptionHandling(Executor executor) throws InterruptedException
+    {
+        // Same eight-node graph as above, except node 2 will throw an exception when run.
+        //
+        // 0-1-2-3-4
+        //    \ /
+        //   5-6-7
+
+        Random random = new Random(RUNNABLE_DURATION_SEED);
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean();
+        BuilderAssembler<TestTask, Builder<TestTask>> builderAssembler = BuilderAssembler.usingTasks(
+                i -> i == 2 ?
+                        TestTask.failingOnRun(random.nextInt(MAX_RUNNABLE_DURATION_MS), outputMutabilityFlag) :
+                        TestTask.succeeding(random.nextInt(MAX_RUNNABLE_DURATION_MS), outputMutabilityFlag)
+        );
+
+        Workflow<TestTask> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+
+        TaskScheduler<Runnable> scheduler = LocalTaskScheduler.create(executor);
+
+        outputMutabilityFlag.set(true);
+
+        try
+        {
+            Execution.newExecution(workflow, scheduler).start().toCompletableFuture().get();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            // The stage wraps the exception that run() would have thrown
+            assertThat(e).hasCauseThat().isInstanceOf(ExecutionException.class);
+            assertThat(e.getCause()).hasCauseThat().isInstanceOf(TestTask.TestException.class);
+        }
+
+        outputMutabilityFlag.set(false);
+
+        Stream.of("2", "3", "4").map(workflow.getNodes()::get)
+                .forEach(node -> assertThat(node.getTask()).hasNoOutput());
+        checkDependenciesFrom(workflow.getNodes().get("7"));
+    }
+
+    @Test
+    public void testBackgroundOutputRemoval() throws InterruptedException
+    {
+        // A single node that fails, and whose output fails to be deleted
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+        Workflow<TestTask> workflow = Workflow.create(BuilderAssembler.<TestTask>usingTasks(
+                () -> TestTask.failingOnOutputDelete(0, outputMutabilityFlag)).builderList(1));
+        TestTask task = workflow.getNodes().values().iterator().next().getTask();
+        task.getStartOutput().create();
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Queue<Runnable> cleanups = new ArrayDeque<>();
+        Execution<TestTask> execution = Execution.newExecution(workflow, scheduler);
+        execution.setCleanupExecutor(cleanups::add);
+        CompletableFuture<ExecutionResult<TestTask>> future = execution.start().toCompletableFuture();
+
+        // The run doesn't finish until the output has been removed
+        scheduler.failNext();
+        assertThat(cleanups).hasSize(1);
+        assertThat(future.isDone()).isFalse();
+
+        cleanups.remove().run();
+        assertThat(task).hasNoOutput();
+        try
+        {
+            future.get();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            // The stage wraps the exception that run() would have thrown
+            assertThat(e.getCause().getSuppressed()).hasLength(1);
+            assertThat(e.getCause().getSuppressed()[0]).isInstanceOf(TestOutput.TestOutputException.class);
+        }
+    }
+
+    @Test
+    public void testFingerprintRecordingFailure() throws InterruptedException
+    {
+        // 1 depends on 0, whose output can't be fingerprinted
+        FingerprintedOutput unreadable = new FingerprintedOutput()
+        {
+            @Override
+            public String getFingerprintKey()
+            {
+                return "unreadable";
+            }
+
+            @Override
+            public Optional<ContentFingerprint> getFingerprint(ContentFingerprint previous) throws IOException
+            {
+                throw new IOException("Unreadable");
+            }
+
+            @Override
+            public Optional<Instant> getTimestamp()
+            {
+                return Optional.of(Instant.EPOCH);
+            }
+
+            @Override
+            public void delete()
+            {}
+        };
+        WorkflowNode.Builder<Task> builder0 = TaskNode.builder("0", () -> ImmutableSet.<Output>of(unreadable));
+        WorkflowNode.Builder<Task> builder1 = TaskNode.<Task>builder("1", new NoOpTask()).addDependencies(builder0);
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(builder0, builder1));
+
+        Execution<Task> execution = Execution.newExecution(
+                workflow,
+                LocalTaskScheduler.create(MoreExecutors.directExecutor(), (Task task) -> () -> {}),
+                OutputHandler.create(FingerprintStore.inMemory()));
+        try
+        {
+            execution.run();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            // Both tasks ran, but recording the input of 1 failed
+            assertThat(e).hasMessageThat().isEqualTo("Failed to record fingerprints for node 1");
+            assertThat(e.getCause()).isInstanceOf(IOException.class);
+        }
+        execution.getNodeStatuses().values().forEach(
+                status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+    }
+
+    @Test
+    public void testDynamicExpansion() throws InterruptedException, ExecutionException, InvalidTokenException
+    {
+        // split expands into a node per shard, which must all run before merge
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(
+                ExpandingNode.builder("split", new NoOpTask(), task -> IntStream.range(0, 3)
+                        .mapToObj(i -> TaskNode.<Task>builder("shard-" + i, new NoOpTask()))
+                        .collect(toList())),
+                StructureNode.builder("unrelated")
+        ));
+        Workflow<Task> withMerge = workflow.withAdded(ImmutableList.of(
+                TaskNode.<Task>builder("merge", new NoOpTask()).addDependencies(StructureNode.builder("split"))));
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Execution<Task> execution = Execution.newExecution(withMerge, scheduler);
+        CompletableFuture<ExecutionResult<Task>> future = execution.start().toCompletableFuture();
+
+        scheduler.completeNext();
+        assertThat(scheduler.getPendingCount()).isEqualTo(3);
+        FrozenExecution<Task> frozen = execution.freeze();
+        assertThat(frozen.getNodeStatuses().keySet().stream().map(WorkflowNode::getKey).collect(toSet()))
+                .containsExactly("split", "unrelated", "shard-0", "shard-1", "shard-2", "merge");
+        // Dependents of split are kept rather than copied, and depend on the shards through the workflow
+        WorkflowNode<Task> merge = frozen.getWorkflow().getNodes().get("merge");
+        assertThat(merge).isSameAs(withMerge.getNodes().get("merge"));
+        assertThat(frozen.getWorkflow().getDependencies(merge).stream().map(WorkflowNode::getKey).collect(toSet()))
+                .containsExactly("split", "shard-0", "shard-1", "shard-2");
+        assertThat(merge.getDependencies().stream().map(WorkflowNode::getKey).collect(toSet()))
+                .containsExactly("split");
+        assertThat(frozen.getNodeStatuses().get(merge).getState()).isEqualTo(NodeState.NOT_READY);
+
+        // The original workflow is unchanged
+        assertThat(withMerge.getNodes()).hasSize(3);
+
+        scheduler.completeNext();
+        scheduler.completeNext();
+        assertThat(scheduler.getPendingCount()).isEqualTo(1);
+        scheduler.completeNext();
+        assertThat(scheduler.getPendingCount()).isEqualTo(1);
+        scheduler.completeNext();
+        ExecutionResult<Task> result = future.get();
+        assertThat(result.getNodeStatuses()).hasSize(6);
+        result.getNodeStatuses().values().forEach(
+                status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+
+        // Thawing the finished execution doesn't expand split again
+        Execution.thaw(execution.freeze(), scheduler).run();
+        assertThat(scheduler.getSubmissionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testRepeatedExpansion() throws InterruptedException, ExecutionException
+    {
+        WorkflowNode.Builder<Task> split = ExpandingNode.builder("split", new NoOpTask(), task -> IntStream.range(0, 3)
+                .mapToObj(i -> TaskNode.<Task>builder("shard-" + i, new NoOpTask()))
+                .collect(toList()));
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(
+                split, TaskNode.<Task>builder("merge", new NoOpTask()).addDependencies(split)));
+        WorkflowNode<Task> splitNode = workflow.getNodes().get("split");
+        TaskScheduler<Task> scheduler = LocalTaskScheduler.create(MoreExecutors.directExecutor(),
+                                                                  (Task task) -> () -> {});
+
+        // Each run expands a fresh copy of the workflow, leaving the shared node alone
+        for (int i = 0; i < 2; i++)
+        {
+            Execution<Task> execution = Execution.newExecution(workflow, scheduler);
+            execution.run();
+            assertThat(execution.getNodeStatuses()).hasSize(5);
+            assertThat(splitNode.getDependents()).containsExactly(workflow.getNodes().get("merge"));
+            assertThat(workflow.getDependents(splitNode)).containsExactly(workflow.getNodes().get("merge"));
+        }
+    }
+
+    @Test
+    public void testInvalidExpansion() throws InterruptedException
+    {
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(ExpandingNode.builder(
+                "split", new NoOpTask(), task -> ImmutableList.of(TaskNode.<Task>builder("split", new NoOpTask())))));
+
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Execution<Task> execution = Execution.newExecution(workflow, scheduler);
+        CompletableFuture<ExecutionResult<Task>> future = execution.start().toCompletableFuture();
+
+        scheduler.completeNext();
+        try
+        {
+            future.get();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).hasMessageThat().isEqualTo("Task for node split failed: Invalid expansion");
+        }
+        assertThat(execution.getNodeStatuses()).hasSize(1);
+    }
+
+    @Test
+    public void testSubWorkflow() throws InterruptedException, ExecutionException
+    {
+        // before -> sub -> after, where sub stands for a chain 0 -> 1 -> 2, and skipped is never reached
+        SubWorkflowNode.Source<Task> source = () -> Workflow.create(
+                BuilderAssembler.<Task>usingTasks(NoOpTask::new).builderListTestConfig1());
+        WorkflowNode.Builder<Task> before = TaskNode.builder("before", new NoOpTask());
+        WorkflowNode.Builder<Task> sub = SubWorkflowNode.builder("sub", source).addDependencies(before);
+        WorkflowNode.Builder<Task> after = TaskNode.<Task>builder("after", new NoOpTask()).addDependencies(sub);
+        WorkflowNode.Builder<Task> skipped = SubWorkflowNode.builder("skipped", source).addDependencies(before);
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(before, sub, after, skipped));
+
+        // Obtain sub-workflows on the completing thread, so that they are spliced in by the time it returns
+        ManualTaskScheduler<Task> scheduler = new ManualTaskScheduler<>();
+        Execution<Task> execution = Execution.newExecution(workflow.stoppingAfterKeys("after"), scheduler);
+        execution.setCleanupExecutor(MoreExecutors.directExecutor());
+        CompletableFuture<ExecutionResult<Task>> future = execution.start().toCompletableFuture();
+        assertThat(execution.getNodeStatuses()).hasSize(4);
+
+        scheduler.completeNext();
+        assertThat(execution.getNodeStatuses().keySet().stream().map(WorkflowNode::getKey).collect(toSet()))
+                .containsExactly("before", "sub", "sub_0", "sub_1", "sub_2", "after", "skipped");
+        Workflow<Task> expanded = execution.freeze().getWorkflow();
+        WorkflowNode<Task> afterNode = expanded.getNodes().get("after");
+        assertThat(afterNode).isSameAs(workflow.getNodes().get("after"));
+        assertThat(expanded.getDependencies(afterNode).stream().map(WorkflowNode::getKey).collect(toSet()))
+                .containsExactly("sub", "sub_2");
+
+        for (int i = 0; i < 4; i++)
+        {
+            assertThat(scheduler.getPendingCount()).isEqualTo(1);
+            scheduler.completeNext();
+        }
+        Map<String, NodeState> states = future.get().getNodeStatuses().entrySet().stream()
+                .collect(toMap(e -> e.getKey().getKey(), e -> e.getValue().getState()));
+        assertThat(states.get("after")).isEqualTo(NodeState.SUCCEEDED);
+        assertThat(states.get("sub_2")).isEqualTo(NodeState.SUCCEEDED);
+        assertThat(states.get("skipped")).isEqualTo(NodeState.IRRELEVANT);
+    }
+
+    @Test
+    public void testSubWorkflowSourceRunsUnlocked() throws InterruptedException, ExecutionException
+    {
+        // The source freezes the execution from another thread, which would block if the lock were held
+        AtomicReference<Execution<Task>> execution = new AtomicReference<>();
+        AtomicReference<FrozenExecution<Task>> frozen = new AtomicReference<>();
+        SubWorkflowNode.Source<Task> source = () ->
+        {
+            try
+            {
+                frozen.set(CompletableFuture.supplyAsync(execution.get()::freeze).get(10, TimeUnit.SECONDS));
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return Workflow.create(BuilderAssembler.<Task>usingTasks(NoOpTask::new).builderListTestConfig1());
+        };
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(SubWorkflowNode.builder("sub", source)));
+
+        execution.set(Execution.newExecution(workflow, LocalTaskScheduler.create(MoreExecutors.directExecutor(),
+                                                                                 (Task task) -> () -> {})));
+        execution.get().run();
+        assertThat(frozen.get().getNodeStatuses()).hasSize(1);
+        assertThat(execution.get().getNodeStatuses()).hasSize(4);
+        execution.get().getNodeStatuses().values().forEach(
+                status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+    }
+
+    @Test
+    public void testChainedSubWorkflows() throws InterruptedException, ExecutionException
+    {
+        // A chain of sub-workflow nodes, each standing for a chain of three nodes
+        SubWorkflowNode.Source<Task> source = () -> Workflow.create(
+                BuilderAssembler.<Task>usingTasks(NoOpTask::new).builderListTestConfig1());
+        List<WorkflowNode.Builder<Task>> builders = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            WorkflowNode.Builder<Task> builder = SubWorkflowNode.builder("sub" + i, source);
+            if (i > 0)
+            {
+                builder.addDependencies(builders.get(i - 1));
+            }
+            builders.add(builder);
+        }
+        Workflow<Task> workflow = Workflow.create(builders);
+
+        // Sources are called on the cleanup executor
+        ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+        AtomicInteger cleanups = new AtomicInteger();
+        try
+        {
+            Execution<Task> execution = Execution.newExecution(
+                    workflow, LocalTaskScheduler.create(MoreExecutors.directExecutor(), (Task task) -> () -> {}));
+            execution.setCleanupExecutor(command ->
+            {
+                cleanups.incrementAndGet();
+                cleanupExecutor.execute(command);
+            });
+            execution.run();
+
+            // Splicing doesn't copy the downstream sub-workflow nodes, so each
+            // expansion only takes ordinals for the nodes it adds
+            assertThat(cleanups.get()).isEqualTo(20);
+            assertThat(execution.getNodeStatuses()).hasSize(80);
+            assertThat(execution.freeze().getWorkflow().getOrdinalBound()).isEqualTo(80);
+            execution.getNodeStatuses().values().forEach(
+                    status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+        }
+        finally
+        {
+            cleanupExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetriesReuseCallback() throws InterruptedException
+    {
+        RetryPolicy policy = RetryPolicy.builder()
+                .setMaxAttempts(3)
+                .setInitialBackoff(Duration.ofMillis(1))
+                .build();
+
+        // Fails every attempt immediately, remembering the callback it was given
+        List<TaskCompletionCallback> callbacks = new CopyOnWriteArrayList<>();
+        TaskScheduler<Task> scheduler = new TaskScheduler<Task>()
+        {
+            @Override
+            public ScheduledTaskToken submit(Task task, TaskCompletionCallback callback)
+            {
+                callbacks.add(callback);
+                callback.reportFailure(new TestTask.TestException());
+                return null;
+            }
+
+            @Override
+            public void registerCallback(ScheduledTaskToken token, TaskCompletionCallback callback)
+                    throws InvalidTokenException
+            {
+                throw new InvalidTokenException();
+            }
+        };
+        Workflow<Task> workflow = Workflow.create(ImmutableList.of(
+                TaskNode.<Task>builder("0", new RetryableNoOpTask(policy))));
+
+        try
+        {
+            Execution.newExecution(workflow, scheduler).run();
+            fail("Execution succeeded");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+
+        // Every attempt completes through the node's one callback
+        assertThat(callbacks).hasSize(3);
+        assertThat(callbacks.get(1)).isSameAs(callbacks.get(0));
+        assertThat(callbacks.get(2)).isSameAs(callbacks.get(0));
+    }
+
+    @Test
+    public void testTaskFusion() throws InterruptedException, ExecutionException
+    {
+        // Chains 0 -> 1 and 3 -> 4 each run as a single unit
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+        Workflow<TestTask> workflow = Workflow.create(BuilderAssembler.<TestTask>usingTasks(
+                () -> TestTask.succeeding(0, outputMutabilityFlag)).builderListTestConfig2());
+
+        AtomicInteger units = new AtomicInteger();
+        Executor executor = runnable ->
+        {
+            units.incrementAndGet();
+            runnable.run();
+        };
+        Execution<TestTask> execution = Execution.newExecution(workflow, LocalTaskScheduler.create(executor));
+        execution.setTaskFusion(true);
+        execution.run();
+
+        assertThat(units.get()).isEqualTo(6);
+        execution.getNodeStatuses().values().forEach(
+                status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+        checkDependenciesFrom(workflow.getNodes().get("4"));
+        checkDependenciesFrom(workflow.getNodes().get("7"));
+    }
+
+    @Test
+    public void testTaskFusionFailure() throws InterruptedException
+    {
+        // The chain 0 -> 1 -> 2 stops at the failing task
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+        Workflow<TestTask> workflow = Workflow.create(BuilderAssembler.<TestTask>usingTasks(
+                i -> i == 1
+                        ? TestTask.failingOnRun(0, outputMutabilityFlag)
+                        : TestTask.succeeding(0, outputMutabilityFlag)).builderListTestConfig1());
+
+        Execution<TestTask> execution = Execution.newExecution(
+                workflow, LocalTaskScheduler.create(MoreExecutors.directExecutor()));
+        execution.setTaskFusion(true);
+        try
+        {
+            execution.run();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause()).isInstanceOf(TestTask.TestException.class);
+        }
+
+        Map<String, NodeState> states = execution.getNodeStatuses().entrySet().stream()
+                .collect(toMap(e -> e.getKey().getKey(), e -> e.getValue().getState()));
+        assertThat(states.get("0")).isEqualTo(NodeState.SUCCEEDED);
+        assertThat(states.get("1")).isEqualTo(NodeState.FAILED);
+        assertThat(states.get("2")).isEqualTo(NodeState.NOT_READY);
+        assertThat(workflow.getNodes().get("2").getTask()).hasNoOutput();
+    }
+
+    @Test
+    public void testFreezeDuringFusedSubmission() throws InterruptedException, ExecutionException
+    {
+        // The chain 0 -> 1 -> 2 is frozen while it is being submitted
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+        Workflow<TestTask> workflow = Workflow.create(BuilderAssembler.<TestTask>usingTasks(
+                () -> TestTask.succeeding(0, outputMutabilityFlag)).builderListTestConfig1());
+
+        AtomicReference<Execution<TestTask>> execution = new AtomicReference<>();
+        AtomicReference<FrozenExecution<TestTask>> frozen = new AtomicReference<>();
+        Executor executor = runnable ->
+        {
+            frozen.compareAndSet(null, execution.get().freeze());
+            runnable.run();
+        };
+        execution.set(Execution.newExecution(workflow, LocalTaskScheduler.create(executor)));
+        execution.get().setTaskFusion(true);
+        execution.get().run();
+
+        // Only the head of the chain can be resubmitted from the snapshot
+        Map<String, NodeState> states = frozen.get().getNodeStatuses().entrySet().stream()
+                .collect(toMap(e -> e.getKey().getKey(), e -> e.getValue().getState()));
+        assertThat(states.get("0")).isEqualTo(NodeState.READY);
+        assertThat(states.get("1")).isEqualTo(NodeState.NOT_READY);
+        assertThat(states.get("2")).isEqualTo(NodeState.NOT_READY);
+    }
+
+    @Test
+    public void testContinuationAffinity() throws InterruptedException, ExecutionException
+    {
+        // Each task in the chain 0 -> 1 -> 2 is the only one its dependency makes ready
+        for (boolean continuationAffinity : new boolean[] {false, true})
+        {
+            AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+            Workflow<TestTask> workflow = Workflow.create(BuilderAssembler.<TestTask>usingTasks(
+                    () -> TestTask.succeeding(0, outputMutabilityFlag)).builderListTestConfig1());
+
+            // Run units of work on this thread, as a worker would
+            Queue<Runnable> units = new ArrayDeque<>();
+            Execution<TestTask> execution = Execution.newExecution(workflow, LocalTaskScheduler.create(units::add));
+            execution.setContinuationAffinity(continuationAffinity);
+            CompletableFuture<ExecutionResult<TestTask>> future = execution.start().toCompletableFuture();
+
+            int unitCount = 0;
+            while (!units.isEmpty())
+            {
+                units.remove().run();
+                unitCount++;
+            }
+            assertThat(unitCount).isEqualTo(continuationAffinity ? 1 : 3);
+            future.get().getNodeStatuses().values().forEach(
+                    status -> assertThat(status.getState()).isEqualTo(NodeState.SUCCEEDED));
+            checkDependenciesFrom(workflow.getNodes().get("2"));
+        }
+    }
+
+    @Test
+    public void testForkJoinScheduler() throws InterruptedException, ExecutionException
+    {
+        Random random = new Random(RUNNABLE_DURATION_SEED);
+        AtomicBoolean outputMutabilityFlag = new AtomicBoolean(true);
+        BuilderAssembler<TestTask, Builder<TestTask>> builderAssembler = BuilderAssembler.usingTasks(
+                () -> TestTask.succeeding(random.nextInt(MAX_RUNNABLE_DURATION_MS), outputMutabilityFlag)
+        );
+        Workflow<TestTask> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            // Tasks are translated on the submitting thread, so this records
+            // which submissions were forked onto a worker's own deque
+            AtomicInteger forkedCount = new AtomicInteger();
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            TaskScheduler<TestTask> scheduler = ForkJoinTaskScheduler.create(pool, (TestTask task) ->
+            {
+                if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool)
+                {
+                    forkedCount.incrementAndGet();
+                }
+                return () ->
+                {
+                    threads.add(Thread.currentThread());
+                    task.run();
+                };
+            });
+            Execution.newExecution(workflow, scheduler).run();
+
+            checkDependenciesFrom(workflow.getNodes().get("4"));
+            checkDependenciesFrom(workflow.getNodes().get("7"));
+            threads.forEach(thread -> assertThat(((ForkJoinWorkerThread) thread).getPool()).isSameAs(pool));
+
+            // Only the tasks of the two root nodes are submitted from outside the pool
+            assertThat(forkedCount.get()).isEqualTo(6);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatching() throws InterruptedException
+    {
+        // Ten independent tasks, one of which fails, in batches of up to four
+        Workflow<CheapTask> workflow = Workflow.create(
+                BuilderAssembler.<CheapTask>usingTasks(i -> new CheapTask(i == 5)).builderList(10));
+
+        Queue<Runnable> units = new ArrayDeque<>();
+        Execution<CheapTask> execution = Execution.newExecution(workflow, LocalTaskScheduler.create(units::add));
+        execution.setShutdownOnFailure(false);
+        execution.setBatchThreshold(Duration.ofMillis(1));
+        execution.setMaxBatchSize(4);
+        CompletableFuture<ExecutionResult<CheapTask>> future = execution.start().toCompletableFuture();
+
+        assertThat(units).hasSize(3);
+        units.forEach(Runnable::run);
+        try
+        {
+            future.get();
+            fail("Exception not propagated");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause().getCause()).isInstanceOf(TestTask.TestException.class);
+        }
+
+        Map<String, NodeState> states = execution.getNodeStatuses().entrySet().stream()
+                .collect(toMap(e -> e.getKey().getKey(), e -> e.getValue().getState()));
+        assertThat(states.get("5")).isEqualTo(NodeState.FAILED);
+        assertThat(states.values().stream().filter(NodeState.SUCCEEDED::equals).count()).isEqualTo(9L);
+    }
+
     /**
      * Starting at the given node, walks down the dependency tree and checks
      * that no dependency ran later than it should have.
@@ -16,18 +16,29 @@
 
 package com.tripadvisor.reflow;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.testng.Assert.fail;
 
 public class WorkflowSubsetTest
 {
+    private static final long RANDOM_GRAPH_SEED = 2407219318421750423L;
+
     // We're using the same old eight-node graph for these tests:
     //
     // 0-1-2-3-4
@@ -58,6 +69,89 @@ public class WorkflowSubsetTest
         assertThat(subset.getNodes().keySet()).containsExactly("0", "1", "6", "7");
     }
 
+    @Test
+    public void testSubsetsOfRandomGraph()
+    {
+        // Compare against a plain traversal, including subsets of subsets, and check that
+        // subsets keep the workflow's topological order
+        Random random = new Random(RANDOM_GRAPH_SEED);
+        List<StructureNode.Builder<Task>> builders = BuilderAssembler.withoutTasks().builderList(200);
+        for (int i = 1; i < builders.size(); i++)
+        {
+            for (int j = 0; j < 3; j++)
+            {
+                builders.get(i).addDependencies(builders.get(random.nextInt(i)));
+            }
+        }
+        Workflow<Task> workflow = Workflow.create(builders);
+        List<String> workflowOrder = ImmutableList.copyOf(workflow.getNodes().keySet());
+
+        for (int trial = 0; trial < 50; trial++)
+        {
+            WorkflowNode<Task> start = workflow.getNodes().get(Integer.toString(random.nextInt(100)));
+            WorkflowNode<Task> end = workflow.getNodes().get(Integer.toString(100 + random.nextInt(100)));
+
+            Target<Task> downstream = workflow.startingFrom(start);
+            Set<WorkflowNode<Task>> expectedDownstream =
+                    TraversalUtils.collectNodes(ImmutableList.of(start), WorkflowNode::getDependents);
+            assertThat(downstream.getNodes().values()).containsExactlyElementsIn(expectedDownstream);
+
+            if (downstream.containsNode(end))
+            {
+                Target<Task> between = downstream.stoppingAfter(end);
+                Set<WorkflowNode<Task>> expectedBetween = TraversalUtils.collectNodes(
+                        ImmutableList.of(end),
+                        node -> Sets.filter(node.getDependencies(), expectedDownstream::contains));
+                assertThat(between.getNodes().values()).containsExactlyElementsIn(expectedBetween);
+                assertThat(ImmutableList.copyOf(between.getNodes().keySet()))
+                        .isEqualTo(workflowOrder.stream().filter(between.getNodes()::containsKey).collect(toList()));
+            }
+        }
+    }
+
+    @Test
+    public void testKeyPatterns()
+    {
+        // ingest-<partner>-<date> nodes feed a report per date
+        List<StructureNode.Builder<Task>> builders = new ArrayList<>();
+        for (String date : ImmutableList.of("0101", "0102"))
+        {
+            StructureNode.Builder<Task> report = StructureNode.builder("report-" + date);
+            for (String partner : ImmutableList.of("acme", "acmex", "globex"))
+            {
+                StructureNode.Builder<Task> ingest = StructureNode.builder("ingest-" + partner + "-" + date);
+                report.addDependencies(ingest);
+                builders.add(ingest);
+            }
+            builders.add(report);
+        }
+        Workflow<Task> workflow = Workflow.create(builders);
+
+        assertThat(workflow.startingFromKeysWithPrefix("ingest-acme").getNodes().keySet()).containsExactly(
+                "ingest-acme-0101", "ingest-acmex-0101", "report-0101",
+                "ingest-acme-0102", "ingest-acmex-0102", "report-0102");
+        assertThat(workflow.startingFromKeysMatching("ingest-acme-*").getNodes().keySet()).containsExactly(
+                "ingest-acme-0101", "report-0101", "ingest-acme-0102", "report-0102");
+        assertThat(workflow.stoppingAfterKeysMatching("report-?102").getNodes().keySet()).containsExactly(
+                "ingest-acme-0102", "ingest-acmex-0102", "ingest-globex-0102", "report-0102");
+        assertThat(workflow.stoppingAfterKeysMatching("*-0101").getNodes().keySet()).containsExactly(
+                "ingest-acme-0101", "ingest-acmex-0101", "ingest-globex-0101", "report-0101");
+
+        // Matches outside the target are ignored
+        Target<Task> subset = workflow.stoppingAfterKeys("report-0101");
+        assertThat(subset.stoppingAfterKeysWithPrefix("ingest-globex").getNodes().keySet())
+                .containsExactly("ingest-globex-0101");
+        try
+        {
+            subset.startingFromKeysMatching("*-0102");
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+
     @Test
     public void testSubsetOfDiscontinuousTarget()
     {
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 TripAdvisor LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tripadvisor.reflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.testng.Assert.fail;
+
+public final class WorkflowTemplateTest
+{
+    @Test
+    public void testInstantiate()
+    {
+        // A mix of task and structure nodes, with a gap in the ordinals
+        List<WorkflowNode.Builder<Task>> builders = new ArrayList<>(
+                BuilderAssembler.<Task>usingTasks(NoOpTask::new).builderListTestConfig2());
+        builders.add(TaskNode.builder("8", new NoOpTask()));
+        builders.add(StructureNode.<Task>builder("join").addDependencies(builders.get(4), builders.get(7)));
+        Workflow<Task> original = Workflow.create(builders).withoutNodes(ImmutableList.of("8"));
+        WorkflowTemplate<Task> template = WorkflowTemplate.of(original);
+        assertThat(template.getKeys()).containsExactlyElementsIn(original.getNodes().keySet()).inOrder();
+
+        Map<String, Task> tasks = original.getNodes().values().stream()
+                .filter(WorkflowNode::hasTask)
+                .collect(toMap(WorkflowNode::getKey, node -> new NoOpTask()));
+        Workflow<Task> instance = template.instantiate(tasks::get);
+
+        assertThat(instance.getNodes().keySet()).containsExactlyElementsIn(template.getKeys()).inOrder();
+        for (WorkflowNode<Task> node : instance.getNodes().values())
+        {
+            WorkflowNode<Task> prototype = original.getNodes().get(node.getKey());
+            assertThat(node).isNotSameAs(prototype);
+            assertThat(node.hasTask()).isEqualTo(prototype.hasTask());
+            if (node.hasTask())
+            {
+                assertThat(node.getTask()).isSameAs(tasks.get(node.getKey()));
+            }
+            assertThat(keys(node.getDependencies())).isEqualTo(keys(prototype.getDependencies()));
+            assertThat(keys(node.getDependents())).isEqualTo(keys(original.getDependents(prototype)));
+            assertThat(instance.containsNode(node)).isTrue();
+        }
+
+        // Instances are independent of each other and of the original
+        Workflow<Task> other = template.instantiate(tasks::get);
+        assertThat(other.getNodes().get("3")).isNotSameAs(instance.getNodes().get("3"));
+        assertThat(instance.startingFromKeys("6").getNodes().keySet())
+                .containsExactlyElementsIn(original.startingFromKeys("6").getNodes().keySet()).inOrder();
+        assertThat(original.getNodes().get("0").getDependents()).hasSize(1);
+    }
+
+    @Test
+    public void testInstantiateInvalid()
+    {
+        Workflow<Task> original = Workflow.create(BuilderAssembler.<Task>usingTasks(NoOpTask::new)
+                                                          .builderListTestConfig1());
+        WorkflowTemplate<Task> template = WorkflowTemplate.of(original);
+        try
+        {
+            template.instantiate(ImmutableList.of(new NoOpTask()));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().isEqualTo("Expected 3 tasks, got 1");
+        }
+        try
+        {
+            template.instantiate(Arrays.asList(new NoOpTask(), null, new NoOpTask()));
+            fail("Expected NullPointerException");
+        }
+        catch (NullPointerException e)
+        {
+            // Expected
+        }
+    }
+
+    private static Set<String> keys(Set<WorkflowNode<Task>> nodes)
+    {
+        return nodes.stream().map(WorkflowNode::getKey).collect(toSet());
+    }
+}
@@ -26,6 +26,7 @@ import java.util.function.Function;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import org.testng.annotations.DataProvider;
@@ -197,6 +198,217 @@ public final class WorkflowTest
         });
     }
 
+    @Test
+    public void testWithAdded()
+    {
+        BuilderAssembler<Task, Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        List<Builder<Task>> b = builderAssembler.builderListTestConfig2();
+        Workflow<Task> workflow = Workflow.create(b);
+
+        Builder<Task> b8 = TaskNode.builder("8", new NoOpTask());
+        Builder<Task> b9 = TaskNode.builder("9", new NoOpTask());
+        b8.addDependencies(b.get(7));
+        b9.addDependencies(b8, b.get(4));
+        Workflow<Task> added = workflow.withAdded(ImmutableList.of(b9, b8));
+
+        // Existing nodes are shared, and the original workflow is unchanged
+        assertThat(added.getNodes()).hasSize(10);
+        workflow.getNodes().forEach((key, node) -> assertThat(added.getNodes().get(key)).isSameAs(node));
+        assertThat(workflow.getNodes()).hasSize(8);
+        assertThat(workflow.containsNode(added.getNodes().get("8"))).isFalse();
+
+        WorkflowNode<Task> node8 = added.getNodes().get("8");
+        WorkflowNode<Task> node9 = added.getNodes().get("9");
+        assertThat(node9.getDependencies()).containsExactly(node8, added.getNodes().get("4"));
+        assertThat(node8.getDependents()).containsExactly(node9);
+        assertThat(added.getDependents(added.getNodes().get("7"))).containsExactly(node8);
+        assertThat(added.getNodes().get("7").getDependents()).isEmpty();
+        assertThat(workflow.getDependents(workflow.getNodes().get("7"))).isEmpty();
+
+        assertThat(workflow.startingFromKeys("6").getNodes().keySet()).containsExactly("6", "3", "4", "7");
+        assertThat(added.startingFromKeys("6").getNodes().keySet()).containsExactly("6", "3", "4", "7", "8", "9");
+        assertThat(workflow.getReachabilityIndex().getDescendants(workflow.getNodes().get("7"))).isEmpty();
+        assertThat(added.getReachabilityIndex().getDescendants(added.getNodes().get("7")))
+                .containsExactly(node8, node9);
+        assertThat(added.stoppingAfterKeys("9").getNodes()).hasSize(10);
+    }
+
+    @Test
+    public void testWithAddedInvalid()
+    {
+        BuilderAssembler<Task, Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        List<Builder<Task>> b = builderAssembler.builderListTestConfig1();
+        Workflow<Task> workflow = Workflow.create(b);
+
+        // Repeated key
+        try
+        {
+            workflow.withAdded(ImmutableList.of(TaskNode.<Task>builder("1", new NoOpTask())));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().isEqualTo("Key 1 is already in the workflow");
+        }
+
+        // Dependency neither added nor in the workflow
+        try
+        {
+            workflow.withAdded(ImmutableList.of(TaskNode.<Task>builder("3", new NoOpTask())
+                                                        .addDependencies(TaskNode.<Task>builder("4", new NoOpTask()))));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().startsWith(TEMPLATE_INCOMPLETE);
+        }
+
+        // Cycle among the added nodes
+        Builder<Task> b3 = TaskNode.builder("3", new NoOpTask());
+        Builder<Task> b4 = TaskNode.builder("4", new NoOpTask());
+        b3.addDependencies(b.get(2), b4);
+        b4.addDependencies(b3);
+        try
+        {
+            workflow.withAdded(ImmutableList.of(b3, b4));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().isEqualTo(TEMPLATE_CONTAINS_CYCLE);
+        }
+        assertThat(workflow.getNodes().get("2").getDependents()).isEmpty();
+    }
+
+    @Test
+    public void testWithoutNodes()
+    {
+        BuilderAssembler<Task, Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        Workflow<Task> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+        WorkflowNode<Task> node3 = workflow.getNodes().get("3");
+        WorkflowNode<Task> node4 = workflow.getNodes().get("4");
+
+        Workflow<Task> removed = workflow.withoutNodes(ImmutableList.of("3", "4"));
+        assertThat(removed.getNodes().keySet()).containsExactly("0", "1", "2", "5", "6", "7");
+        removed.getNodes().forEach((key, node) -> assertThat(workflow.getNodes().get(key)).isSameAs(node));
+        assertThat(removed.containsNode(node3)).isFalse();
+        assertThat(workflow.containsNode(node3)).isTrue();
+
+        assertThat(removed.startingFromKeys("2").getNodes().keySet()).containsExactly("2");
+        assertThat(removed.getReachabilityIndex().getDescendants(removed.getNodes().get("6")))
+                .containsExactly(removed.getNodes().get("7"));
+        assertThat(workflow.getReachabilityIndex().getDescendants(workflow.getNodes().get("6")))
+                .containsExactly(node3, node4, workflow.getNodes().get("7"));
+
+        // A node may only be added back under a new instance
+        Workflow<Task> readded = removed.withAdded(ImmutableList.of(
+                TaskNode.<Task>builder("3", new NoOpTask()).addDependencies(StructureNode.<Task>builder("2"))));
+        assertThat(readded.getNodes().get("3")).isNotSameAs(node3);
+        assertThat(readded.startingFromKeys("2").getNodes().keySet()).containsExactly("2", "3");
+
+        try
+        {
+            workflow.withoutNodes(ImmutableList.of("3"));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().startsWith("Node ");
+        }
+    }
+
+    @Test
+    public void testWithoutNodesCompactsOrdinals()
+    {
+        // A chain long enough for several levels of index
+        List<Builder<Task>> builders = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+        {
+            Builder<Task> builder = TaskNode.builder(Integer.toString(i), new NoOpTask());
+            if (i > 0)
+            {
+                builder.addDependencies(builders.get(i - 1));
+            }
+            builders.add(builder);
+        }
+        Workflow<Task> workflow = Workflow.create(builders);
+
+        // Removing up to half of the nodes leaves their ordinals unused
+        List<String> keys = new ArrayList<>();
+        for (int i = 1999; i >= 1000; i--)
+        {
+            keys.add(Integer.toString(i));
+        }
+        Workflow<Task> half = workflow.withoutNodes(keys);
+        assertThat(half.getOrdinalBound()).isEqualTo(2000);
+        assertThat(half.getNodes()).hasSize(1000);
+        assertThat(half.getNodes().get("999")).isSameAs(workflow.getNodes().get("999"));
+        assertThat(half.getNodes().get("1000")).isNull();
+
+        // Removing more copies the remaining nodes
+        Workflow<Task> compacted = half.withoutNodes(ImmutableList.of("999"));
+        assertThat(compacted.getOrdinalBound()).isEqualTo(999);
+        assertThat(compacted.getNodes().keySet()).containsExactlyElementsIn(
+                ImmutableList.copyOf(half.getNodes().keySet()).subList(0, 999)).inOrder();
+        WorkflowNode<Task> node = compacted.getNodes().get("500");
+        assertThat(node).isNotSameAs(workflow.getNodes().get("500"));
+        assertThat(node.getTask()).isSameAs(workflow.getNodes().get("500").getTask());
+        assertThat(compacted.getDependents(node)).containsExactly(compacted.getNodes().get("501"));
+        assertThat(compacted.containsNode(workflow.getNodes().get("500"))).isFalse();
+    }
+
+    @Test
+    public void testWithExpansion()
+    {
+        BuilderAssembler<Task, Builder<Task>> builderAssembler = BuilderAssembler.usingTasks(NoOpTask::new);
+        Workflow<Task> workflow = Workflow.create(builderAssembler.builderListTestConfig2());
+        Map<String, WorkflowNode<Task>> nodes = ImmutableMap.copyOf(workflow.getNodes());
+
+        // 1 -> a -> b -> {2, 6}, where b also depends on 5
+        Builder<Task> a = TaskNode.builder("a", new NoOpTask());
+        WorkflowNode.Builder<Task> b = TaskNode.<Task>builder("b", new NoOpTask())
+                .addDependencies(a)
+                .addDependencies(StructureNode.builder("5"));
+        Workflow<Task> expanded = workflow.withExpansion(nodes.get("1"), ImmutableList.of(a, b));
+
+        // Every node is shared, and only the expansion takes new ordinals
+        assertThat(expanded.getOrdinalBound()).isEqualTo(10);
+        nodes.forEach((key, node) -> assertThat(expanded.getNodes().get(key)).isSameAs(node));
+        assertThat(keys(expanded.getDependencies(nodes.get("2")))).containsExactly("1", "b");
+        assertThat(keys(expanded.getDependencies(nodes.get("6")))).containsExactly("1", "5", "b");
+        assertThat(keys(expanded.getDependents(expanded.getNodes().get("b")))).containsExactly("2", "6");
+        assertThat(keys(workflow.getDependencies(nodes.get("2")))).containsExactly("1");
+        assertThat(keys(nodes.get("2").getDependencies())).containsExactly("1");
+
+        // Iteration, subsets and reachability follow the added dependencies
+        assertThat(expanded.hasTopologicalOrdinals()).isFalse();
+        List<String> order = ImmutableList.copyOf(expanded.getNodes().keySet());
+        assertThat(order.indexOf("1")).isLessThan(order.indexOf("a"));
+        assertThat(order.indexOf("b")).isLessThan(order.indexOf("2"));
+        assertThat(order.indexOf("b")).isLessThan(order.indexOf("6"));
+        assertThat(expanded.startingFromKeys("b").getNodes().keySet()).containsExactly("b", "2", "3", "4", "6", "7");
+        assertThat(expanded.stoppingAfterKeys("2").getNodes().keySet()).containsExactly("0", "1", "5", "a", "b", "2");
+        assertThat(expanded.getReachabilityIndex().isAncestor(expanded.getNodes().get("a"), nodes.get("4"))).isTrue();
+        assertThat(WorkflowTemplate.of(expanded).getKeys()).containsExactlyElementsIn(order).inOrder();
+
+        // An expansion depending on a descendant of the node would form a cycle
+        try
+        {
+            workflow.withExpansion(nodes.get("1"), ImmutableList.of(
+                    TaskNode.<Task>builder("c", new NoOpTask()).addDependencies(StructureNode.builder("3"))));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e).hasMessageThat().startsWith("Expansion of node");
+        }
+    }
+
+    private static Set<String> keys(Set<WorkflowNode<Task>> nodes)
+    {
+        return nodes.stream().map(WorkflowNode::getKey).collect(toSet());
+    }
+
     @DataProvider
     public Object[][] testValidKeyDataSet()
     {